@@ -0,0 +1,92 @@
+package org.stm32flash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
+
+/* device operations against STM32BootloaderEmulator with real time off and no
+ * device timings, replies being there as soon as asked for: what is left is the
+ * host side cost of each block, and of the emulator. */
+@State(Scope.Thread)
+public class STM32DeviceBenchmark {
+    // STM32G47xxx/48xxx: extended erase, 2kB pages.
+    private static final int DEVICE_ID = 0x469;
+    private static final int SIZE = 64 * 1024;
+
+    @Param({ "true", "false" })
+    public boolean getChecksum;
+
+    private STM32Device mDevice;
+    private List<STM32FirmwareSegment> mSegments;
+    private final byte[] mBuffer = new byte[SIZE];
+    private PrintStream mOut;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, TimeoutException {
+        // progress output is formatted but not printed, console speed is not measured.
+        mOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        STM32BootloaderEmulator emulator = new STM32BootloaderEmulator(DEVICE_ID);
+        // device takes no time either, learned ack timeouts would not cover its erases.
+        emulator.setRealTime(false);
+        emulator.setCommandTime(0);
+        emulator.setWriteTime(0);
+        emulator.setEraseTime(0, 0);
+        emulator.setGetChecksum(getChecksum);
+
+        mDevice = new STM32Device(emulator);
+        mDevice.setAdaptiveBaudRate(false);
+        if (!mDevice.connect())
+            throw new IllegalStateException("could not connect to emulator");
+
+        byte[] image = new byte[SIZE];
+        new Random(0).nextBytes(image);
+        mSegments = Collections.singletonList(new STM32FirmwareSegment(mDevice.getFlashStart(), image));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(mOut);
+    }
+
+    @Benchmark
+    public boolean readAllFlash() throws IOException, TimeoutException {
+        return mDevice.readAllFlash(mBuffer);
+    }
+
+    @Benchmark
+    public boolean writeFlash() throws IOException, TimeoutException {
+        return mDevice.writeFlash(mSegments, false);
+    }
+
+    @Benchmark
+    public boolean writeFlashVerify() throws IOException, TimeoutException {
+        return mDevice.writeFlash(mSegments, true);
+    }
+
+    @Benchmark
+    public boolean eraseFlash() throws IOException, TimeoutException {
+        return mDevice.eraseFlash(mSegments);
+    }
+}
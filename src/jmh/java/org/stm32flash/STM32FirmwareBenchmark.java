@@ -0,0 +1,103 @@
+package org.stm32flash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+/* firmware files parsing, and image digest. */
+@State(Scope.Benchmark)
+public class STM32FirmwareBenchmark {
+    private static final int BASE = 0x08000000;
+    private static final int SIZE = 256 * 1024;
+    private static final int RECORD_SIZE = 16;
+
+    private byte[] mImage;
+    private File mHex;
+    private File mSrec;
+    private STM32Firmware mFirmware;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mImage = new byte[SIZE];
+        new Random(0).nextBytes(mImage);
+        mFirmware = new STM32Firmware(mImage, BASE);
+
+        mHex = File.createTempFile("stm32flash", ".hex");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(mHex), StandardCharsets.US_ASCII)) {
+            for (int offset = 0; offset < SIZE; offset += RECORD_SIZE) {
+                int address = BASE + offset;
+                if ((address & 0xffff) == 0)
+                    w.write(hexRecord(0x04, 0, new byte[] { (byte) (address >> 24), (byte) (address >> 16) }, 0, 2));
+                w.write(hexRecord(0x00, address & 0xffff, mImage, offset, RECORD_SIZE));
+            }
+            w.write(hexRecord(0x01, 0, mImage, 0, 0));
+        }
+
+        mSrec = File.createTempFile("stm32flash", ".srec");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(mSrec), StandardCharsets.US_ASCII)) {
+            for (int offset = 0; offset < SIZE; offset += RECORD_SIZE)
+                w.write(srecRecord('3', BASE + offset, mImage, offset, RECORD_SIZE));
+            w.write(srecRecord('7', BASE, mImage, 0, 0));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mHex.delete();
+        mSrec.delete();
+    }
+
+    @Benchmark
+    public List<STM32FirmwareSegment> parseHex() throws IOException {
+        return new STM32HexFirmwareParser(mHex.getPath()).parseSegments();
+    }
+
+    @Benchmark
+    public List<STM32FirmwareSegment> parseSrec() throws IOException {
+        return new STM32SrecFirmwareParser(mSrec.getPath()).parseSegments();
+    }
+
+    @Benchmark
+    public byte[] checksum() {
+        return mFirmware.getChecksum();
+    }
+
+    private static String hexRecord(int type, int address, byte[] b, int off, int len) {
+        StringBuilder sb = new StringBuilder(":");
+        int sum = len + (address >> 8) + address + type;
+
+        sb.append(String.format("%02X%04X%02X", len, address & 0xffff, type));
+        for (int i = off; i < off + len; i++) {
+            sb.append(String.format("%02X", b[i] & 0xff));
+            sum += b[i];
+        }
+        sb.append(String.format("%02X\n", -sum & 0xff));
+        return sb.toString();
+    }
+
+    private static String srecRecord(char type, int address, byte[] b, int off, int len) {
+        StringBuilder sb = new StringBuilder("S").append(type);
+        int count = 4 + len + 1;
+        int sum = count + (address >> 24) + (address >> 16) + (address >> 8) + address;
+
+        sb.append(String.format("%02X%08X", count, address));
+        for (int i = off; i < off + len; i++) {
+            sb.append(String.format("%02X", b[i] & 0xff));
+            sum += b[i];
+        }
+        sb.append(String.format("%02X\n", ~sum & 0xff));
+        return sb.toString();
+    }
+}
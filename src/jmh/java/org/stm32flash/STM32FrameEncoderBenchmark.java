@@ -0,0 +1,52 @@
+package org.stm32flash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/* frames and checksums built for every block sent to the bootloader. */
+@State(Scope.Thread)
+public class STM32FrameEncoderBenchmark {
+    private final STM32FrameEncoder mFrame = new STM32FrameEncoder(2 + 2 * 256 + 1);
+    private final byte[] mBlock = new byte[256];
+    private final byte[] mRegion = new byte[64 * 1024];
+    private final int[] mPages = new int[256];
+
+    @Setup
+    public void setup() {
+        Random r = new Random(0);
+        r.nextBytes(mBlock);
+        r.nextBytes(mRegion);
+        for (int i = 0; i < mPages.length; i++)
+            mPages[i] = i;
+    }
+
+    @Benchmark
+    public int address() {
+        return mFrame.address(0x08000000).getLength();
+    }
+
+    @Benchmark
+    public int data() {
+        return mFrame.data(mBlock, 0, mBlock.length).getLength();
+    }
+
+    @Benchmark
+    public int pages8() {
+        return mFrame.pages8(mPages, 0, mPages.length).getLength();
+    }
+
+    @Benchmark
+    public int pages16() {
+        return mFrame.pages16(mPages, 0, mPages.length).getLength();
+    }
+
+    /* expected GetChecksum result of a region, computed on host for each compare. */
+    @Benchmark
+    public int crc() {
+        return STM32Crc.compute(mRegion, 0, mRegion.length);
+    }
+}
@@ -0,0 +1,27 @@
+package org.stm32flash;
+
+import java.io.IOException;
+
+public class STM32ArrayFirmwareSource implements STM32FirmwareSource {
+    private final byte[] mBuffer;
+
+    public STM32ArrayFirmwareSource(byte[] buffer) {
+        mBuffer = buffer;
+    }
+
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    @Override
+    public long size() {
+        return mBuffer.length;
+    }
+
+    @Override
+    public void read(long position, byte[] b, int off, int len) throws IOException {
+        if (position < 0 || position + len > mBuffer.length)
+            throw new IOException("read " + len + "b @ " + position + " out of source bounds");
+        System.arraycopy(mBuffer, (int) position, b, off, len);
+    }
+}
@@ -0,0 +1,142 @@
+package org.stm32flash;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* non blocking front of a STM32Flasher: operations run one at a time on an
+ * executor, in the order they were submitted, and complete returned futures. cancelling a future aborts its
+ * operation before next bootloader command or while it waits for an ack. a
+ * timeout is a deadline for the whole operation, counted from its submission:
+ * commands timeouts get shortened to meet it. timeouts <= 0 mean none. */
+public class STM32AsyncFlasher {
+    private static final AtomicInteger mThreadCount = new AtomicInteger();
+    // operations mostly wait for the serial line, threads are only kept while in use.
+    private static final ExecutorService mDefaultExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "stm32-async-" + mThreadCount.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final STM32Flasher mFlasher;
+    private final Executor mExecutor;
+    // operations waiting their turn, run by a single task at a time on executor.
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+    private boolean mDraining = false;
+    private volatile CompletableFuture<?> mRunning = null;
+
+    private interface Operation<T> {
+        T run() throws IOException, TimeoutException;
+    }
+
+    public STM32AsyncFlasher(STM32Flasher flasher, Executor executor) {
+        mFlasher = flasher;
+        mExecutor = executor;
+    }
+
+    public STM32AsyncFlasher(STM32Flasher flasher) {
+        this(flasher, mDefaultExecutor);
+    }
+
+    public STM32Flasher getFlasher() {
+        return mFlasher;
+    }
+
+    public CompletableFuture<Boolean> connect(long timeoutMillis) {
+        return submit(mFlasher::connect, timeoutMillis);
+    }
+
+    public CompletableFuture<Boolean> eraseFirmware(long timeoutMillis) {
+        return submit(mFlasher::eraseFirmware, timeoutMillis);
+    }
+
+    public CompletableFuture<Boolean> erase(int startAddress, int length, long timeoutMillis) {
+        return submit(() -> mFlasher.erase(startAddress, length), timeoutMillis);
+    }
+
+    public CompletableFuture<Boolean> flashFirmware(STM32Firmware fw, STM32Flasher.EraseMode erase, boolean verify, long timeoutMillis) {
+        return submit(() -> mFlasher.flashFirmware(fw, erase, verify), timeoutMillis);
+    }
+
+    public CompletableFuture<byte[]> dumpFirmware(int size, long timeoutMillis) {
+        return submit(() -> mFlasher.dumpFirmware(size), timeoutMillis);
+    }
+
+    public CompletableFuture<Boolean> resetDevice(long timeoutMillis) {
+        return submit(mFlasher::resetDevice, timeoutMillis);
+    }
+
+    private <T> CompletableFuture<T> submit(Operation<T> operation, long timeoutMillis) {
+        final STM32Device device = mFlasher.getDevice();
+        final long deadline = timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1000000L : 0;
+
+        final CompletableFuture<T> future = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                // only abort device if it is running this very operation.
+                if (cancelled && mRunning == this)
+                    device.cancel();
+                return cancelled;
+            }
+        };
+
+        enqueue(() -> {
+            mRunning = future;
+            device.clearCancel();
+            device.setDeadline(deadline);
+            try {
+                // a cancel done before mRunning was set did not reach device.
+                if (!future.isDone())
+                    future.complete(operation.run());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                device.setDeadline(0);
+                mRunning = null;
+            }
+        });
+
+        return future;
+    }
+
+    /* queue job, and start draining queue on executor unless it already is - a
+     * single executor thread is used whatever the number of queued operations. */
+    private void enqueue(Runnable job) {
+        synchronized (mQueue) {
+            mQueue.add(job);
+            if (mDraining)
+                return;
+            mDraining = true;
+        }
+
+        try {
+            mExecutor.execute(this::drain);
+        } catch (RuntimeException e) {
+            synchronized (mQueue) {
+                mQueue.remove(job);
+                mDraining = false;
+            }
+            throw e;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable job;
+            synchronized (mQueue) {
+                job = mQueue.poll();
+                if (job == null) {
+                    mDraining = false;
+                    return;
+                }
+            }
+            job.run();
+        }
+    }
+}
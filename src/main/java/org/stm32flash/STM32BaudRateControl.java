@@ -0,0 +1,19 @@
+package org.stm32flash;
+
+import java.io.IOException;
+
+/* optional extension of STM32UsartInterface, for links able to change their
+ * baud rate and to reset target into its bootloader (eg through DTR/RTS wired
+ * to NRST/BOOT0). bootloader detects baud rate on the first 0x7f received after
+ * reset, so a rate change needs a reset. */
+public interface STM32BaudRateControl {
+    /* rates link may run at, fastest first. */
+    int[] getSupportedBaudRates();
+
+    int getBaudRate();
+
+    void setBaudRate(int baudRate) throws IOException;
+
+    /* reset target into its bootloader, and drop any byte received so far. */
+    void resetBootloader() throws IOException;
+}
@@ -1,17 +1,43 @@
 package org.stm32flash;
 
 import java.io.*;
+import java.util.Collections;
+import java.util.List;
 
+/* raw binary image - segments read from the mapped file, only parse() loads
+ * it on heap. */
 public class STM32BinFirmwareParser extends STM32FirmwareParser {
-    private byte[] mBuffer;
-
     public STM32BinFirmwareParser(String path) throws IOException {
         super(path);
-        mBuffer = loadFile(mFirmwarePath);
+        // fail right away on files that can not be opened.
+        getSource();
+    }
+
+    public STM32BinFirmwareParser(STM32FirmwareSource source) {
+        super(source);
+    }
+
+    @Override
+    public byte[] parse() throws IOException {
+        STM32FirmwareSource source = getSource();
+
+        if (source instanceof STM32ArrayFirmwareSource)
+            return ((STM32ArrayFirmwareSource) source).getBuffer();
+
+        byte[] buffer = new byte[getSize(source)];
+        source.read(0, buffer, 0, buffer.length);
+        return buffer;
     }
 
     @Override
-    public byte[] parse() {
-        return mBuffer;
+    public List<STM32FirmwareSegment> parseSegments() throws IOException {
+        STM32FirmwareSource source = getSource();
+        return Collections.singletonList(new STM32FirmwareSegment(getBaseAddress(), source, 0, getSize(source)));
+    }
+
+    private int getSize(STM32FirmwareSource source) throws IOException {
+        if (source.size() > Integer.MAX_VALUE)
+            throw new IOException("bin: " + mFirmwarePath + " is too large");
+        return (int) source.size();
     }
 }
@@ -0,0 +1,912 @@
+package org.stm32flash;
+
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
+
+/* AN3155 bootloader running in process, at the other end of the link: keeps
+ * flash, ram and protections of a STM32DevInfo device, and answers frames byte
+ * per byte as a real one would, checksums included.
+ *
+ * line speed, command, programming and erase times are accounted on a device
+ * clock. with real time on (default) reads block until bytes would have been
+ * received, otherwise replies are there at once and getTime() tells how long
+ * session would have taken. nacks, lost bytes and resets get injected at random, from
+ * a seeded generator so that a failing run can be replayed. */
+public class STM32BootloaderEmulator extends STM32UsartInterface implements STM32BaudRateControl {
+    private static final byte INIT = 0x7f;
+    private static final byte ACK = 0x79;
+    private static final byte NACK = 0x1f;
+    private static final byte VERSION = 0x31;
+
+    private static final byte CMD_GET = 0x00;
+    private static final byte CMD_GET_VERSION = 0x01;
+    private static final byte CMD_GET_ID = 0x02;
+    private static final byte CMD_READ = 0x11;
+    private static final byte CMD_GO = 0x21;
+    private static final byte CMD_WRITE = 0x31;
+    private static final byte CMD_ERASE = 0x43;
+    private static final byte CMD_EXTENDED_ERASE = 0x44;
+    private static final byte CMD_WRITE_PROTECT = 0x63;
+    private static final byte CMD_WRITE_UNPROTECT = 0x73;
+    private static final byte CMD_READOUT_PROTECT = (byte) 0x82;
+    private static final byte CMD_READOUT_UNPROTECT = (byte) 0x92;
+    private static final byte CMD_GET_CHECKSUM = (byte) 0xa1;
+
+    private static final int STATE_INIT = 0;
+    private static final int STATE_COMMAND = 1;
+    private static final int STATE_ADDRESS = 2;
+    private static final int STATE_READ_LENGTH = 3;
+    private static final int STATE_WRITE_DATA = 4;
+    private static final int STATE_CHECKSUM_LENGTH = 5;
+    private static final int STATE_ERASE = 6;
+    private static final int STATE_EXTENDED_ERASE = 7;
+    private static final int STATE_WRITE_PROTECT = 8;
+    // jumped to user code, deaf until reset.
+    private static final int STATE_RUNNING = 9;
+
+    private static final int RAM_BASE = 0x20000000;
+    private static final int UID_SIZE = 12;
+
+    // 8 data bits, even parity, start and stop bits.
+    private static final int BITS_PER_BYTE = 11;
+    private static final int[] BAUD_RATES = { 921600, 460800, 230400, 115200, 57600, 38400, 19200, 9600 };
+
+    private final STM32DevInfo mInfo;
+    private final byte[] mFlash;
+    private final byte[] mRam;
+    private final byte[] mUid = new byte[UID_SIZE];
+    // read only, placeholders unless set through getters.
+    private final byte[] mSystemMemory;
+    private final byte[] mOptionBytes;
+    private final boolean[] mWriteProtected;
+    private boolean mReadProtected = false;
+
+    private boolean mExtendedErase = true;
+    private boolean mGetChecksum = false;
+
+    private Random mRandom = new Random(0);
+    private double mNackRate = 0;
+    private double mDropRate = 0;
+    private double mResetRate = 0;
+    private int mFaults = 0;
+
+    // timings in ns.
+    private boolean mRealTime = true;
+    private int mBaudRate = 115200;
+    private int mMaxBaudRate = Integer.MAX_VALUE;
+    private int mDeviceBaudRate = -1;
+    private long mByteTime = byteTime(115200);
+    private long mCommandTime = 20 * 1000L;
+    private long mWriteTime = 30 * 1000L;
+    private long mPageEraseTime = 20 * 1000000L;
+    private long mMassEraseTime = 40 * 1000000L;
+
+    // device clock, from mEpoch: host is done reading at mClock, device is done
+    // processing at mDeviceTime, and both tx lines are free from mXxxLineFree.
+    private final long mEpoch = System.nanoTime();
+    private long mClock = 0;
+    private long mDeviceTime = 0;
+    private long mHostLineFree = 0;
+    private long mDeviceLineFree = 0;
+
+    // largest frame is an extended erase of 0x10000 pages.
+    private final byte[] mIn = new byte[2 + 2 * 0x10000 + 1];
+    private int mInLength = 0;
+
+    // replies not read yet, and when host will have received each of them.
+    private byte[] mOut = new byte[1024];
+    private long[] mOutTime = new long[1024];
+    private int mOutStart = 0;
+    private int mOutEnd = 0;
+
+    private int mState = STATE_INIT;
+    private byte mCommand;
+    private int mAddress;
+
+    public STM32BootloaderEmulator(STM32DevInfo info) {
+        mInfo = info;
+        mFlash = new byte[info.getFlashSize()];
+        mRam = new byte[info.getRamSize()];
+        mSystemMemory = new byte[info.getSystemMemorySize()];
+        mOptionBytes = new byte[info.getOptionSize()];
+        Arrays.fill(mFlash, (byte) 0xff);
+        Arrays.fill(mOptionBytes, (byte) 0xff);
+        mWriteProtected = new boolean[(info.getPageCount() + info.getPagesPerSector() - 1) / info.getPagesPerSector()];
+        mRandom.nextBytes(mUid);
+        mRandom.nextBytes(mSystemMemory);
+    }
+
+    public STM32BootloaderEmulator(int id) {
+        this(getDevInfo(id));
+    }
+
+    private static STM32DevInfo getDevInfo(int id) {
+        STM32DevInfo info = STM32DevInfoDatabase.get(id);
+        if (info == null)
+            throw new IllegalArgumentException("no STM32DevInfo for id 0x" + Integer.toHexString(id));
+        return info;
+    }
+
+    public STM32DevInfo getDevInfo() {
+        return mInfo;
+    }
+
+    /* live flash content, from getDevInfo().getFlashStart(). */
+    public byte[] getFlash() {
+        return mFlash;
+    }
+
+    /* live system memory content, from getDevInfo().getSystemMemoryStart(). */
+    public byte[] getSystemMemory() {
+        return mSystemMemory;
+    }
+
+    /* live option bytes, from getDevInfo().getOptionStart(). */
+    public byte[] getOptionBytes() {
+        return mOptionBytes;
+    }
+
+    public synchronized boolean isReadProtected() {
+        return mReadProtected;
+    }
+
+    public synchronized void setUid(byte[] uid) {
+        System.arraycopy(uid, 0, mUid, 0, UID_SIZE);
+    }
+
+    /* legacy erase (0x43, up to 256 pages per command) instead of extended one. */
+    public synchronized void setExtendedErase(boolean extended) {
+        mExtendedErase = extended;
+    }
+
+    /* advertise and answer Get Checksum (0xa1). */
+    public synchronized void setGetChecksum(boolean getChecksum) {
+        mGetChecksum = getChecksum;
+    }
+
+    /* with real time off, reads do not wait for replies - timeouts still last
+     * for real, as host measures them on its own clock. */
+    public synchronized void setRealTime(boolean realTime) {
+        mRealTime = realTime;
+    }
+
+    /* time spent on device clock, in ns. */
+    public synchronized long getTime() {
+        return now();
+    }
+
+    /* time from end of a frame to its ack, in us. */
+    public synchronized void setCommandTime(int micros) {
+        mCommandTime = micros * 1000L;
+    }
+
+    /* programming time of each 32bit word, in us. */
+    public synchronized void setWriteTime(int micros) {
+        mWriteTime = micros * 1000L;
+    }
+
+    /* erase time of each page whatever its size, and of whole flash, in us. */
+    public synchronized void setEraseTime(int pageMicros, int massMicros) {
+        mPageEraseTime = pageMicros * 1000L;
+        mMassEraseTime = massMicros * 1000L;
+    }
+
+    /* device can not sync above that rate: it answers init with garbage. */
+    public synchronized void setMaxBaudRate(int baudRate) {
+        mMaxBaudRate = baudRate;
+    }
+
+    public synchronized void setSeed(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /* probability for an otherwise valid command or frame to get a NACK. */
+    public synchronized void setNackRate(double rate) {
+        mNackRate = rate;
+    }
+
+    /* probability for each byte to get lost on the line, in both directions. */
+    public synchronized void setDropRate(double rate) {
+        mDropRate = rate;
+    }
+
+    /* probability for device to reset on a command, back to waiting for init. */
+    public synchronized void setResetRate(double rate) {
+        mResetRate = rate;
+    }
+
+    /* nacks, lost bytes and resets injected so far. */
+    public synchronized int getFaultCount() {
+        return mFaults;
+    }
+
+    @Override
+    public int[] getSupportedBaudRates() {
+        return BAUD_RATES.clone();
+    }
+
+    @Override
+    public synchronized int getBaudRate() {
+        return mBaudRate;
+    }
+
+    /* device keeps the rate it locked on at init: a change needs a reset. */
+    @Override
+    public synchronized void setBaudRate(int baudRate) {
+        if (baudRate <= 0)
+            throw new IllegalArgumentException("bad baud rate " + baudRate);
+        mBaudRate = baudRate;
+        mByteTime = byteTime(baudRate);
+    }
+
+    @Override
+    public void resetBootloader() {
+        reset();
+    }
+
+    /* reset pin: back to bootloader waiting for init, replies not read yet are
+     * lost. memory and protections are kept. */
+    public synchronized void reset() {
+        reboot();
+        mOutStart = mOutEnd = 0;
+        mDeviceTime = mDeviceLineFree = now();
+        notifyAll();
+    }
+
+    @Override
+    public byte[] read(int len, int timeout) throws InterruptedIOException, TimeoutException {
+        byte[] b = new byte[len];
+        read(b, 0, len, timeout);
+        return b;
+    }
+
+    @Override
+    public synchronized void read(byte[] b, int off, int len, int timeout) throws InterruptedIOException, TimeoutException {
+        long start = System.nanoTime();
+        long deadline = now() + timeout * 1000000L;
+
+        while (true) {
+            long now = now();
+            long ready = mOutEnd - mOutStart >= len ? mOutTime[mOutStart + len - 1] : Long.MAX_VALUE;
+
+            if (ready <= now) {
+                System.arraycopy(mOut, mOutStart, b, off, len);
+                consume(len);
+                return;
+            }
+
+            if (mRealTime) {
+                if (now < deadline) {
+                    pause(Math.min(ready, deadline) - now);
+                    continue;
+                }
+            } else if (ready <= deadline) {
+                mClock = ready;
+                continue;
+            } else {
+                // host polls on its own clock: a timeout lasts for real.
+                long left = start + timeout * 1000000L - System.nanoTime();
+                if (left > 0) {
+                    pause(left);
+                    continue;
+                }
+            }
+
+            // bytes received so far are gone, as with a serial driver.
+            int received = 0;
+            while (mOutStart + received < mOutEnd && mOutTime[mOutStart + received] <= deadline)
+                received++;
+            consume(received);
+            mClock = Math.max(mClock, deadline);
+            throw new TimeoutException("emulator: " + received + " of " + len + " bytes received in " + timeout + "ms");
+        }
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        long t = Math.max(now(), mHostLineFree);
+
+        for (int i = off; i < off + len; i++) {
+            t += mByteTime;
+            if (!lost())
+                receive(b[i], t);
+        }
+
+        mHostLineFree = t;
+        notifyAll();
+    }
+
+    private void receive(byte b, long time) {
+        if (mState == STATE_RUNNING)
+            return;
+
+        // bytes sent while device was busy wait in its uart.
+        mDeviceTime = Math.max(mDeviceTime, time);
+
+        if (mState == STATE_INIT) {
+            if (b != INIT)
+                return;
+            if (mBaudRate > mMaxBaudRate) {
+                // baud rate detection went wrong: whatever device sends is garbage.
+                reply((byte) 0);
+                return;
+            }
+            mDeviceBaudRate = mBaudRate;
+            mDeviceTime += mCommandTime;
+            reply(ACK);
+            mState = STATE_COMMAND;
+            return;
+        }
+
+        if (mBaudRate != mDeviceBaudRate)
+            return;
+
+        mIn[mInLength++] = b;
+        if (mInLength < getFrameLength())
+            return;
+
+        mInLength = 0;
+        mDeviceTime += mCommandTime;
+
+        switch (mState) {
+            case STATE_COMMAND:
+                command();
+                break;
+            case STATE_ADDRESS:
+                address();
+                break;
+            case STATE_READ_LENGTH:
+                readMemory();
+                break;
+            case STATE_WRITE_DATA:
+                writeMemory();
+                break;
+            case STATE_CHECKSUM_LENGTH:
+                getChecksum();
+                break;
+            case STATE_ERASE:
+                erase();
+                break;
+            case STATE_EXTENDED_ERASE:
+                extendedErase();
+                break;
+            case STATE_WRITE_PROTECT:
+                writeProtect();
+                break;
+        }
+    }
+
+    /* length of frame expected in current state, as far as received bytes tell. */
+    private int getFrameLength() {
+        int n = mIn[0] & 0xff;
+
+        switch (mState) {
+            case STATE_ADDRESS:
+            case STATE_CHECKSUM_LENGTH:
+                return 5;
+            case STATE_WRITE_DATA:
+            case STATE_WRITE_PROTECT:
+                return n + 3;
+            case STATE_ERASE:
+                return n == 0xff ? 2 : n + 3;
+            case STATE_EXTENDED_ERASE:
+                if (mInLength < 2)
+                    return 2;
+                n = (n << 8) | (mIn[1] & 0xff);
+                return n >= 0xfff0 ? 3 : 2 + 2 * (n + 1) + 1;
+            default:
+                return 2;
+        }
+    }
+
+    private void command() {
+        byte code = mIn[0];
+
+        mState = STATE_COMMAND;
+        if ((byte) ~code != mIn[1]) {
+            reply(NACK);
+            return;
+        }
+
+        if (mResetRate > 0 && mRandom.nextDouble() < mResetRate) {
+            mFaults++;
+            reboot();
+            return;
+        }
+
+        switch (code) {
+            case CMD_GET: {
+                byte[] commands = getCommands();
+                if (!accept())
+                    return;
+                reply((byte) commands.length);
+                reply(VERSION);
+                for (byte c : commands)
+                    reply(c);
+                reply(ACK);
+                break;
+            }
+
+            case CMD_GET_VERSION:
+                if (!accept())
+                    return;
+                reply(VERSION);
+                reply((byte) 0);
+                reply((byte) 0);
+                reply(ACK);
+                break;
+
+            case CMD_GET_ID:
+                if (!accept())
+                    return;
+                reply((byte) 1);
+                reply((byte) (mInfo.getId() >> 8));
+                reply((byte) mInfo.getId());
+                reply(ACK);
+                break;
+
+            case CMD_READ:
+            case CMD_GO:
+            case CMD_WRITE:
+                next(code, STATE_ADDRESS);
+                break;
+
+            case CMD_GET_CHECKSUM:
+                if (mGetChecksum)
+                    next(code, STATE_ADDRESS);
+                else
+                    reply(NACK);
+                break;
+
+            case CMD_ERASE:
+                if (!mExtendedErase)
+                    next(code, STATE_ERASE);
+                else
+                    reply(NACK);
+                break;
+
+            case CMD_EXTENDED_ERASE:
+                if (mExtendedErase)
+                    next(code, STATE_EXTENDED_ERASE);
+                else
+                    reply(NACK);
+                break;
+
+            case CMD_WRITE_PROTECT:
+                next(code, STATE_WRITE_PROTECT);
+                break;
+
+            case CMD_WRITE_UNPROTECT:
+                if (mReadProtected) {
+                    reply(NACK);
+                    return;
+                }
+                if (!accept())
+                    return;
+                Arrays.fill(mWriteProtected, false);
+                reply(ACK);
+                reboot();
+                break;
+
+            case CMD_READOUT_PROTECT:
+                if (mReadProtected) {
+                    reply(NACK);
+                    return;
+                }
+                if (!accept())
+                    return;
+                mReadProtected = true;
+                reply(ACK);
+                reboot();
+                break;
+
+            case CMD_READOUT_UNPROTECT:
+                if (!accept())
+                    return;
+                // going back to level 0 wipes flash, whatever its protections.
+                Arrays.fill(mFlash, (byte) 0xff);
+                mDeviceTime += mMassEraseTime;
+                mReadProtected = false;
+                reply(ACK);
+                reboot();
+                break;
+
+            default:
+                reply(NACK);
+                break;
+        }
+    }
+
+    /* commands touching memory are refused while it is read protected. */
+    private void next(byte code, int state) {
+        if (mReadProtected) {
+            reply(NACK);
+            return;
+        }
+        if (!accept())
+            return;
+        mCommand = code;
+        mState = state;
+    }
+
+    private byte[] getCommands() {
+        byte[] commands = {
+                CMD_GET, CMD_GET_VERSION, CMD_GET_ID, CMD_READ, CMD_GO, CMD_WRITE,
+                mExtendedErase ? CMD_EXTENDED_ERASE : CMD_ERASE,
+                CMD_WRITE_PROTECT, CMD_WRITE_UNPROTECT, CMD_READOUT_PROTECT, CMD_READOUT_UNPROTECT,
+                CMD_GET_CHECKSUM
+        };
+        return mGetChecksum ? commands : Arrays.copyOf(commands, commands.length - 1);
+    }
+
+    private void address() {
+        int address = getInt(0);
+
+        mState = STATE_COMMAND;
+        if (checksum(0, 4) != mIn[4]) {
+            reply(NACK);
+            return;
+        }
+
+        boolean valid;
+        int state;
+        switch (mCommand) {
+            case CMD_READ:
+                valid = isReadable(address, 1);
+                state = STATE_READ_LENGTH;
+                break;
+            case CMD_WRITE:
+                valid = isWritable(address, 1);
+                state = STATE_WRITE_DATA;
+                break;
+            case CMD_GET_CHECKSUM:
+                valid = isFlash(address, 4);
+                state = STATE_CHECKSUM_LENGTH;
+                break;
+            default:
+                valid = isFlash(address, 1) || isRam(address, 1);
+                state = STATE_RUNNING;
+                break;
+        }
+
+        if (!valid) {
+            reply(NACK);
+            return;
+        }
+        if (!accept())
+            return;
+
+        mAddress = address;
+        mState = state;
+    }
+
+    private void readMemory() {
+        int len = (mIn[0] & 0xff) + 1;
+
+        mState = STATE_COMMAND;
+        if ((byte) ~mIn[0] != mIn[1] || !isReadable(mAddress, len)) {
+            reply(NACK);
+            return;
+        }
+        if (!accept())
+            return;
+
+        for (int i = 0; i < len; i++)
+            reply(peek(mAddress + i));
+    }
+
+    /* flash is programmed by clearing bits: a word needing an erase is refused,
+     * and so is a protected sector. */
+    private void writeMemory() {
+        int len = (mIn[0] & 0xff) + 1;
+
+        mState = STATE_COMMAND;
+        if (checksum(0, len + 1) != mIn[len + 1] || (mAddress & 0x3) != 0 || !isWritable(mAddress, len)) {
+            reply(NACK);
+            return;
+        }
+
+        if (isFlash(mAddress, len)) {
+            int offset = mAddress - mInfo.getFlashStart();
+            for (int i = 0; i < len; i++) {
+                if ((mFlash[offset + i] & mIn[1 + i]) != mIn[1 + i]) {
+                    reply(NACK);
+                    return;
+                }
+            }
+            if (injectNack())
+                return;
+            for (int i = 0; i < len; i++)
+                mFlash[offset + i] = mIn[1 + i];
+            mDeviceTime += mWriteTime * ((len + 3) / 4);
+        } else {
+            if (injectNack())
+                return;
+            System.arraycopy(mIn, 1, mRam, mAddress - RAM_BASE, len);
+        }
+
+        reply(ACK);
+    }
+
+    private void getChecksum() {
+        int len = getInt(0) * 4;
+
+        mState = STATE_COMMAND;
+        if (checksum(0, 4) != mIn[4] || len <= 0 || !isFlash(mAddress, len)) {
+            reply(NACK);
+            return;
+        }
+        if (!accept())
+            return;
+
+        int crc = STM32Crc.compute(mFlash, mAddress - mInfo.getFlashStart(), len);
+        reply((byte) (crc >> 24));
+        reply((byte) (crc >> 16));
+        reply((byte) (crc >> 8));
+        reply((byte) crc);
+        reply((byte) ((crc >> 24) ^ (crc >> 16) ^ (crc >> 8) ^ crc));
+    }
+
+    private void erase() {
+        int n = mIn[0] & 0xff;
+
+        mState = STATE_COMMAND;
+        if (n == 0xff) {
+            if (mIn[1] != 0)
+                reply(NACK);
+            else
+                massErase(0, mInfo.getPageCount());
+            return;
+        }
+
+        int count = n + 1;
+        if (checksum(0, count + 1) != mIn[count + 1]) {
+            reply(NACK);
+            return;
+        }
+
+        int[] pages = new int[count];
+        for (int i = 0; i < count; i++)
+            pages[i] = mIn[1 + i] & 0xff;
+        erasePages(pages);
+    }
+
+    private void extendedErase() {
+        int n = ((mIn[0] & 0xff) << 8) | (mIn[1] & 0xff);
+
+        mState = STATE_COMMAND;
+        if (n >= 0xfff0) {
+            int half = mInfo.getPageCount() / 2;
+            if (checksum(0, 2) != mIn[2])
+                reply(NACK);
+            else if (n == 0xffff)
+                massErase(0, mInfo.getPageCount());
+            else if (n == 0xfffe)
+                massErase(0, half);
+            else if (n == 0xfffd)
+                massErase(half, mInfo.getPageCount());
+            else
+                reply(NACK);
+            return;
+        }
+
+        int count = n + 1;
+        if (checksum(0, 2 + 2 * count) != mIn[2 + 2 * count]) {
+            reply(NACK);
+            return;
+        }
+
+        int[] pages = new int[count];
+        for (int i = 0; i < count; i++)
+            pages[i] = ((mIn[2 + 2 * i] & 0xff) << 8) | (mIn[3 + 2 * i] & 0xff);
+        erasePages(pages);
+    }
+
+    /* whole command is refused if any page is out of flash or protected. */
+    private void erasePages(int[] pages) {
+        for (int page : pages) {
+            if (page >= mInfo.getPageCount() || isWriteProtected(page)) {
+                reply(NACK);
+                return;
+            }
+        }
+        if (injectNack())
+            return;
+
+        for (int page : pages)
+            erasePage(page);
+        mDeviceTime += mPageEraseTime * pages.length;
+        reply(ACK);
+    }
+
+    private void massErase(int startPage, int endPage) {
+        if (mInfo.hasFlag(STM32DevInfo.flags_t.F_NO_ME)) {
+            reply(NACK);
+            return;
+        }
+        for (int page = startPage; page < endPage; page++) {
+            if (isWriteProtected(page)) {
+                reply(NACK);
+                return;
+            }
+        }
+        if (injectNack())
+            return;
+
+        for (int page = startPage; page < endPage; page++)
+            erasePage(page);
+        mDeviceTime += mMassEraseTime;
+        reply(ACK);
+    }
+
+    private void erasePage(int page) {
+        int offset = mInfo.getPageAddress(page) - mInfo.getFlashStart();
+        Arrays.fill(mFlash, offset, offset + mInfo.getPageSize(page), (byte) 0xff);
+    }
+
+    /* device resets once its option bytes are written. */
+    private void writeProtect() {
+        int count = (mIn[0] & 0xff) + 1;
+
+        mState = STATE_COMMAND;
+        if (checksum(0, count + 1) != mIn[count + 1]) {
+            reply(NACK);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if ((mIn[1 + i] & 0xff) >= mWriteProtected.length) {
+                reply(NACK);
+                return;
+            }
+        }
+        if (injectNack())
+            return;
+
+        for (int i = 0; i < count; i++)
+            mWriteProtected[mIn[1 + i] & 0xff] = true;
+        reply(ACK);
+        reboot();
+    }
+
+    private boolean isWriteProtected(int page) {
+        return mWriteProtected[mInfo.getSector(page)];
+    }
+
+    private boolean isFlash(int address, int len) {
+        return contains(mInfo.getFlashStart(), mFlash.length, address, len);
+    }
+
+    private boolean isRam(int address, int len) {
+        return contains(RAM_BASE, mRam.length, address, len);
+    }
+
+    private boolean isUid(int address, int len) {
+        return mInfo.getUidAddress() != 0 && contains(mInfo.getUidAddress(), UID_SIZE, address, len);
+    }
+
+    private boolean isReadable(int address, int len) {
+        return isFlash(address, len) || isRam(address, len) || isUid(address, len) ||
+                contains(mInfo.getSystemMemoryStart(), mSystemMemory.length, address, len) ||
+                contains(mInfo.getOptionStart(), mOptionBytes.length, address, len);
+    }
+
+    /* ram below getRamStart() belongs to bootloader. */
+    private boolean isWritable(int address, int len) {
+        return isFlash(address, len) || (isRam(address, len) && contains(mInfo.getRamStart(), RAM_BASE + mRam.length - mInfo.getRamStart(), address, len));
+    }
+
+    private static boolean contains(int start, int size, int address, int len) {
+        long offset = (address & 0xffffffffL) - (start & 0xffffffffL);
+        return offset >= 0 && offset + len <= size;
+    }
+
+    private byte peek(int address) {
+        if (isFlash(address, 1))
+            return mFlash[address - mInfo.getFlashStart()];
+        if (isRam(address, 1))
+            return mRam[address - RAM_BASE];
+        if (isUid(address, 1))
+            return mUid[address - mInfo.getUidAddress()];
+        if (contains(mInfo.getSystemMemoryStart(), mSystemMemory.length, address, 1))
+            return mSystemMemory[address - mInfo.getSystemMemoryStart()];
+        return mOptionBytes[address - mInfo.getOptionStart()];
+    }
+
+    private int getInt(int off) {
+        return ((mIn[off] & 0xff) << 24) | ((mIn[off + 1] & 0xff) << 16) | ((mIn[off + 2] & 0xff) << 8) | (mIn[off + 3] & 0xff);
+    }
+
+    private byte checksum(int off, int len) {
+        byte checksum = 0;
+        for (int i = off; i < off + len; i++)
+            checksum ^= mIn[i];
+        return checksum;
+    }
+
+    /* acks a valid command or frame, unless a nack gets injected. */
+    private boolean accept() {
+        if (injectNack())
+            return false;
+        reply(ACK);
+        return true;
+    }
+
+    /* frames changing memory get their single ack once done. */
+    private boolean injectNack() {
+        if (mNackRate > 0 && mRandom.nextDouble() < mNackRate) {
+            mFaults++;
+            mState = STATE_COMMAND;
+            reply(NACK);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean lost() {
+        if (mDropRate > 0 && mRandom.nextDouble() < mDropRate) {
+            mFaults++;
+            return true;
+        }
+        return false;
+    }
+
+    /* back to bootloader entry, waiting for init. */
+    private void reboot() {
+        mState = STATE_INIT;
+        mInLength = 0;
+        mDeviceBaudRate = -1;
+    }
+
+    private void reply(byte b) {
+        mDeviceLineFree = Math.max(mDeviceLineFree, mDeviceTime) + mByteTime;
+        if (lost())
+            return;
+
+        if (mOutEnd == mOut.length) {
+            int len = mOutEnd - mOutStart;
+            if (len * 2 > mOut.length) {
+                mOut = Arrays.copyOf(mOut, mOut.length * 2);
+                mOutTime = Arrays.copyOf(mOutTime, mOutTime.length * 2);
+            }
+            System.arraycopy(mOut, mOutStart, mOut, 0, len);
+            System.arraycopy(mOutTime, mOutStart, mOutTime, 0, len);
+            mOutStart = 0;
+            mOutEnd = len;
+        }
+
+        mOut[mOutEnd] = b;
+        mOutTime[mOutEnd++] = mDeviceLineFree;
+    }
+
+    private void consume(int len) {
+        if (len > 0)
+            mClock = Math.max(mClock, mOutTime[mOutStart + len - 1]);
+        mOutStart += len;
+        if (mOutStart == mOutEnd)
+            mOutStart = mOutEnd = 0;
+    }
+
+    private long now() {
+        return mRealTime ? Math.max(mClock, System.nanoTime() - mEpoch) : mClock;
+    }
+
+    private void pause(long nanos) throws InterruptedIOException {
+        try {
+            wait(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("emulator: interrupted while reading");
+        }
+    }
+
+    private static long byteTime(int baudRate) {
+        return BITS_PER_BYTE * 1000000000L / baudRate;
+    }
+}
@@ -0,0 +1,111 @@
+package org.stm32flash;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* double buffered writer to a channel: while one buffer is filled by caller, the
+ * other one is written on a background thread, so that a slow channel and a slow
+ * device overlap instead of adding up. memory used is two buffers whatever the
+ * amount of data. used by one thread at a time. */
+class STM32ChannelWriter {
+    private static final AtomicInteger mThreadCount = new AtomicInteger();
+
+    private static final ExecutorService mDefaultExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "stm32-writer-" + mThreadCount.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final WritableByteChannel mChannel;
+    private final byte[][] mBuffers;
+    private final Future<?>[] mPending = new Future<?>[2];
+    private int mCurrent = 0;
+    private int mPosition = 0;
+
+    STM32ChannelWriter(WritableByteChannel channel, int bufferSize) {
+        mChannel = channel;
+        mBuffers = new byte[][] { new byte[bufferSize], new byte[bufferSize] };
+    }
+
+    /* buffer to fill, from getPosition() up to getRemaining() bytes. */
+    byte[] getBuffer() {
+        return mBuffers[mCurrent];
+    }
+
+    int getPosition() {
+        return mPosition;
+    }
+
+    int getRemaining() {
+        return mBuffers[mCurrent].length - mPosition;
+    }
+
+    /* len bytes were filled in, buffer gets written once full. */
+    void advance(int len) throws IOException {
+        mPosition += len;
+        if (mPosition == mBuffers[mCurrent].length)
+            submit();
+    }
+
+    /* write what was filled so far and wait until all of it is written. */
+    void flush() throws IOException {
+        if (mPosition > 0)
+            submit();
+        await(1 - mCurrent);
+    }
+
+    /* drop what was not submitted, and wait for writes in flight - their errors are
+     * ignored: meant for an already failing caller. */
+    void discard() {
+        mPosition = 0;
+        for (int i = 0; i < mPending.length; i++) {
+            try {
+                await(i);
+            } catch (IOException e) {
+                // caller is failing on its own.
+            }
+        }
+    }
+
+    /* hand current buffer to background thread once previous one is written - one
+     * write at a time keeps them in order - and fill the other one meanwhile. */
+    private void submit() throws IOException {
+        await(1 - mCurrent);
+
+        ByteBuffer data = ByteBuffer.wrap(mBuffers[mCurrent], 0, mPosition);
+        mPending[mCurrent] = mDefaultExecutor.submit(() -> {
+            while (data.hasRemaining())
+                mChannel.write(data);
+            return null;
+        });
+
+        mCurrent = 1 - mCurrent;
+        mPosition = 0;
+    }
+
+    private void await(int buffer) throws IOException {
+        Future<?> pending = mPending[buffer];
+        if (pending == null)
+            return;
+
+        mPending[buffer] = null;
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            pending.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.stm32flash;
+
+/* snapshot of one command metrics. latencies in us, from command sent to its
+ * last ack or byte, for completed commands only - percentiles are bucket upper
+ * bounds, so within a factor 2. */
+public final class STM32CommandMetrics {
+    private final String mCommand;
+    private final long mCount;
+    private final long mErrors;
+    private final long mBytes;
+    private final long mTotalTime;
+    private final long mP50Latency;
+    private final long mP99Latency;
+    private final long mMaxLatency;
+
+    STM32CommandMetrics(String command, long count, long errors, long bytes, long totalTime, long p50Latency, long p99Latency, long maxLatency) {
+        mCommand = command;
+        mCount = count;
+        mErrors = errors;
+        mBytes = bytes;
+        mTotalTime = totalTime;
+        mP50Latency = p50Latency;
+        mP99Latency = p99Latency;
+        mMaxLatency = maxLatency;
+    }
+
+    public String getCommand() {
+        return mCommand;
+    }
+
+    /* completed commands. */
+    public long getCount() {
+        return mCount;
+    }
+
+    /* commands that got a NACK, garbage or a timeout, or were left unfinished. */
+    public long getErrors() {
+        return mErrors;
+    }
+
+    /* bytes read, written or checksummed by completed commands. */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public long getTotalTime() {
+        return mTotalTime;
+    }
+
+    public long getMeanLatency() {
+        return mCount > 0 ? mTotalTime / mCount : 0;
+    }
+
+    public long getP50Latency() {
+        return mP50Latency;
+    }
+
+    public long getP99Latency() {
+        return mP99Latency;
+    }
+
+    public long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    /* bytes/s while command was running, 0 if it carries no data. */
+    public double getThroughput() {
+        return mTotalTime > 0 ? mBytes * 1000000.0 / mTotalTime : 0;
+    }
+
+    @Override
+    public String toString() {
+        return mCommand + " {" +
+                "Count=" + mCount +
+                ", Errors=" + mErrors +
+                ", Bytes=" + mBytes +
+                ", Mean=" + getMeanLatency() + "us" +
+                ", P50=" + mP50Latency + "us" +
+                ", P99=" + mP99Latency + "us" +
+                ", Max=" + mMaxLatency + "us" +
+                (mBytes > 0 ? ", Throughput=" + (long) getThroughput() + "B/s" : "") +
+                '}';
+    }
+}
@@ -0,0 +1,41 @@
+package org.stm32flash;
+
+/* CRC as computed by STM32 CRC peripheral, and so by bootloader Get Checksum
+ * command: CRC-32 polynomial 0x04C11DB7, initial value 0xffffffff, no reflection
+ * and no final xor, fed with little endian 32bit words. */
+public final class STM32Crc {
+    public static final int INITIAL = 0xffffffff;
+
+    private static final int POLYNOMIAL = 0x04C11DB7;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i << 24;
+            for (int j = 0; j < 8; j++)
+                c = (c & 0x80000000) != 0 ? (c << 1) ^ POLYNOMIAL : c << 1;
+            TABLE[i] = c;
+        }
+    }
+
+    private STM32Crc() {
+    }
+
+    /* update crc with len bytes of b - a trailing incomplete word is padded
+     * with 0xff, as erased flash would read. */
+    public static int update(int crc, byte[] b, int offset, int len) {
+        int end = offset + len;
+
+        for (int i = offset; i < end; i += 4) {
+            for (int j = 3; j >= 0; j--) {
+                int v = i + j < end ? b[i + j] & 0xff : 0xff;
+                crc = (crc << 8) ^ TABLE[((crc >>> 24) ^ v) & 0xff];
+            }
+        }
+        return crc;
+    }
+
+    public static int compute(byte[] b, int offset, int len) {
+        return update(INITIAL, b, offset, len);
+    }
+}
@@ -1,9 +1,11 @@
 package org.stm32flash;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
-public class STM32DevInfo implements Cloneable {
+/* immutable: a single instance is shared by all devices with that id. */
+public class STM32DevInfo {
     static final int SZ_128 = 0x00000080;
     static final int SZ_256 = 0x00000100;
     static final int SZ_1K = 0x00000400;
@@ -48,6 +50,7 @@ public class STM32DevInfo implements Cloneable {
                 ", OptionEnd=0x" + Integer.toHexString(mOptionEnd) +
                 ", MemStart=0x" + Integer.toHexString(mMemStart) +
                 ", MemEnd=0x" + Integer.toHexString(mMemEnd)+
+                ", UidAddress=0x" + Integer.toHexString(mUidAddress) +
                 ", Flags=" + mFlags +
                 '}';
     }
@@ -56,8 +59,10 @@ public class STM32DevInfo implements Cloneable {
         return mFlashEnd - mFlashStart;
     }
 
-    public void setFlashSize(Integer flashSize) {
-        mFlashEnd = mFlashStart + flashSize;
+    /* same device, with a flash of flashSize bytes. */
+    public STM32DevInfo withFlashSize(int flashSize) {
+        return new STM32DevInfo(mId, mName, mRamStart, mRamEnd, mFlashStart, mFlashStart + flashSize, mPagesPerSector, mPageSize,
+                mOptionStart, mOptionEnd, mMemStart, mMemEnd, mFlags, mUidAddress);
     }
 
     public int getRamSize() {
@@ -68,18 +73,91 @@ public class STM32DevInfo implements Cloneable {
         return mFlashStart;
     }
 
+    /* first ram byte free for bootloader users, ram itself starts at 0x20000000. */
     public int getRamStart() {
         return mRamStart;
     }
 
+    public int getRamEnd() {
+        return mRamEnd;
+    }
+
+    public int getOptionStart() {
+        return mOptionStart;
+    }
+
+    /* option end in device table is its last byte. */
+    public int getOptionSize() {
+        return mOptionEnd - mOptionStart + 1;
+    }
+
+    /* system memory, holding bootloader. */
+    public int getSystemMemoryStart() {
+        return mMemStart;
+    }
+
+    public int getSystemMemorySize() {
+        return mMemEnd - mMemStart;
+    }
+
     public int[] getPagesSize() {
         return mPageSize;
     }
 
+    /* address of 96bit unique device id, 0 if unknown. */
+    public int getUidAddress() {
+        return mUidAddress;
+    }
+
     public int getPagesPerSector() {
         return mPagesPerSector;
     }
 
+    public int getPageCount() {
+        return mPageIndex.length - 1;
+    }
+
+    /* page holding address, -1 if address is out of flash. */
+    public int getPage(int address) {
+        if (address < mFlashStart || address >= mFlashEnd)
+            return -1;
+
+        int page = Arrays.binarySearch(mPageIndex, address);
+        return page >= 0 ? page : -page - 2;
+    }
+
+    public int getPageAddress(int page) {
+        return mPageIndex[page];
+    }
+
+    public int getPageSize(int page) {
+        return mPageIndex[page + 1] - mPageIndex[page];
+    }
+
+    /* write protection works on sectors, grouping getPagesPerSector() pages. */
+    public int getSector(int page) {
+        return page / mPagesPerSector;
+    }
+
+    /* start address of each page, followed by end of flash: page sizes are listed
+     * from start of flash, the last one repeating up to its end. */
+    private int[] buildPageIndex() {
+        int count = 0;
+        for (long address = mFlashStart; address < mFlashEnd; count++)
+            address += mPageSize[Math.min(count, mPageSize.length - 1)];
+
+        int[] index = new int[count + 1];
+        int address = mFlashStart;
+        for (int i = 0; i < count; i++) {
+            index[i] = address;
+            address += mPageSize[Math.min(i, mPageSize.length - 1)];
+        }
+        // a last incomplete page ends with flash.
+        index[count] = mFlashEnd;
+
+        return index;
+    }
+
     public String getName() {
         return mName;
     }
@@ -99,18 +177,24 @@ public class STM32DevInfo implements Cloneable {
     private final int mId;
     private final String mName;
     private final int mRamStart;
-    private int mRamEnd;
+    private final int mRamEnd;
     private final int mFlashStart;
-    private int mFlashEnd;
+    private final int mFlashEnd;
     private final int mPagesPerSector;
     private final int[] mPageSize;
     private final int mOptionStart;
     private final int mOptionEnd;
     private final int mMemStart;
     private final int mMemEnd;
-    private final List mFlags;
+    private final List<flags_t> mFlags;
+    private final int mUidAddress;
+    private final int[] mPageIndex;
 
-    public STM32DevInfo(int id, String name, int ramStart, int ramEnd, int flashStart, int flashEnd, int pagesPerSector, int[] pageSize, int optionStart, int optionEnd, int memStart, int memEnd, List flags) {
+    public STM32DevInfo(int id, String name, int ramStart, int ramEnd, int flashStart, int flashEnd, int pagesPerSector, int[] pageSize, int optionStart, int optionEnd, int memStart, int memEnd, List<flags_t> flags) {
+        this(id, name, ramStart, ramEnd, flashStart, flashEnd, pagesPerSector, pageSize, optionStart, optionEnd, memStart, memEnd, flags, 0);
+    }
+
+    public STM32DevInfo(int id, String name, int ramStart, int ramEnd, int flashStart, int flashEnd, int pagesPerSector, int[] pageSize, int optionStart, int optionEnd, int memStart, int memEnd, List<flags_t> flags, int uidAddress) {
         mId = id;
         mName = name;
         mRamStart = ramStart;
@@ -123,10 +207,8 @@ public class STM32DevInfo implements Cloneable {
         mOptionEnd = optionEnd;
         mMemStart = memStart;
         mMemEnd = memEnd;
-        mFlags = flags;
-    }
-
-    public Object clone() throws CloneNotSupportedException {
-        return super.clone();
+        mFlags = flags != null ? Collections.unmodifiableList(flags) : null;
+        mUidAddress = uidAddress;
+        mPageIndex = buildPageIndex();
     }
 }
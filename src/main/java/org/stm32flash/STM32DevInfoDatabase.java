@@ -0,0 +1,172 @@
+package org.stm32flash;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/* devices known to the bootloader, indexed by product id. built-in table is read
+ * from devices.txt resource on first lookup, entries can be added or overridden
+ * at runtime from files in the same format. */
+public final class STM32DevInfoDatabase {
+    private static final String RESOURCE = "devices.txt";
+
+    // product ids are 12bit.
+    private static final int ID_COUNT = 0x1000;
+
+    // replaced as a whole on updates, so that lookups need no locking.
+    private static volatile STM32DevInfo[] mTable;
+
+    private STM32DevInfoDatabase() {
+    }
+
+    /* device with product id, null if unknown. */
+    public static STM32DevInfo get(int id) {
+        if (id < 0 || id >= ID_COUNT)
+            return null;
+        return getTable()[id];
+    }
+
+    /* add device, replacing any known one with the same id. */
+    public static void register(STM32DevInfo info) {
+        List<STM32DevInfo> l = new ArrayList<>();
+        l.add(info);
+        register(l);
+    }
+
+    /* add devices listed in file, replacing known ones with the same id - returns
+     * number of devices read. */
+    public static int load(String path) throws IOException {
+        try (InputStream is = new FileInputStream(path)) {
+            List<STM32DevInfo> devices = parse(is, path);
+            register(devices);
+            return devices.size();
+        }
+    }
+
+    private static synchronized void register(List<STM32DevInfo> devices) {
+        for (STM32DevInfo info : devices) {
+            if (info.getId() < 0 || info.getId() >= ID_COUNT)
+                throw new IllegalArgumentException("invalid device id 0x" + Integer.toHexString(info.getId()));
+        }
+
+        STM32DevInfo[] table = getTable().clone();
+        for (STM32DevInfo info : devices)
+            table[info.getId()] = info;
+        mTable = table;
+    }
+
+    private static STM32DevInfo[] getTable() {
+        STM32DevInfo[] table = mTable;
+        if (table != null)
+            return table;
+
+        synchronized (STM32DevInfoDatabase.class) {
+            if (mTable == null) {
+                table = new STM32DevInfo[ID_COUNT];
+                try (InputStream is = STM32DevInfoDatabase.class.getResourceAsStream(RESOURCE)) {
+                    if (is == null)
+                        throw new IOException("missing " + RESOURCE + " resource");
+                    for (STM32DevInfo info : parse(is, RESOURCE))
+                        table[info.getId()] = info;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                mTable = table;
+            }
+            return mTable;
+        }
+    }
+
+    private static List<STM32DevInfo> parse(InputStream is, String what) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        List<STM32DevInfo> devices = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+
+            int comment = line.indexOf('#');
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            if (line.trim().isEmpty())
+                continue;
+
+            try {
+                devices.add(parseDevice(line));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(what + ":" + lineNumber + ": " + e.getMessage());
+            }
+        }
+
+        return devices;
+    }
+
+    private static STM32DevInfo parseDevice(String line) {
+        String[] f = line.split(";", -1);
+        if (f.length != 13 && f.length != 14)
+            throw new IllegalArgumentException("expected 13 or 14 fields, got " + f.length);
+
+        int id = parseInt(f[0]);
+        if (id < 0 || id >= ID_COUNT)
+            throw new IllegalArgumentException("invalid device id " + f[0].trim());
+
+        return new STM32DevInfo(id, f[1].trim(), parseInt(f[2]), parseInt(f[3]), parseInt(f[4]), parseInt(f[5]),
+                parseInt(f[6]), parsePageSizes(f[7]), parseInt(f[8]), parseInt(f[9]), parseInt(f[10]), parseInt(f[11]),
+                parseFlags(f[12]), f.length > 13 && !f[13].trim().isEmpty() ? parseInt(f[13]) : 0);
+    }
+
+    private static int parseInt(String s) {
+        s = s.trim();
+        try {
+            if (s.startsWith("0x") || s.startsWith("0X"))
+                return (int) Long.parseLong(s.substring(2), 16);
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid number '" + s + "'");
+        }
+    }
+
+    private static int[] parsePageSizes(String s) {
+        switch (s.trim()) {
+            case "p_128": return STM32DevInfo.p_128;
+            case "p_256": return STM32DevInfo.p_256;
+            case "p_1k": return STM32DevInfo.p_1k;
+            case "p_2k": return STM32DevInfo.p_2k;
+            case "f2f4": return STM32DevInfo.f2f4;
+            case "f4db": return STM32DevInfo.f4db;
+            case "f7": return STM32DevInfo.f7;
+        }
+
+        String[] sizes = s.split(",");
+        int[] pageSize = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            String size = sizes[i].trim().toLowerCase();
+            pageSize[i] = size.endsWith("k") ? parseInt(size.substring(0, size.length() - 1)) * 1024 : parseInt(size);
+            if (pageSize[i] <= 0)
+                throw new IllegalArgumentException("invalid page size '" + sizes[i].trim() + "'");
+        }
+        return pageSize;
+    }
+
+    private static List<STM32DevInfo.flags_t> parseFlags(String s) {
+        List<STM32DevInfo.flags_t> flags = new ArrayList<>();
+
+        for (String flag : s.split(",")) {
+            if (flag.trim().isEmpty())
+                continue;
+            try {
+                flags.add(STM32DevInfo.flags_t.valueOf(flag.trim()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown flag '" + flag.trim() + "'");
+            }
+        }
+        return flags.isEmpty() ? null : flags;
+    }
+}
@@ -2,13 +2,18 @@ package org.stm32flash;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeoutException;
 
+import static java.lang.Math.max;
 import static java.lang.Math.min;
 import static org.stm32flash.STM32DevInfo.flags_t.F_NO_ME;
-import static org.stm32flash.STM32DevInfo.flags_t.F_OBLL;
 
 public class STM32Device {
     private boolean mDebug = false;
@@ -21,6 +26,16 @@ public class STM32Device {
     private static final int CMD_READ_MAX_SIZE = 256;
     private static final int CMD_WRITE_MAX_SIZE = 256;
     private static final int CMD_EXTENDED_ERASE_MAX_PAGES = 256;
+    private static final int CMD_ERASE_MAX_PAGES = 256;
+    private static final int CMD_CHECKSUM_MAX_SIZE = 64 * 1024;
+    // each of the two buffers of a dump.
+    private static final int DUMP_BUFFER_SIZE = 64 * CMD_READ_MAX_SIZE;
+
+    // firmware is written and verified by regions of that many bytes at most.
+    private static final int REGION_SIZE = CMD_CHECKSUM_MAX_SIZE;
+
+    // largest frame is an extended erase page list: count, pages and checksum.
+    private static final int FRAME_MAX_SIZE = 2 + 2 * CMD_EXTENDED_ERASE_MAX_PAGES + 1;
 
     enum eraseParam {
         MASS_ERASE((byte) 0xff);
@@ -40,94 +55,33 @@ public class STM32Device {
         ExtendedEraseParam(int value) {
             this.extendedEraseParamValue = value;
         }
-
-        public byte[] getByteValue() {
-            byte b[] = new byte[2];
-            b[0] = (byte) (extendedEraseParamValue >> 8);
-            b[1] = (byte) (extendedEraseParamValue & 0xff);
-            return b;
-        }
     }
 
     private static final int READ_TIMEOUT_DEFAULT = 4 * 1000;
     private static final int ACK_TIMEOUT_DEFAULT = 10 * 1000;
     private static final int ACK_TIMEOUT_INIT = 3 * 1000;
     private static final int ACK_TIMEOUT_MASS_ERASE = 30 * 1000;
+    // acks are waited for by slices of that many ms, so that cancel() does not have
+    // to wait for a whole mass erase timeout.
+    private static final int ACK_POLL_INTERVAL = 100;
 
-    private static final STM32DevInfo mStm32DevInfoList[] = new STM32DevInfo[] {
-            /* F0 */
-            new STM32DevInfo(0x440, "STM32F030x8/F05xxx", 0x20000800, 0x20002000, 0x08000000, 0x08010000, 4, STM32DevInfo.p_1k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFEC00, 0x1FFFF800, null),
-            new STM32DevInfo(0x442, "STM32F030xC/F09xxx", 0x20001800, 0x20008000, 0x08000000, 0x08040000, 2,STM32DevInfo.p_2k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFD800, 0x1FFFF800, Arrays.asList(F_OBLL)),
-            new STM32DevInfo(0x444, "STM32F03xx4/6", 0x20000800, 0x20001000, 0x08000000, 0x08008000, 4, STM32DevInfo.p_1k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFEC00, 0x1FFFF800, null),
-            new STM32DevInfo(0x445, "STM32F04xxx/F070x6", 0x20001800, 0x20001800, 0x08000000, 0x08008000, 4, STM32DevInfo.p_1k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFC400, 0x1FFFF800, null),
-            new STM32DevInfo(0x448, "STM32F070xB/F071xx/F72xx", 0x20001800, 0x20004000, 0x08000000, 0x08020000, 2, STM32DevInfo.p_2k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFC800, 0x1FFFF800, null),
-            /* F1 */
-            new STM32DevInfo(0x412, "STM32F10xxx Low-density", 0x20000200, 0x20002800, 0x08000000, 0x08008000, 4, STM32DevInfo.p_1k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFF000, 0x1FFFF800, null),
-            new STM32DevInfo(0x410, "STM32F10xxx Medium-density", 0x20000200, 0x20005000, 0x08000000, 0x08020000, 4, STM32DevInfo.p_1k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFF000, 0x1FFFF800, null),
-            new STM32DevInfo(0x414, "STM32F10xxx High-density", 0x20000200, 0x20010000, 0x08000000, 0x08080000, 2, STM32DevInfo.p_2k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFF000, 0x1FFFF800, null),
-            new STM32DevInfo(0x420, "STM32F10xxx Medium-density VL", 0x20000200, 0x20002000, 0x08000000, 0x08020000, 4, STM32DevInfo.p_1k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFF000, 0x1FFFF800, null),
-            new STM32DevInfo(0x428, "STM32F10xxx High-density VL", 0x20000200, 0x20008000, 0x08000000, 0x08080000, 2, STM32DevInfo.p_2k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFF000, 0x1FFFF800, null),
-            new STM32DevInfo(0x418, "STM32F105xx/F107xx", 0x20001000, 0x20010000, 0x08000000, 0x08040000, 2, STM32DevInfo.p_2k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFB000, 0x1FFFF800, null),
-            new STM32DevInfo(0x430, "STM32F10xxx XL-density", 0x20000800, 0x20018000, 0x08000000, 0x08100000, 2, STM32DevInfo.p_2k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFE000, 0x1FFFF800, null),
-            /* F2 */
-            new STM32DevInfo(0x411, "STM32F2xxxx", 0x20002000, 0x20020000, 0x08000000, 0x08100000, 1, STM32DevInfo.f2f4, 0x1FFFC000, 0x1FFFC00F, 0x1FFF0000, 0x1FFF7800, null),
-            /* F3 */
-            new STM32DevInfo(0x432, "STM32F373xx/F378xx", 0x20001400, 0x20008000, 0x08000000, 0x08040000, 2, STM32DevInfo.p_2k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFD800, 0x1FFFF800, null),
-            new STM32DevInfo(0x422, "STM32F302xB(C)/F303xB(C)/F358xx", 0x20001400, 0x2000A000, 0x08000000, 0x08040000, 2, STM32DevInfo.p_2k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFD800, 0x1FFFF800, null),
-            new STM32DevInfo(0x439, "STM32F301xx/F302x4(6/8)/F318xx", 0x20001800, 0x20004000, 0x08000000, 0x08010000, 2, STM32DevInfo.p_2k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFD800, 0x1FFFF800, null),
-            new STM32DevInfo(0x438, "STM32F303x4(6/8)/F334xx/F328xx", 0x20001800, 0x20003000, 0x08000000, 0x08010000, 2, STM32DevInfo.p_2k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFD800, 0x1FFFF800, null),
-            new STM32DevInfo(0x446, "STM32F302xD(E)/F303xD(E)/F398xx", 0x20001800, 0x20010000, 0x08000000, 0x08080000, 2, STM32DevInfo.p_2k, 0x1FFFF800, 0x1FFFF80F, 0x1FFFD800, 0x1FFFF800, null),
-            /* F4 */
-            new STM32DevInfo(0x413, "STM32F40xxx/41xxx", 0x20003000, 0x20020000, 0x08000000, 0x08100000, 1, STM32DevInfo.f2f4, 0x1FFFC000, 0x1FFFC00F, 0x1FFF0000, 0x1FFF7800, null),
-            new STM32DevInfo(0x419, "STM32F42xxx/43xxx", 0x20003000, 0x20030000, 0x08000000, 0x08200000, 1, STM32DevInfo.f4db, 0x1FFEC000, 0x1FFFC00F, 0x1FFF0000, 0x1FFF7800, null),
-            new STM32DevInfo(0x423, "STM32F401xB(C)", 0x20003000, 0x20010000, 0x08000000, 0x08040000, 1, STM32DevInfo.f2f4, 0x1FFFC000, 0x1FFFC00F, 0x1FFF0000, 0x1FFF7800, null),
-            new STM32DevInfo(0x433, "STM32F401xD(E)", 0x20003000, 0x20018000, 0x08000000, 0x08080000, 1, STM32DevInfo.f2f4, 0x1FFFC000, 0x1FFFC00F, 0x1FFF0000, 0x1FFF7800, null),
-            new STM32DevInfo(0x458, "STM32F410xx", 0x20003000, 0x20008000, 0x08000000, 0x08020000, 1, STM32DevInfo.f2f4, 0x1FFFC000, 0x1FFFC00F, 0x1FFF0000, 0x1FFF7800, null),
-            new STM32DevInfo(0x431, "STM32F411xx", 0x20003000, 0x20020000, 0x08000000, 0x08080000, 1, STM32DevInfo.f2f4, 0x1FFFC000, 0x1FFFC00F, 0x1FFF0000, 0x1FFF7800, null),
-            new STM32DevInfo(0x441, "STM32F412xx", 0x20003000, 0x20040000, 0x08000000, 0x08100000, 1, STM32DevInfo.f2f4, 0x1FFFC000, 0x1FFFC00F, 0x1FFF0000, 0x1FFF7800, null),
-            new STM32DevInfo(0x421, "STM32F446xx", 0x20003000, 0x20020000, 0x08000000, 0x08080000, 1, STM32DevInfo.f2f4, 0x1FFFC000, 0x1FFFC00F, 0x1FFF0000, 0x1FFF7800, null),
-            new STM32DevInfo(0x434, "STM32F469xx/479xx", 0x20003000, 0x20060000, 0x08000000, 0x08200000, 1, STM32DevInfo.f4db, 0x1FFEC000, 0x1FFFC00F, 0x1FFF0000, 0x1FFF7800, null),
-            new STM32DevInfo(0x463, "STM32F413xx/423xx", 0x20003000, 0x20050000, 0x08000000, 0x08180000, 1, STM32DevInfo.f2f4, 0x1FFFC000, 0x1FFFC00F, 0x1FFF0000, 0x1FFF7800, null),
-            /* F7 */
-            new STM32DevInfo(0x452, "STM32F72xxx/73xxx", 0x20004000, 0x20040000, 0x08000000, 0x08080000, 1, STM32DevInfo.f2f4, 0x1FFF0000, 0x1FFF001F, 0x1FF00000, 0x1FF0EDC0, null),
-            new STM32DevInfo(0x449, "STM32F74xxx/75xxx", 0x20004000, 0x20050000, 0x08000000, 0x08100000, 1, STM32DevInfo.f7, 0x1FFF0000, 0x1FFF001F, 0x1FF00000, 0x1FF0EDC0, null),
-            new STM32DevInfo(0x451, "STM32F76xxx/77xxx", 0x20004000, 0x20080000, 0x08000000, 0x08200000, 1, STM32DevInfo.f7, 0x1FFF0000, 0x1FFF001F, 0x1FF00000, 0x1FF0EDC0, null),
-            /* L0 */
-            new STM32DevInfo(0x425, "STM32L031xx/041xx" , 0x20001000, 0x20002000, 0x08000000, 0x08008000, 32, STM32DevInfo.p_128 , 0x1FF80000, 0x1FF8001F, 0x1FF00000, 0x1FF01000, null),
-            new STM32DevInfo(0x417, "STM32L05xxx/06xxx" , 0x20001000, 0x20002000, 0x08000000, 0x08010000, 32, STM32DevInfo.p_128 , 0x1FF80000, 0x1FF8001F, 0x1FF00000, 0x1FF01000, null),
-            new STM32DevInfo(0x447, "STM32L07xxx/08xxx" , 0x20002000, 0x20005000, 0x08000000, 0x08030000, 32, STM32DevInfo.p_128 , 0x1FF80000, 0x1FF8001F, 0x1FF00000, 0x1FF02000,  Arrays.asList(F_NO_ME)),
-            /* L1 */
-            new STM32DevInfo(0x416, "STM32L1xxx6(8/B)" , 0x20000800, 0x20004000, 0x08000000, 0x08020000, 16, STM32DevInfo.p_256 , 0x1FF80000, 0x1FF8001F, 0x1FF00000, 0x1FF01000, Arrays.asList(F_NO_ME)),
-            new STM32DevInfo(0x429, "STM32L1xxx6(8/B)A" , 0x20001000, 0x20008000, 0x08000000, 0x08020000, 16, STM32DevInfo.p_256 , 0x1FF80000, 0x1FF8001F, 0x1FF00000, 0x1FF01000, null),
-            new STM32DevInfo(0x427, "STM32L1xxxC" , 0x20001000, 0x20008000, 0x08000000, 0x08040000, 16, STM32DevInfo.p_256 , 0x1FF80000, 0x1FF8001F, 0x1FF00000, 0x1FF02000, Arrays.asList(F_NO_ME)),
-            new STM32DevInfo(0x436, "STM32L1xxxD" , 0x20001000, 0x2000C000, 0x08000000, 0x08060000, 16, STM32DevInfo.p_256 , 0x1FF80000, 0x1FF8009F, 0x1FF00000, 0x1FF02000, null),
-            new STM32DevInfo(0x437, "STM32L1xxxE" , 0x20001000, 0x20014000, 0x08000000, 0x08080000, 16, STM32DevInfo.p_256 , 0x1FF80000, 0x1FF8009F, 0x1FF00000, 0x1FF02000, Arrays.asList(F_NO_ME)),
-            /* L4 */
-            new STM32DevInfo(0x415, "STM32L476xx/486xx" , 0x20003100, 0x20018000, 0x08000000, 0x08100000,  1, STM32DevInfo.p_2k  , 0x1FFF7800, 0x1FFFF80F, 0x1FFF0000, 0x1FFF7000, null),
-            /* G0 */
-            new STM32DevInfo(0x466, "STM32G03xxx/04xxx" , 0x20001000, 0x20009000, 0x08000000, 0x08020000,  1, STM32DevInfo.p_2k  , 0x1FFF7800, 0x1FFFF80F, 0x1FFF0000, 0x1FFF7000, null),
-            new STM32DevInfo(0x460, "STM32G07xxx/08xxx"  , 0x20001000, 0x20009000, 0x08000000, 0x08020000,  1, STM32DevInfo.p_2k  , 0x1FFF7800, 0x1FFFF80F, 0x1FFF0000, 0x1FFF7000, null),
-            /* G4 */
-            new STM32DevInfo(0x468, "STM32G431xx/441xx" , 0x20004000, 0x20009000, 0x08000000, 0x08020000,  1, STM32DevInfo.p_2k  , 0x1FFF7800, 0x1FFFF80F, 0x1FFF0000, 0x1FFF7000, null),
-            new STM32DevInfo(0x469, "STM32G47xxx/48xxx" , 0x20004000, 0x20009000, 0x08000000, 0x08080000,  1, STM32DevInfo.p_2k  , 0x1FFF7800, 0x1FFFF80F, 0x1FFF0000, 0x1FFF7000, null),
-            /* These are not (yet) in AN2606: */
-            new STM32DevInfo(0x641, "Medium_Density PL" , 0x20000200, 0x20005000, 0x08000000, 0x08020000,  4, STM32DevInfo.p_1k  , 0x1FFFF800, 0x1FFFF80F, 0x1FFFF000, 0x1FFFF800, null),
-            new STM32DevInfo(0x9a8, "STM32W-128K" , 0x20000200, 0x20002000, 0x08000000, 0x08020000,  4, STM32DevInfo.p_1k  , 0x08040800, 0x0804080F, 0x08040000, 0x08040800, null),
-            new STM32DevInfo(0x9b0, "STM32W-256K" , 0x20000200, 0x20004000, 0x08000000, 0x08040000,  4, STM32DevInfo.p_2k  , 0x08040800, 0x0804080F, 0x08040000, 0x08040800, null),
-    };
+    // link gets slowed down once LINK_ERROR_LIMIT of the last LINK_WINDOW acks were
+    // garbage or a timeout - NACKs are answers, device got to read the command.
+    private static final int LINK_WINDOW = 64;
+    private static final int LINK_ERROR_LIMIT = 4;
+
+    // not a bootloader command, NACKed whenever it is received as one.
+    private static final byte RESYNC_COMMAND = 0x03;
+    // enough to complete longest frame a retried block can leave pending, a 258 bytes write.
+    private static final int RESYNC_MAX_PAIRS = 130;
+    // line is considered drained once silent for that long.
+    private static final int DRAIN_QUIET_TIME = 50;
+    private static final int DRAIN_MAX_BYTES = 4096;
+
+    private static final int UID_SIZE = 12;
 
     static public STM32DevInfo getDevInfo(int id) {
-        for (STM32DevInfo d : mStm32DevInfoList) {
-            if (d.getId() == id) {
-                try {
-                    return (STM32DevInfo) d.clone();
-                } catch (CloneNotSupportedException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            }
-        }
-        return null;
+        return STM32DevInfoDatabase.get(id);
     }
 
     enum STM32Command {
@@ -142,7 +96,8 @@ public class STM32Device {
         WriteProtect(0x63),
         WriteUnprotect(0x73),
         ReadoutProtect(0x82),
-        ReadoutUnprotect(0x92);
+        ReadoutUnprotect(0x92),
+        GetChecksum(0xa1);
 
         private byte mCode;
         STM32Command(int c) {
@@ -169,54 +124,197 @@ public class STM32Device {
     private int mId = -1;
     private int mBootloaderVersion = -1;
     private boolean mUseExtendedErase = false;
+    private boolean mUseGetChecksum = false;
+    private boolean mSkipBlankBlocks = false;
 
     private STM32DevInfo mSTM32DevInfo = null;
+    private byte[] mUid = null;
+    // steps already done by an interrupted session are skipped, and new ones recorded.
+    private STM32Journal mJournal = null;
 
     private final STM32UsartInterface mUsartInterface;
+    private final STM32FrameEncoder mFrame = new STM32FrameEncoder(FRAME_MAX_SIZE);
+    // reused for acks and short replies, and for blocks read back for comparison.
+    private final byte[] mReplyBuffer = new byte[8];
+    private final byte[] mReadBuffer = new byte[CMD_READ_MAX_SIZE];
+    // blocks of firmware read from their source, to be written or compared.
+    private final byte[] mWriteBuffer = new byte[CMD_WRITE_MAX_SIZE];
     private boolean mIsConnected = false;
+    private volatile boolean mCancelled = false;
+    // System.nanoTime() operations have to be done by, 0 if none.
+    private volatile long mDeadline = 0;
+
+    // null if interface can not change its baud rate.
+    private final STM32BaudRateControl mBaudRateControl;
+    private boolean mAdaptiveBaudRate = true;
+    // fastest rate link is allowed to go back to, lowered on each back off.
+    private int mMaxBaudRate = Integer.MAX_VALUE;
+    private int mLinkAcks = 0;
+    private int mLinkErrors = 0;
+    private boolean mLinkDegraded = false;
+
+    private STM32TimeoutModel mTimeoutModel = STM32TimeoutModel.getDefault();
+
+    private STM32RetryPolicy mRetryPolicy = STM32RetryPolicy.NONE;
+    // retries done since connection.
+    private int mRetries = 0;
+    // device answered garbage since flag was cleared.
+    private boolean mGarbage = false;
+
+    // session metrics, feeding process wide ones.
+    private final STM32Metrics mMetrics = new STM32Metrics(STM32Metrics.getAggregate());
+    // command sent and not completed yet, and when it was sent.
+    private STM32Command mCommand = null;
+    private long mCommandStart;
+
+    private final STM32ProgressReporter mProgress = new STM32ProgressReporter();
+    private STM32Logger mLogger = STM32Logger.CONSOLE;
 
     public STM32Device(STM32UsartInterface iface) {
-        mUsartInterface = iface;
+        this(iface, false);
     }
 
     public STM32Device(STM32UsartInterface iface, boolean debug) {
         mUsartInterface = iface;
         mDebug = debug;
+        mBaudRateControl = iface instanceof STM32BaudRateControl ? (STM32BaudRateControl) iface : null;
     }
 
-    ArrayList<STM32OperationProgressListener> mListeners = new ArrayList();
-
+    /* told about progress and completion of each phase: Connect, Erase, Write,
+     * Verify and Read. */
     public void registerProgressListener(STM32OperationProgressListener l) {
-        mListeners.add(l);
+        mProgress.addListener(l);
     }
 
     public void unregisterProgressListener(STM32OperationProgressListener l) {
-        if (mListeners.contains(l))
-            mListeners.remove(l);
+        mProgress.removeListener(l);
     }
 
-    private void progress(int current, int total) {
-        for (STM32OperationProgressListener l : mListeners) {
-            l.progress(current, total);
-        }
+    public void registerProgressListener(STM32ProgressListener l) {
+        mProgress.addListener(l);
     }
 
-    private void complete(boolean success) {
-        for (STM32OperationProgressListener l : mListeners) {
-            l.completed(success);
+    public void unregisterProgressListener(STM32ProgressListener l) {
+        mProgress.removeListener(l);
+    }
+
+    /* executor delivering progress events, null for the default one. */
+    public void setProgressExecutor(Executor executor) {
+        mProgress.setExecutor(executor);
+    }
+
+    /* minimum time between two progress events of a phase, 0 to get them all. */
+    public void setProgressInterval(int millis) {
+        mProgress.setInterval(millis);
+    }
+
+    public void setLogger(STM32Logger logger) {
+        mLogger = logger;
+    }
+
+    private void debug(String message) {
+        mLogger.log(STM32Logger.Level.Debug, message);
+    }
+
+    private void info(String message) {
+        mLogger.log(STM32Logger.Level.Info, message);
+    }
+
+    private void error(String message) {
+        mLogger.log(STM32Logger.Level.Error, message);
+    }
+
+    private interface Step {
+        boolean run() throws IOException, TimeoutException;
+    }
+
+    /* run step as a progress phase, closed even if step throws. */
+    private boolean phase(STM32ProgressEvent.Phase phase, long total, Step step) throws IOException, TimeoutException {
+        boolean done = false;
+
+        mProgress.begin(phase, total);
+        try {
+            done = step.run();
+            return done;
+        } finally {
+            mProgress.end(done);
         }
     }
 
     public void disconnect() {
+        endCommand(false, 0);
         mIsConnected = false;
         mId = -1;
         mBootloaderVersion = -1;
         mUseExtendedErase = false;
+        mUseGetChecksum = false;
         mSTM32DevInfo = null;
+        mUid = null;
+        mMaxBaudRate = Integer.MAX_VALUE;
+    }
+
+    /* when interface implements STM32BaudRateControl, connect at the fastest rate
+     * device answers to, and slow down when link turns bad. enabled by default. */
+    public void setAdaptiveBaudRate(boolean adaptive) {
+        mAdaptiveBaudRate = adaptive;
+    }
+
+    /* ack timeouts get learned from how long device takes to answer - model can be
+     * shared by sessions talking to devices of the same kind. */
+    public void setTimeoutModel(STM32TimeoutModel model) {
+        mTimeoutModel = model;
+    }
+
+    public STM32TimeoutModel getTimeoutModel() {
+        return mTimeoutModel;
+    }
+
+    /* blocks failing on a NACK, garbage or a timeout get retried after a resync,
+     * instead of failing whole operation - eg STM32RetryPolicy.DEFAULT. none by
+     * default, failures are reported as they happen. */
+    public void setRetryPolicy(STM32RetryPolicy policy) {
+        mRetryPolicy = policy;
+    }
+
+    public STM32RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /* blocks retried since connection. */
+    public int getRetryCount() {
+        return mRetries;
+    }
+
+    /* commands latencies and link errors since connection. */
+    public STM32Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /* current rate of link, -1 if interface can not tell. */
+    public int getBaudRate() {
+        return mBaudRateControl != null ? mBaudRateControl.getBaudRate() : -1;
+    }
+
+    private boolean isAdaptiveBaudRate() {
+        return mBaudRateControl != null && mAdaptiveBaudRate;
     }
 
     public boolean connect() throws IOException, TimeoutException {
+        return phase(STM32ProgressEvent.Phase.Connect, 0, this::connectDevice);
+    }
+
+    private boolean connectDevice() throws IOException, TimeoutException {
         if (!mIsConnected) {
+            mRetries = 0;
+            mMetrics.reset();
+            // a new session gets to try fastest rate again.
+            mMaxBaudRate = Integer.MAX_VALUE;
+        }
+
+        if (!mIsConnected && isAdaptiveBaudRate()) {
+            if (!probeBaudRate())
+                return false;
+        } else if (!mIsConnected) {
             // stm init will return nack if already connected - dont run it twice.
             // also from time to time first try fails / timeout - retry before throwing exception.
             // XXX underlying layer should throw TimeoutException instead of just IOException/Exception...
@@ -228,7 +326,7 @@ public class STM32Device {
                 } catch (TimeoutException e) {
                     if (retry == 0)
                         throw e;
-                    System.out.println("connect: retry after " + e.toString());
+                    info("connect: retry after " + e.toString());
                 }
             }
         }
@@ -244,10 +342,10 @@ public class STM32Device {
 
         mSTM32DevInfo = getDevInfo(mId);
         if (mSTM32DevInfo == null) {
-            System.err.println("connect: could not find STM32DevInfo for id " + mId);
+            error("connect: could not find STM32DevInfo for id " + mId);
         } else {
             if (mDebug) {
-                System.out.println("connect: found STM32DevInfo: " + mSTM32DevInfo);
+                debug("connect: found STM32DevInfo: " + mSTM32DevInfo);
             }
         }
 
@@ -259,65 +357,191 @@ public class STM32Device {
         return mIsConnected;
     }
 
-    private int getFlashAddressPage(int startAddress) {
-        if (startAddress < mSTM32DevInfo.getFlashStart() || startAddress > mSTM32DevInfo.getFlashStart() + mSTM32DevInfo.getFlashSize()) {
-            System.err.println("getFlashAddressPage: page is out of flash, abort.");
+    /* bootloader locks its baud rate on first 0x7f after reset - so each rate is
+     * tried on a freshly reset device, fastest first, until one passes Get. */
+    private boolean probeBaudRate() throws IOException, TimeoutException {
+        for (int rate : mBaudRateControl.getSupportedBaudRates()) {
+            if (rate > mMaxBaudRate)
+                continue;
+            if (tryBaudRate(rate)) {
+                if (mDebug)
+                    debug("probeBaudRate: connected at " + rate + " baud.");
+                return true;
+            }
+            if (mDebug)
+                debug("probeBaudRate: no answer at " + rate + " baud.");
+        }
+
+        error("probeBaudRate: device did not answer at any baud rate.");
+        return false;
+    }
+
+    private boolean tryBaudRate(int rate) throws IOException, TimeoutException {
+        mBaudRateControl.setBaudRate(rate);
+        mBaudRateControl.resetBootloader();
+        resetLinkStats();
+
+        try {
+            checkAborted();
+            write(mFrame.single(INIT));
+            return readAck(ACK_TIMEOUT_INIT) && cmdGet();
+        } catch (TimeoutException e) {
+            checkAborted();
+            return false;
+        }
+    }
+
+    /* move to next slower rate after too many errors, and resync bootloader at it.
+     * returns false if it did not answer anymore. */
+    private boolean backOffBaudRate() throws IOException, TimeoutException {
+        int current = mBaudRateControl.getBaudRate();
+        int lower = -1;
+
+        for (int rate : mBaudRateControl.getSupportedBaudRates()) {
+            if (rate < current && rate > lower)
+                lower = rate;
+        }
+
+        if (lower < 0) {
+            error("backOffBaudRate: link unreliable, but already at slowest rate " + current + " baud.");
+            resetLinkStats();
+            return true;
+        }
+
+        info("backOffBaudRate: link unreliable, " + current + " -> " + lower + " baud.");
+        mMaxBaudRate = lower;
+        if (tryBaudRate(lower))
+            return true;
+
+        error("backOffBaudRate: no answer at " + lower + " baud, abort.");
+        mIsConnected = false;
+        return false;
+    }
+
+    private void resetLinkStats() {
+        mLinkAcks = 0;
+        mLinkErrors = 0;
+        mLinkDegraded = false;
+    }
+
+    /* ok false for link errors only: garbage and timeouts. */
+    private void recordAck(boolean ok) {
+        if (!ok && ++mLinkErrors >= LINK_ERROR_LIMIT)
+            mLinkDegraded = true;
+        if (++mLinkAcks >= LINK_WINDOW) {
+            mLinkAcks = 0;
+            mLinkErrors = 0;
+        }
+    }
+
+    private int getFlashAddressPage(int address) {
+        int page = mSTM32DevInfo.getPage(address);
+
+        if (page < 0) {
+            error("getFlashAddressPage: 0x" + Integer.toHexString(address) + " is out of flash, abort.");
             throw new IllegalArgumentException("page is out of flash");
         }
 
-        int[] pagesSizes = mSTM32DevInfo.getPagesSize();
-        if (pagesSizes.length > 1)
-            throw new UnsupportedOperationException("target has multiple pages size, no support yet.");
+        return page;
+    }
 
-        return (startAddress - mSTM32DevInfo.getFlashStart() ) / pagesSizes[0];
+    private int getFlashPageAddress(int page) {
+        return mSTM32DevInfo.getPageAddress(page);
+    }
+
+    private int getFlashPageEnd(int page) {
+        return mSTM32DevInfo.getPageAddress(page) + mSTM32DevInfo.getPageSize(page);
     }
 
     public boolean eraseFlash(int startAddress, int len) throws IOException, TimeoutException {
-        int[] pagesSizes = mSTM32DevInfo.getPagesSize();
         int endAddress = startAddress + len;
 
-        if (pagesSizes.length > 1)
-            throw new UnsupportedOperationException("target has multiple pages size, no support yet, use eraseAllFlash.");
+        if (len <= 0)
+            return true;
 
         int startPage = getFlashAddressPage(startAddress);
         int endPage = getFlashAddressPage(endAddress - 1);
         int pageCount = (endPage - startPage) + 1;
 
         if (mDebug)
-            System.out.println("eraseFlash 0x"+ Integer.toHexString(startAddress) + ":0x" + Integer.toHexString(endAddress) +  " : " +
-                    pageCount + " " + pagesSizes[0] + "b pages to erase. (" + startPage + ":" + endPage + ").");
+            debug("eraseFlash 0x"+ Integer.toHexString(startAddress) + ":0x" + Integer.toHexString(endAddress) +  " : " +
+                    pageCount + " pages to erase. (" + startPage + ":" + endPage + ").");
+
+        int[] pages = new int[pageCount];
+        for (int i = 0; i < pageCount; i++)
+            pages[i] = startPage + i;
+
+        return eraseFlashPages(pages, pageCount);
+    }
+
+    public boolean eraseFlashPages(int[] pages, int pageCount) throws IOException, TimeoutException {
+        long total = 0;
+        for (int i = 0; i < pageCount; i++)
+            total += mSTM32DevInfo.getPageSize(pages[i]);
+
+        return phase(STM32ProgressEvent.Phase.Erase, total, () -> erasePages(pages, 0, pageCount));
+    }
 
-        if (mUseExtendedErase) {
-            int pagesToErase = pageCount;
-            while (pagesToErase > 0) {
+    /* erase pageCount pages of pages, from offset. */
+    private boolean erasePages(int[] pages, int offset, int pageCount) throws IOException, TimeoutException {
+        int end = offset + pageCount;
+        int erased = offset;
+        long bytes = 0;
+
+        while (erased < end) {
+            int count;
+
+            if (mUseExtendedErase) {
                 // we need limit number of erased pages per extended erase command
                 // because some devices apparently do not like massive page list.
                 // nb: AN mention a maxium number of sector per device for that
                 // command, but this does not seem to be specified anywhere.
-                pageCount = Math.min(pagesToErase, CMD_EXTENDED_ERASE_MAX_PAGES);
+                count = Math.min(end - erased, CMD_EXTENDED_ERASE_MAX_PAGES);
 
-                byte[][] pageList = new byte[pageCount][2];
-                for (int i = 0; i < pageCount; i++) {
-                    int page = (startPage + i);
-                    if (mDebug)
-                        System.out.println("adding page " + page + " to list.");
-                    pageList[i][0] = (byte) (page >> 8);
-                    pageList[i][1] = (byte) (page & 0xff);
-                }
-                if (!cmdExtendedErase(pageList))
+                if (!cmdExtendedErase(pages, erased, count))
                     return false;
+            } else {
+                // legacy erase only knows about 8bit page numbers.
+                count = Math.min(end - erased, CMD_ERASE_MAX_PAGES);
 
-                startPage += pageCount;
-                pagesToErase -= pageCount;
+                for (int i = erased; i < erased + count; i++) {
+                    if (pages[i] > 0xff)
+                        throw new IllegalArgumentException("page " + pages[i] + " can not be erased without extended erase");
+                }
+                if (!cmdErase(pages, erased, count))
+                    return false;
             }
-            return true;
-        } else {
-            byte[] pageList = new byte[pageCount];
-            for (int i = startPage; i < endPage; i++) {
-                pageList[i] = (byte) (i);
+
+            if (mJournal != null)
+                mJournal.erased(pages, erased, count);
+
+            for (int i = erased; i < erased + count; i++)
+                bytes += mSTM32DevInfo.getPageSize(pages[i]);
+            erased += count;
+            mProgress.update(STM32ProgressEvent.Phase.Erase, getFlashPageEnd(pages[erased - 1]), bytes);
+        }
+        return true;
+    }
+
+    /* erase pages holding data of segments, which are expected sorted and not overlapping. */
+    public boolean eraseFlash(List<STM32FirmwareSegment> segments) throws IOException, TimeoutException {
+        int[] pages = getSegmentsPages(segments);
+        int count = pages.length;
+
+        if (mJournal != null) {
+            count = 0;
+            for (int page : pages) {
+                if (!mJournal.isErased(page))
+                    pages[count++] = page;
             }
-            return cmdErase(pageList);
+            if (count < pages.length)
+                info("eraseFlash: " + (pages.length - count) + " pages already erased by interrupted session.");
         }
+
+        if (mDebug)
+            debug("eraseFlash: " + count + " pages to erase for " + segments.size() + " segment(s).");
+
+        return eraseFlashPages(pages, count);
     }
 
     public boolean eraseFlash(int len) throws IOException, TimeoutException {
@@ -325,155 +549,826 @@ public class STM32Device {
     }
 
     public boolean eraseAllFlash() throws IOException, TimeoutException {
+        return phase(STM32ProgressEvent.Phase.Erase, mSTM32DevInfo.getFlashSize(), this::massErase);
+    }
+
+    private boolean massErase() throws IOException, TimeoutException {
+        boolean erased;
+
+        if (mJournal != null && mJournal.isAllErased()) {
+            int[] pages = mJournal.getDistrustedPages();
+            if (pages.length == 0) {
+                info("eraseAllFlash: already erased by interrupted session.");
+                return true;
+            }
+            info("eraseAllFlash: already erased by interrupted session, " + pages.length + " pages written since erased again.");
+            return erasePages(pages, 0, pages.length);
+        }
+
         if (!mSTM32DevInfo.hasFlag(F_NO_ME)) {
             if (mUseExtendedErase)
-                return cmdExtendedErase(ExtendedEraseParam.MASS_ERASE);
-            return cmdErase(eraseParam.MASS_ERASE);
+                erased = cmdExtendedErase(ExtendedEraseParam.MASS_ERASE);
+            else
+                erased = cmdErase(eraseParam.MASS_ERASE);
         } else {
-            return eraseFlash(mSTM32DevInfo.getFlashStart(), mSTM32DevInfo.getFlashSize());
+            erased = eraseFlash(mSTM32DevInfo.getFlashStart(), mSTM32DevInfo.getFlashSize());
         }
+
+        if (erased && mJournal != null)
+            mJournal.erasedAll();
+        return erased;
     }
 
     public boolean readAllFlash(byte[] flash) throws IOException, TimeoutException {
+        return phase(STM32ProgressEvent.Phase.Read, flash.length, () -> readFlash(flash));
+    }
+
+    private boolean readFlash(byte[] flash) throws IOException, TimeoutException {
         int count = flash.length;
         int read = 0;
-        System.out.println("readAllFlash: reading " + count / 1024 + "kB");
+        info("readAllFlash: reading " + count / 1024 + "kB");
         while (read < count) {
             int len = min(count - read, CMD_READ_MAX_SIZE);
-            byte[] b = new byte[len];
-            if (!cmdReadMemory(mSTM32DevInfo.getFlashStart() + read, b)) {
-                System.err.println("\ncould not cmdReadMemory, abort.");
+            if (!readMemory(mSTM32DevInfo.getFlashStart() + read, flash, read, len)) {
+                error("could not cmdReadMemory, abort.");
                 return false;
             }
-            System.arraycopy(b, 0, flash, read, len);
             read += len;
-            System.out.print("\rreadAllFlash: " + (read * 100) / count + "%");
+            mProgress.update(STM32ProgressEvent.Phase.Read, mSTM32DevInfo.getFlashStart() + read, read);
         }
-        System.out.println("\ndone.");
+        info("readAllFlash: done.");
+
+        return true;
+    }
+
+    /* stream len bytes of memory at address - flash, system memory, option bytes or
+     * ram, see STM32DevInfo - to out, which is left open. device is read in a buffer
+     * while the other one is written to out, memory used does not depend on len. on
+     * failure, out got what was read up to the block that failed. */
+    public boolean dumpMemory(int address, int len, WritableByteChannel out) throws IOException, TimeoutException {
+        return phase(STM32ProgressEvent.Phase.Read, len, () -> dumpRegion(address, len, out));
+    }
+
+    private boolean dumpRegion(int address, int len, WritableByteChannel out) throws IOException, TimeoutException {
+        STM32ChannelWriter writer = new STM32ChannelWriter(out, DUMP_BUFFER_SIZE);
+        boolean flushed = false;
+        int read = 0;
+
+        info("dumpMemory: reading " + len + "b @ 0x" + Integer.toHexString(address));
+        try {
+            while (read < len) {
+                // reads start word aligned, bytes before address are dropped.
+                int skip = (address + read) & 0x3;
+                int l = min(min(len - read, CMD_READ_MAX_SIZE - skip), writer.getRemaining());
+
+                if (skip == 0) {
+                    if (!readMemory(address + read, writer.getBuffer(), writer.getPosition(), l))
+                        break;
+                } else {
+                    if (!readMemory(address + read - skip, mReadBuffer, 0, skip + l))
+                        break;
+                    System.arraycopy(mReadBuffer, skip, writer.getBuffer(), writer.getPosition(), l);
+                }
+
+                writer.advance(l);
+                read += l;
+                mProgress.update(STM32ProgressEvent.Phase.Read, address + read, read);
+            }
+
+            writer.flush();
+            flushed = true;
+        } finally {
+            if (!flushed)
+                writer.discard();
+        }
+
+        if (read < len) {
+            error("could not cmdReadMemory, abort.");
+            return false;
+        }
+        info("dumpMemory: done.");
 
         return true;
     }
 
     public boolean writeFlash(byte[] flash, boolean compare) throws IOException, TimeoutException {
-        int count = flash.length;
+        return writeFlash(mSTM32DevInfo.getFlashStart(), flash, compare);
+    }
+
+    public boolean writeFlash(int address, byte[] flash, boolean compare) throws IOException, TimeoutException {
+        return writeFlash(Collections.singletonList(new STM32FirmwareSegment(address, flash)), compare);
+    }
+
+    /* write segments, which are expected sorted, not overlapping and word aligned. */
+    public boolean writeFlash(List<STM32FirmwareSegment> segments, boolean compare) throws IOException, TimeoutException {
+        return phase(STM32ProgressEvent.Phase.Write, getSegmentsSize(segments), () -> writeSegments(segments, compare, null));
+    }
+
+    /* write segments, erasing their pages in batches just ahead of writes rather than
+     * all of them first - see STM32EraseScheduler. */
+    public boolean writeFlashInterleaved(List<STM32FirmwareSegment> segments, boolean compare) throws IOException, TimeoutException {
+        return phase(STM32ProgressEvent.Phase.Write, getSegmentsSize(segments), () -> {
+            int[] pages = getSegmentsPages(segments);
+            int count = 0;
+            for (int page : pages) {
+                if (mJournal == null || !mJournal.isErased(page))
+                    pages[count++] = page;
+            }
+            return writeSegments(segments, compare, new STM32EraseScheduler(mSTM32DevInfo, pages, count));
+        });
+    }
+
+    /* pages left to erase before writing len bytes at address get erased, with some
+     * more ahead. */
+    private boolean eraseAhead(STM32EraseScheduler scheduler, int address, int len) throws IOException, TimeoutException {
+        int page = getFlashAddressPage(address + len - 1);
+        int count = scheduler.getBatch(page, mUseExtendedErase ? CMD_EXTENDED_ERASE_MAX_PAGES : CMD_ERASE_MAX_PAGES);
+        if (count == 0)
+            return true;
+
+        if (mDebug)
+            debug("eraseAhead: " + count + " pages from " + scheduler.getPages()[scheduler.getNext()]);
+
+        long start = System.nanoTime();
+        if (!erasePages(scheduler.getPages(), scheduler.getNext(), count)) {
+            error("could not erase ahead of 0x" + Integer.toHexString(address) + ", abort.");
+            return false;
+        }
+        scheduler.erased(count, System.nanoTime() - start);
+        return true;
+    }
+
+    private boolean writeSegments(List<STM32FirmwareSegment> segments, boolean compare, STM32EraseScheduler scheduler) throws IOException, TimeoutException {
+        int count = getSegmentsSize(segments);
         int written = 0;
 
-        System.out.println("writeFlash: writing " + count / 1024 + "kB");
+        info("writeFlash: writing " + count / 1024 + "kB in " + segments.size() + " segment(s)");
 
-        while (written < count) {
-            int len = min(count - written, CMD_WRITE_MAX_SIZE);
+        // write and verify region by region, so that sequential sources never have to
+        // go back further than a region.
+        for (STM32FirmwareSegment segment : segments) {
+            int offset = 0;
 
-            byte[] b = new byte[len];
-            System.arraycopy(flash, written, b, 0, len);
+            while (offset < segment.getSize()) {
+                int regionLen = min(segment.getSize() - offset, REGION_SIZE);
 
-            if (!cmdWriteMemory(mSTM32DevInfo.getFlashStart() + written, b)) {
-                System.err.println("\ncould not cmdWriteMemory, abort.");
-                complete(false);
-                return false;
+                if (mJournal != null && mJournal.isVerified(segment.getAddress() + offset, regionLen)) {
+                    written += regionLen;
+                    mProgress.update(STM32ProgressEvent.Phase.Write, segment.getAddress() + offset + regionLen, written);
+                    offset += regionLen;
+                    continue;
+                }
+
+                for (int o = offset; o < offset + regionLen; o += CMD_WRITE_MAX_SIZE) {
+                    int len = min(offset + regionLen - o, CMD_WRITE_MAX_SIZE);
+
+                    if (mJournal == null || !mJournal.isWritten(segment.getAddress() + o, len)) {
+                        if (scheduler != null && !eraseAhead(scheduler, segment.getAddress() + o, len))
+                            return false;
+                        if (!writeBlock(segment, o, len))
+                            return false;
+                        if (mJournal != null)
+                            mJournal.written(segment.getAddress() + o, len);
+                    }
+
+                    written += len;
+                    mProgress.update(STM32ProgressEvent.Phase.Write, segment.getAddress() + o + len, written);
+                }
+
+                if (compare) {
+                    if (!verifyRegion(segment, offset, regionLen))
+                        return false;
+                    if (mJournal != null)
+                        mJournal.verified(segment.getAddress() + offset, regionLen);
+                }
+
+                offset += regionLen;
             }
+        }
 
-            if (compare) {
-                byte[] v = new byte[len];
+        info("writeFlash: done.");
 
-                if (!cmdReadMemory(mSTM32DevInfo.getFlashStart() + written, v)) {
-                    System.err.println("\ncould not cmdReadMemory, abort.");
-                    complete(false);
-                    return false;
+        return true;
+    }
+
+    public boolean writeFlashDifferential(byte[] flash, boolean compare) throws IOException, TimeoutException {
+        return writeFlashDifferential(mSTM32DevInfo.getFlashStart(), flash, compare);
+    }
+
+    public boolean writeFlashDifferential(int address, byte[] flash, boolean compare) throws IOException, TimeoutException {
+        return writeFlashDifferential(Collections.singletonList(new STM32FirmwareSegment(address, flash)), compare);
+    }
+
+    /* only erase and write pages whose content differ from segments - as for writeFlash,
+     * segments are expected sorted, not overlapping and word aligned. */
+    public boolean writeFlashDifferential(List<STM32FirmwareSegment> segments, boolean compare) throws IOException, TimeoutException {
+        return phase(STM32ProgressEvent.Phase.Write, getSegmentsSize(segments), () -> writeSegmentsDifferential(segments, compare));
+    }
+
+    private boolean writeSegmentsDifferential(List<STM32FirmwareSegment> segments, boolean compare) throws IOException, TimeoutException {
+        int count = getSegmentsSize(segments);
+
+        // split segments on page boundaries: piece i covers pieceStart[i]:pieceEnd[i] of
+        // pieceSegment[i], lying in page pages[piecePage[i]].
+        int[] pages = getSegmentsPages(segments);
+        int maxPieces = pages.length + segments.size();
+        int[] pieceStart = new int[maxPieces];
+        int[] pieceEnd = new int[maxPieces];
+        int[] piecePage = new int[maxPieces];
+        STM32FirmwareSegment[] pieceSegment = new STM32FirmwareSegment[maxPieces];
+        int pieces = 0;
+
+        int p = 0;
+        for (STM32FirmwareSegment segment : segments) {
+            int address = segment.getAddress();
+            while (address < segment.getEndAddress()) {
+                while (getFlashPageEnd(pages[p]) <= address)
+                    p++;
+
+                pieceStart[pieces] = address;
+                pieceEnd[pieces] = min(getFlashPageEnd(pages[p]), segment.getEndAddress());
+                piecePage[pieces] = p;
+                pieceSegment[pieces] = segment;
+                address = pieceEnd[pieces++];
+            }
+        }
+
+        info("writeFlashDifferential: comparing " + count / 1024 + "kB");
+
+        // go through pages by groups spanning a region at most: compare them, then erase,
+        // write and verify changed ones, so that sequential sources never have to go back
+        // further than a region. a page is changed as soon as one of its pieces differs.
+        boolean[] dirty = new boolean[pages.length];
+        int[] dirtyPages = new int[pages.length];
+        int dirtyCount = 0;
+        int compared = 0;
+
+        int i = 0;
+        while (i < pieces) {
+            int groupStart = getFlashPageAddress(pages[piecePage[i]]);
+            int last = i;
+            while (last + 1 < pieces && (piecePage[last + 1] == piecePage[last] ||
+                    getFlashPageEnd(pages[piecePage[last + 1]]) - groupStart <= REGION_SIZE))
+                last++;
+
+            int groupDirty = dirtyCount;
+            for (int j = i; j <= last; j++) {
+                if (!dirty[piecePage[j]] && isFlashDirty(pieceSegment[j], pieceStart[j] - pieceSegment[j].getAddress(), pieceEnd[j] - pieceStart[j])) {
+                    dirty[piecePage[j]] = true;
+                    dirtyPages[dirtyCount++] = pages[piecePage[j]];
                 }
+            }
 
-                if (!Arrays.equals(v, b)) {
-                    System.err.println("\nCompare bad at 0x" + Integer.toHexString(mSTM32DevInfo.getFlashStart() + written) + ", abort.");
-                    complete(false);
+            if (dirtyCount > groupDirty) {
+                if (!eraseFlashPages(Arrays.copyOfRange(dirtyPages, groupDirty, dirtyCount), dirtyCount - groupDirty)) {
+                    error("could not erase changed pages, abort.");
                     return false;
                 }
+
+                for (int j = i; j <= last; j++) {
+                    if (!dirty[piecePage[j]])
+                        continue;
+
+                    STM32FirmwareSegment segment = pieceSegment[j];
+                    for (int address = pieceStart[j]; address < pieceEnd[j]; address += CMD_WRITE_MAX_SIZE) {
+                        if (!writeBlock(segment, address - segment.getAddress(), min(pieceEnd[j] - address, CMD_WRITE_MAX_SIZE)))
+                            return false;
+                    }
+                }
+
+                // verify runs of contiguous rewritten pieces at once.
+                int j = i;
+                while (compare && j <= last) {
+                    if (!dirty[piecePage[j]]) {
+                        j++;
+                        continue;
+                    }
+
+                    int runLast = j;
+                    while (runLast + 1 <= last && dirty[piecePage[runLast + 1]] && pieceSegment[runLast + 1] == pieceSegment[j])
+                        runLast++;
+
+                    if (!verifyRegion(pieceSegment[j], pieceStart[j] - pieceSegment[j].getAddress(), pieceEnd[runLast] - pieceStart[j]))
+                        return false;
+
+                    j = runLast + 1;
+                }
             }
 
-            written += len;
-            System.out.print("\rwriteFlash: " + (written * 100) / count + "% ");
-            progress(written, count);
+            for (int j = i; j <= last; j++)
+                compared += pieceEnd[j] - pieceStart[j];
+            mProgress.update(STM32ProgressEvent.Phase.Write, pieceEnd[last], compared);
+
+            i = last + 1;
         }
 
-        System.out.println(" Done.");
-        complete(true);
+        info("writeFlashDifferential: " + dirtyCount + "/" + pages.length + " pages changed.");
 
         return true;
     }
 
-    public boolean readoutProtect() throws IOException, TimeoutException {
-        return readoutProtect(mSTM32DevInfo.getFlashStart(), mSTM32DevInfo.getFlashSize());
+    private static int getSegmentsSize(List<STM32FirmwareSegment> segments) {
+        int size = 0;
+        for (STM32FirmwareSegment segment : segments)
+            size += segment.getSize();
+        return size;
+    }
+
+    /* sorted list of pages holding some of segments data. */
+    private int[] getSegmentsPages(List<STM32FirmwareSegment> segments) {
+        int count = 0;
+        int[] pages = new int[0];
+
+        for (STM32FirmwareSegment segment : segments) {
+            if (segment.getSize() == 0)
+                continue;
+
+            int startPage = getFlashAddressPage(segment.getAddress());
+            int endPage = getFlashAddressPage(segment.getEndAddress() - 1);
+
+            if (count > 0 && pages[count - 1] == startPage)
+                startPage++;
+
+            if (count + (endPage - startPage) + 1 > pages.length)
+                pages = Arrays.copyOf(pages, Math.max(pages.length * 2, count + (endPage - startPage) + 1));
+
+            for (int page = startPage; page <= endPage; page++)
+                pages[count++] = page;
+        }
+
+        return Arrays.copyOf(pages, count);
     }
 
-    private boolean readoutProtect(int start, int len) throws IOException, TimeoutException {
-        return multiplePageCommand(STM32Command.ReadoutProtect, start, len);
+    /* check flash content against len bytes of data at offset, using bootloader
+     * checksum command if available, reading flash back otherwise. */
+    public boolean verifyFlash(int address, byte[] data, int offset, int len) throws IOException, TimeoutException {
+        return phase(STM32ProgressEvent.Phase.Verify, len, () -> verifyData(address, data, offset, len));
     }
 
-    public boolean readoutUnprotect() throws IOException, TimeoutException {
-        return readoutUnprotect(mSTM32DevInfo.getFlashStart(), mSTM32DevInfo.getFlashSize());
+    /* compare flash with segments, stopping at first difference - returns its
+     * address, or -1 if flash matches. with a digest, flash is read back and its
+     * bytes go through digest in segments order, otherwise bootloader checksum
+     * command is used if available, a region that does not match being read back
+     * to locate its first difference. */
+    public int compareFlash(List<STM32FirmwareSegment> segments, MessageDigest digest) throws IOException, TimeoutException {
+        int[] mismatch = { -1 };
+        phase(STM32ProgressEvent.Phase.Verify, getSegmentsSize(segments), () -> {
+            mismatch[0] = compareSegments(segments, digest);
+            return mismatch[0] == -1;
+        });
+        return mismatch[0];
     }
 
-    private boolean readoutUnprotect(int start, int len) throws IOException, TimeoutException {
-        return multiplePageCommand(STM32Command.ReadoutUnprotect, start, len);
+    private int compareSegments(List<STM32FirmwareSegment> segments, MessageDigest digest) throws IOException, TimeoutException {
+        boolean checksum = mUseGetChecksum && digest == null;
+        int count = getSegmentsSize(segments);
+        int verified = 0;
+
+        info("compareFlash: " + count / 1024 + "kB in " + segments.size() + " segment(s)" + (checksum ? " using checksum" : " reading back"));
+        for (STM32FirmwareSegment segment : segments) {
+            int offset = 0;
+
+            while (offset < segment.getSize()) {
+                int address = segment.getAddress() + offset;
+                int l = min(segment.getSize() - offset, checksum ? CMD_CHECKSUM_MAX_SIZE : CMD_READ_MAX_SIZE);
+                int mismatch;
+
+                if (checksum && ((address | l) & 0x3) == 0) {
+                    mismatch = compareChecksum(segment, offset, l);
+                    if (mismatch >= 0)
+                        mismatch = compareReadBack(segment, offset, l, null);
+                } else {
+                    mismatch = compareReadBack(segment, offset, l, digest);
+                }
+
+                if (mismatch >= 0) {
+                    error("compareFlash: differs at 0x" + Integer.toHexString(mismatch) + ".");
+                    return mismatch;
+                }
+
+                offset += l;
+                verified += l;
+                mProgress.update(STM32ProgressEvent.Phase.Verify, address + l, verified);
+            }
+        }
+        info("compareFlash: done.");
+
+        return -1;
     }
 
-    public boolean writeUnprotect() throws IOException, TimeoutException {
-        return writeUnprotect(mSTM32DevInfo.getFlashStart(), mSTM32DevInfo.getFlashSize());
+    private boolean verifyData(int address, byte[] data, int offset, int len) throws IOException, TimeoutException {
+        STM32FirmwareSegment segment = new STM32FirmwareSegment(address - offset, data);
+        int verified = 0;
+
+        if (mDebug)
+            debug("verifyFlash: " + len + "b @ 0x" + Integer.toHexString(address) + (mUseGetChecksum ? " using checksum" : " reading back"));
+
+        while (verified < len) {
+            int l = min(len - verified, mUseGetChecksum ? CMD_CHECKSUM_MAX_SIZE : CMD_READ_MAX_SIZE);
+
+            if (!verifyRegion(segment, offset + verified, l))
+                return false;
+
+            verified += l;
+            mProgress.update(STM32ProgressEvent.Phase.Verify, address + verified, verified);
+        }
+
+        if (len > CMD_READ_MAX_SIZE)
+            info("verifyFlash: done.");
+
+        return true;
     }
 
-    private boolean writeUnprotect(int start, int len) throws IOException, TimeoutException {
-        return multiplePageCommand(STM32Command.WriteUnprotect, start, len);
+    private boolean verifyRegion(STM32FirmwareSegment segment, int offset, int len) throws IOException, TimeoutException {
+        int mismatch = compareFlash(segment, offset, len);
+
+        if (mismatch >= 0) {
+            error("Compare bad at 0x" + Integer.toHexString(mismatch) + ", abort.");
+            return false;
+        }
+        return true;
     }
 
-    public boolean writeProtect() throws IOException, TimeoutException {
-        return writeProtect(mSTM32DevInfo.getFlashStart(), mSTM32DevInfo.getFlashSize());
+    /* compare flash with len bytes of segment from offset - returns first address
+     * found not to match, or -1 if flash matches. */
+    private int compareFlash(STM32FirmwareSegment segment, int offset, int len) throws IOException, TimeoutException {
+        // checksum command works on words.
+        if (mUseGetChecksum && (((segment.getAddress() + offset) | len) & 0x3) == 0) {
+            // a region whose checksum could not be had is read back instead.
+            if (compareChecksum(segment, offset, len) == -1)
+                return -1;
+        }
+        return compareReadBack(segment, offset, len, null);
     }
 
-    private boolean writeProtect(int start, int len) throws IOException, TimeoutException {
-        return multiplePageCommand(STM32Command.WriteProtect, start, len);
+    /* start of region if its checksum does not match. */
+    private int compareChecksum(STM32FirmwareSegment segment, int offset, int len) throws IOException, TimeoutException {
+        int address = segment.getAddress() + offset;
+
+        long crc = getChecksum(address, len);
+        if (crc == -1)
+            return address;
+
+        int expected = STM32Crc.INITIAL;
+        for (int done = 0; done < len; done += mWriteBuffer.length) {
+            int l = min(len - done, mWriteBuffer.length);
+            segment.read(offset + done, mWriteBuffer, 0, l);
+            expected = STM32Crc.update(expected, mWriteBuffer, 0, l);
+        }
+        return (int) crc == expected ? -1 : address;
     }
 
-    private boolean multiplePageCommand(STM32Command command, int startAddress, int len) throws IOException, TimeoutException {
-        int[] pagesSizes = mSTM32DevInfo.getPagesSize();
-        int endAddress = startAddress + len;
+    /* flash bytes read also go through digest, if any. reads start word aligned,
+     * bytes before segment are dropped. */
+    private int compareReadBack(STM32FirmwareSegment segment, int offset, int len, MessageDigest digest) throws IOException, TimeoutException {
+        int address = segment.getAddress() + offset;
+        int read = 0;
 
-        if (pagesSizes.length > 1)
-            throw new UnsupportedOperationException("target has multiple pages size, no support yet, use EraseAll.");
+        while (read < len) {
+            int skip = (address + read) & 0x3;
+            int l = min(len - read, CMD_READ_MAX_SIZE - skip);
 
-        int startPage = getFlashAddressPage(startAddress);
-        int endPage = getFlashAddressPage(endAddress - 1);
-        int pageCount = (endPage - startPage) + 1;
+            if (!readMemory(address + read - skip, mReadBuffer, 0, skip + l))
+                return address + read;
+
+            segment.read(offset + read, mWriteBuffer, 0, l);
+            for (int i = 0; i < l; i++) {
+                if (mReadBuffer[skip + i] != mWriteBuffer[i])
+                    return address + read + i;
+            }
+            if (digest != null)
+                digest.update(mReadBuffer, skip, l);
 
+            read += l;
+        }
+
+        return -1;
+    }
+
+    private boolean isFlashDirty(STM32FirmwareSegment segment, int offset, int len) throws IOException, TimeoutException {
+        // could not tell, or differs: consider page as changed.
+        return compareFlash(segment, offset, len) >= 0;
+    }
+
+    private boolean writeBlock(STM32FirmwareSegment segment, int offset, int len) throws IOException, TimeoutException {
+        int address = segment.getAddress() + offset;
+
+        segment.read(offset, mWriteBuffer, 0, len);
+
+        // flash is expected to be erased at that point: an all 0xff block would not change
+        // anything, and verify will check it reads as erased.
+        if (!mSkipBlankBlocks || !isBlank(mWriteBuffer, 0, len)) {
+            if (!writeMemory(address, mWriteBuffer, 0, len)) {
+                error("could not cmdWriteMemory, abort.");
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean readMemory(int address, byte[] buffer, int offset, int len) throws IOException, TimeoutException {
+        for (int attempt = 0; ; attempt++) {
+            TimeoutException timeout = null;
+            try {
+                if (cmdReadMemory(address, buffer, offset, len))
+                    return true;
+            } catch (TimeoutException e) {
+                timeout = e;
+            }
+
+            if (!recover("readMemory", address, attempt, timeout))
+                return false;
+        }
+    }
+
+    /* a failed write may have programmed block, or part of it, before link broke:
+     * block is read back first, and its pages erased again if it has to. */
+    private boolean writeMemory(int address, byte[] buffer, int offset, int len) throws IOException, TimeoutException {
+        for (int attempt = 0; ; attempt++) {
+            TimeoutException timeout = null;
+            try {
+                if (cmdWriteMemory(address, buffer, offset, len))
+                    return true;
+            } catch (TimeoutException e) {
+                timeout = e;
+            }
+
+            if (!recover("writeMemory", address, attempt, timeout))
+                return false;
+
+            if (!readMemory(address, mReadBuffer, 0, len))
+                return false;
+
+            if (equals(mReadBuffer, 0, buffer, offset, len))
+                return true;
+
+            if (!isBlank(mReadBuffer, 0, len))
+                return rewritePages(address, buffer, offset, len);
+        }
+    }
+
+    /* a NACK is an answer here, range not allowed: only timeouts and garbage get
+     * checksum retried. address and len are word aligned. */
+    private long getChecksum(int address, int len) throws IOException, TimeoutException {
+        for (int attempt = 0; ; attempt++) {
+            TimeoutException timeout = null;
+            mGarbage = false;
+            try {
+                long crc = cmdGetChecksum(address, len);
+                if (crc != -1)
+                    return crc;
+            } catch (TimeoutException e) {
+                timeout = e;
+            }
+
+            if (timeout == null && !mGarbage)
+                return -1;
+            if (!recover("getChecksum", address, attempt, timeout))
+                return -1;
+        }
+    }
+
+    /* erase pages block lies in and write them back, with block in place - what
+     * else they hold is read back first. */
+    private boolean rewritePages(int address, byte[] buffer, int offset, int len) throws IOException, TimeoutException {
+        int firstPage = getFlashAddressPage(address);
+        int lastPage = getFlashAddressPage(address + len - 1);
+        int start = getFlashPageAddress(firstPage);
+        byte[] pages = new byte[getFlashPageEnd(lastPage) - start];
+
+        info("rewritePages: 0x" + Integer.toHexString(address) + " is partially written, erasing pages " +
+                firstPage + ":" + lastPage + " again.");
+
+        for (int read = 0; read < pages.length; read += CMD_READ_MAX_SIZE) {
+            if (!readMemory(start + read, pages, read, min(pages.length - read, CMD_READ_MAX_SIZE)))
+                return false;
+        }
+        System.arraycopy(buffer, offset, pages, address - start, len);
+
+        int[] erase = new int[lastPage - firstPage + 1];
+        for (int i = 0; i < erase.length; i++)
+            erase[i] = firstPage + i;
+        if (!eraseFlashPages(erase, erase.length))
+            return false;
+
+        for (int written = 0; written < pages.length; written += CMD_WRITE_MAX_SIZE) {
+            int l = min(pages.length - written, CMD_WRITE_MAX_SIZE);
+            if (!isBlank(pages, written, l) && !writeMemory(start + written, pages, written, l))
+                return false;
+        }
+
+        return true;
+    }
+
+    /* decide whether a failed block is worth another attempt, and get bootloader
+     * ready for it - timeouts are thrown again once retries are exhausted. */
+    private boolean recover(String what, int address, int attempt, TimeoutException timeout) throws IOException, TimeoutException {
+        if (timeout != null && mDeadline != 0 && System.nanoTime() - mDeadline >= 0)
+            throw timeout;
+
+        if (attempt >= mRetryPolicy.getBlockRetries() || mRetries >= mRetryPolicy.getSessionBudget()) {
+            if (mRetryPolicy.getBlockRetries() > 0)
+                error(what + ": giving up on 0x" + Integer.toHexString(address) + " after " +
+                        attempt + " retries, " + mRetries + " in session.");
+            if (timeout != null)
+                throw timeout;
+            return false;
+        }
+
+        mRetries++;
+        mMetrics.retry();
         if (mDebug)
-            System.out.println("multiplePageCommand " + command + " 0x"+ Integer.toHexString(startAddress) + ":0x" + Integer.toHexString(endAddress) +  " : " +
-                    pageCount + " " + pagesSizes[0] + "b pages. (" + startPage + ":" + endPage + ").");
+            debug(what + ": retrying 0x" + Integer.toHexString(address) + " after " +
+                    (timeout != null ? timeout.toString() : "NACK"));
 
-        int pagesToErase = pageCount;
-        while (pagesToErase > 0) {
-            pageCount = Math.min(pagesToErase, 255);
+        if (resync())
+            return true;
 
-            byte[][] pageList = new byte[pageCount][2];
-            for (int i = 0; i < pageCount; i++) {
-                int page = (startPage + i);
+        mIsConnected = false;
+        if (timeout != null)
+            throw timeout;
+        return false;
+    }
+
+    /* get bootloader back to waiting for a command, whatever frame it was in the
+     * middle of: invalid command pairs complete that frame, until one of them gets
+     * NACKed. a byte of last pair may then be left pending, a lone byte tells. */
+    private boolean resync() throws IOException, TimeoutException {
+        int sent = 0;
+
+        // one pair does if bootloader was waiting for a command already.
+        for (int burst : new int[] { 1, RESYNC_MAX_PAIRS }) {
+            checkAborted();
+            for (int i = 0; i < burst; i++)
+                write(mFrame.command(RESYNC_COMMAND));
+            sent += burst;
+
+            if (drain() != (NACK & 0xff))
+                continue;
+
+            // a lone byte is only answered if it completes a pending one.
+            write(mFrame.single(RESYNC_COMMAND));
+            if (drain() == -1)
+                write(mFrame.single((byte) ~RESYNC_COMMAND));
+            else
+                write(mFrame.command(RESYNC_COMMAND));
+
+            if (drain() == (NACK & 0xff)) {
                 if (mDebug)
-                    System.out.println("adding page " + page + " to list.");
-                pageList[i][0] = (byte) (page >> 8);
-                pageList[i][1] = (byte) (page & 0xff);
+                    debug("resync: done after " + sent + " pairs.");
+                return true;
             }
+        }
+
+        error("resync: bootloader did not get back to a known state, abort.");
+        return false;
+    }
+
+    /* drop whatever device still sends - returns last byte received, -1 if none. */
+    private int drain() throws IOException {
+        int last = -1;
+
+        for (int i = 0; i < DRAIN_MAX_BYTES; i++) {
+            try {
+                mUsartInterface.read(mReplyBuffer, 0, 1, DRAIN_QUIET_TIME);
+                last = mReplyBuffer[0] & 0xff;
+            } catch (TimeoutException e) {
+                break;
+            }
+        }
 
-            if (!cmdGenericReadWriteProtectUnprotect(command, pageList))
+        return last;
+    }
+
+    private static boolean equals(byte[] a, int aOffset, byte[] b, int bOffset, int len) {
+        for (int i = 0; i < len; i++) {
+            if (a[aOffset + i] != b[bOffset + i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isBlank(byte[] b, int offset, int len) {
+        for (int i = offset; i < offset + len; i++) {
+            if (b[i] != (byte) 0xff)
                 return false;
+        }
+        return true;
+    }
+
+    void setJournal(STM32Journal journal) {
+        mJournal = journal;
+    }
+
+    /* pages journaled erased by an interrupted session are only trusted if every block
+     * segments have in them was journaled written or verified: a page holding a block
+     * whose record was lost may have been programmed, and gets erased again along
+     * with its blocks - which may in turn lie in other pages. */
+    void checkJournal(List<STM32FirmwareSegment> segments) {
+        int distrusted = 0;
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+            for (STM32FirmwareSegment segment : segments) {
+                for (int offset = 0; offset < segment.getSize(); offset += REGION_SIZE) {
+                    int regionLen = min(segment.getSize() - offset, REGION_SIZE);
+                    if (mJournal.isVerified(segment.getAddress() + offset, regionLen))
+                        continue;
+
+                    for (int o = offset; o < offset + regionLen; o += CMD_WRITE_MAX_SIZE) {
+                        int address = segment.getAddress() + o;
+                        int len = min(offset + regionLen - o, CMD_WRITE_MAX_SIZE);
+                        if (mJournal.isWritten(address, len))
+                            continue;
+
+                        int end = getFlashAddressPage(address + len - 1);
+                        for (int page = getFlashAddressPage(address); page <= end; page++) {
+                            if (mJournal.isErased(page)) {
+                                mJournal.distrust(page);
+                                distrusted++;
+                                changed = true;
+                            }
+                        }
+                    }
+                }
+            }
+        }
 
-            startPage += pageCount;
-            pagesToErase -= pageCount;
+        if (distrusted > 0)
+            info("checkJournal: " + distrusted + " pages erased by interrupted session may have been written since.");
+    }
+
+    /* 96bit unique id of device, read once per connection - null if device table
+     * does not tell where it lives, or if bootloader refused to read it. */
+    public byte[] getUid() throws IOException, TimeoutException {
+        if (mUid == null && mSTM32DevInfo != null && mSTM32DevInfo.getUidAddress() != 0) {
+            byte[] uid = new byte[UID_SIZE];
+            // a NACK is an answer here, not worth a retry.
+            if (cmdReadMemory(mSTM32DevInfo.getUidAddress(), uid, 0, uid.length))
+                mUid = uid;
         }
+        return mUid != null ? mUid.clone() : null;
+    }
 
-        System.out.println(" Done.");
-        complete(true);
+    public void setSkipBlankBlocks(boolean skip) {
+        mSkipBlankBlocks = skip;
+    }
+
+    /* readout protection and write unprotection apply to the whole flash. device
+     * resets once done, it has to be connected again. */
+    public boolean readoutProtect() throws IOException, TimeoutException {
+        return cmdGenericReadWriteProtectUnprotect(STM32Command.ReadoutProtect, STM32TimeoutModel.Operation.Protect, ACK_TIMEOUT_DEFAULT);
+    }
+
+    public boolean readoutUnprotect() throws IOException, TimeoutException {
+        // removing readout protection mass erases flash.
+        return cmdGenericReadWriteProtectUnprotect(STM32Command.ReadoutUnprotect, STM32TimeoutModel.Operation.MassErase, ACK_TIMEOUT_MASS_ERASE);
+    }
+
+    public boolean writeUnprotect() throws IOException, TimeoutException {
+        return cmdGenericReadWriteProtectUnprotect(STM32Command.WriteUnprotect, STM32TimeoutModel.Operation.Protect, ACK_TIMEOUT_DEFAULT);
+    }
+
+    public boolean writeProtect() throws IOException, TimeoutException {
+        return writeProtect(mSTM32DevInfo.getFlashStart(), mSTM32DevInfo.getFlashSize());
+    }
+
+    /* write protect sectors holding start:start+len - sectors not listed get unprotected,
+     * and device resets once done. */
+    public boolean writeProtect(int startAddress, int len) throws IOException, TimeoutException {
+        int endAddress = startAddress + len;
+
+        if (len <= 0)
+            return true;
+
+        int startSector = mSTM32DevInfo.getSector(getFlashAddressPage(startAddress));
+        int endSector = mSTM32DevInfo.getSector(getFlashAddressPage(endAddress - 1));
+        int sectorCount = (endSector - startSector) + 1;
+
+        if (mDebug)
+            debug("writeProtect 0x"+ Integer.toHexString(startAddress) + ":0x" + Integer.toHexString(endAddress) +  " : " +
+                    sectorCount + " sectors. (" + startSector + ":" + endSector + ").");
+
+        // all sectors have to go in a single command, as device resets right after it.
+        if (sectorCount > 256 || endSector > 0xff)
+            throw new IllegalArgumentException("sectors " + startSector + ":" + endSector + " can not be write protected in a single command");
+
+        int[] sectors = new int[sectorCount];
+        for (int i = 0; i < sectorCount; i++)
+            sectors[i] = startSector + i;
+
+        if (!cmdWriteProtect(sectors, 0, sectorCount))
+            return false;
+
+        info("writeProtect: done.");
 
         return true;
     }
 
     public boolean reset() throws IOException, TimeoutException {
-        if (!cmdWriteMemory(mSTM32DevInfo.getRamStart() + 6 * 1024, stm_reset_code))
+        if (!cmdWriteMemory(mSTM32DevInfo.getRamStart() + 6 * 1024, stm_reset_code, 0, stm_reset_code.length))
             return false;
         return cmdGo(mSTM32DevInfo.getRamStart());
     }
@@ -487,17 +1382,20 @@ public class STM32Device {
         numByte--;
 
         if (mDebug)
-            System.out.println("cmdGet: bootversion " + (mBootloaderVersion >> 4) + "." + (mBootloaderVersion & 0xf));
+            debug("cmdGet: bootversion " + (mBootloaderVersion >> 4) + "." + (mBootloaderVersion & 0xf));
 
         while (numByte >= 0) {
             byte Command = read();
             for (STM32Command c : STM32Command.values()) {
                 if (c.getCommandCode() == Command) {
                     if (mDebug)
-                        System.out.println("cmdGet: " + c + " supported.");
+                        debug("cmdGet: " + c + " supported.");
                     if (c == STM32Command.ExtendedErase) {
                         mUseExtendedErase = true;
                     }
+                    if (c == STM32Command.GetChecksum) {
+                        mUseGetChecksum = true;
+                    }
                     break;
                 }
             }
@@ -505,7 +1403,7 @@ public class STM32Device {
             numByte--;
         }
 
-        return readAck();
+        return endCommand(readAck(), 0);
     }
 
     private boolean cmdGetVersionReadProtection() throws IOException, TimeoutException {
@@ -516,13 +1414,13 @@ public class STM32Device {
         byte option2 = read();
 
         if (mDebug) {
-            System.out.println("cmdGetVersionReadProtection: bootversion " + (bootVersion >> 4) + "." + (bootVersion & 0xf));
-            System.out.println("cmdGetVersionReadProtection: option " + option1 + " " + option2);
+            debug("cmdGetVersionReadProtection: bootversion " + (bootVersion >> 4) + "." + (bootVersion & 0xf));
+            debug("cmdGetVersionReadProtection: option " + option1 + " " + option2);
         }
 
-        boolean ret = readAck();
+        boolean ret = endCommand(readAck(), 0);
         if (bootVersion != mBootloaderVersion) {
-            System.err.println("cmdGetVersionReadProtection: bootversion does not match get cmd");
+            error("cmdGetVersionReadProtection: bootversion does not match get cmd");
             return false;
         } else {
             return ret;
@@ -533,22 +1431,20 @@ public class STM32Device {
         if (!writeCommand(STM32Command.GetId))
             return false;
         byte numByte = read(); // 1 on stm32.. but actually two bytes for id ?
-        byte[] data = read(2);
-        mId = (data[0] << 8) | data[1];
+        read(mReplyBuffer, 0, 2, STM32TimeoutModel.Operation.ReadBlock);
+        mId = ((mReplyBuffer[0] & 0xff) << 8) | (mReplyBuffer[1] & 0xff);
 
         if (mDebug)
-            System.out.println("cmdGetId: id " + mId);
+            debug("cmdGetId: id " + mId);
 
-        return readAck();
+        return endCommand(readAck(), 0);
     }
 
-    private boolean cmdReadMemory(int address, byte buffer[]) throws IOException, TimeoutException {
+    private boolean cmdReadMemory(int address, byte buffer[], int offset, int len) throws IOException, TimeoutException {
         if (mDebug)
-            System.out.println("cmdReadMemory: " + buffer.length + "b @ 0x" + Integer.toHexString(address));
-
-        byte len = (byte)buffer.length;
+            debug("cmdReadMemory: " + len + "b @ 0x" + Integer.toHexString(address));
 
-        if (buffer.length > 256)
+        if (len > 256)
             return false;
 
         if ((address & 0x3) != 0)
@@ -560,23 +1456,20 @@ public class STM32Device {
         if (!writeAddress(address))
             return false;
 
-        write(new byte[] {(byte) (len - 1), (byte) ~(len - 1)});
+        write(mFrame.readLength(len));
         if (!readAck())
             return false;
 
-        byte[] b = read(buffer.length);
-        System.arraycopy(b, 0, buffer, 0, b.length);
+        read(buffer, offset, len, STM32TimeoutModel.Operation.ReadBlock);
 
-        return true;
+        return endCommand(true, len);
     }
 
-    private boolean cmdWriteMemory(int address, byte buffer[]) throws IOException, TimeoutException {
+    private boolean cmdWriteMemory(int address, byte buffer[], int offset, int len) throws IOException, TimeoutException {
         if (mDebug)
-            System.out.println("cmdWriteMemory: " + buffer.length + "b @ 0x" + Integer.toHexString(address));
-
-        byte len = (byte)buffer.length;
+            debug("cmdWriteMemory: " + len + "b @ 0x" + Integer.toHexString(address));
 
-        if (buffer.length > 256)
+        if (len > 256)
             return false;
 
         if ((address & 0x3) != 0)
@@ -588,193 +1481,296 @@ public class STM32Device {
         if (!writeAddress(address))
             return false;
 
-        write((byte) (len - 1));
-        write(buffer);
-        write((byte) (getChecksum(buffer) ^ (byte) (len - 1)));
+        write(mFrame.data(buffer, offset, len));
 
-        return readAck();
+        return endCommand(readAck(STM32TimeoutModel.Operation.WriteBlock, len, ACK_TIMEOUT_DEFAULT), len);
     }
 
-    private boolean cmdErase(eraseParam param) throws IOException, TimeoutException {
+    /* returns crc of len bytes at address as computed by device, or -1 on error.
+     * length is sent as a number of 32bit words, trailing bytes get rounded up. */
+    private long cmdGetChecksum(int address, int len) throws IOException, TimeoutException {
         if (mDebug)
-            System.out.println("cmdErase: " + param + " 0x" + Integer.toHexString(param.EraseParamValue));
+            debug("cmdGetChecksum: " + len + "b @ 0x" + Integer.toHexString(address));
 
-        write(param.EraseParamValue);
-        write((byte) ((byte) 0x00 ^ param.EraseParamValue));
+        if ((address & 0x3) != 0)
+            return -1;
 
-        return readAck(ACK_TIMEOUT_MASS_ERASE);
+        if (!writeCommand(STM32Command.GetChecksum))
+            return -1;
+
+        if (!writeAddress(address))
+            return -1;
+
+        write(mFrame.word((len + 3) / 4));
+        if (!readAck())
+            return -1;
+
+        // device only answers once crc is computed.
+        byte[] b = mReplyBuffer;
+        read(b, 0, 5, STM32TimeoutModel.Operation.Checksum, len);
+        if (!endCommand((byte) (b[0] ^ b[1] ^ b[2] ^ b[3]) == b[4], len)) {
+            mGarbage = true;
+            error("cmdGetChecksum: bad checksum.");
+            return -1;
+        }
+
+        return ((b[0] & 0xffL) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
     }
 
-    private boolean cmdErase(byte[] pages) throws IOException, TimeoutException {
+    private boolean cmdErase(eraseParam param) throws IOException, TimeoutException {
         if (mDebug)
-            System.out.println("cmdErase: " + pages.length + " pages.");
+            debug("cmdErase: " + param + " 0x" + Integer.toHexString(param.EraseParamValue & 0xff));
 
         if (!writeCommand(STM32Command.Erase))
             return false;
 
-        byte checksum = (byte) (pages.length - 1);
-        write((byte) (pages.length - 1));
-        for (byte page : pages) {
-            write(page);
-            checksum ^= page;
-        }
-        write(checksum);
+        write(mFrame.special8(param.EraseParamValue));
 
-        return readAck(ACK_TIMEOUT_MASS_ERASE);
+        return endCommand(readAck(STM32TimeoutModel.Operation.MassErase, 1, ACK_TIMEOUT_MASS_ERASE), 0);
     }
 
-    private void writePagesWithChecksum(byte pages[][]) throws IOException {
-        byte checksum = 0;
-        byte b[] = new byte[2];
-        int len = pages.length - 1;
-
-        b[0] = (byte) (len >> 8);
-        b[1] = (byte) (len & 0xff);
+    /* bytes held by count pages from offset. */
+    private int getPagesSize(int[] pages, int offset, int count) {
+        int size = 0;
+        for (int i = offset; i < offset + count; i++)
+            size += mSTM32DevInfo.getPageSize(pages[i]);
+        return size;
+    }
 
+    private boolean cmdErase(int[] pages, int offset, int count) throws IOException, TimeoutException {
         if (mDebug)
-            System.out.println("Sending : " + pages.length + " pages");
+            debug("cmdErase: " + count + " pages.");
 
-        write(b);
-        checksum ^= b[0];
-        checksum ^= b[1];
+        if (!writeCommand(STM32Command.Erase))
+            return false;
 
-        for (byte[] page : pages) {
-            write(page);
-            checksum ^= page[0];
-            checksum ^= page[1];
-        }
-        write(checksum);
+        write(mFrame.pages8(pages, offset, count));
+
+        return endCommand(readAck(STM32TimeoutModel.Operation.ErasePage, getPagesSize(pages, offset, count), ACK_TIMEOUT_MASS_ERASE), 0);
     }
 
-    private boolean cmdExtendedErase(byte[][] pages) throws IOException, TimeoutException {
+    private boolean cmdExtendedErase(int[] pages, int offset, int count) throws IOException, TimeoutException {
         if (mDebug)
-            System.out.println("cmdExtendedErase: " + pages.length + " pages");
+            debug("cmdExtendedErase: " + count + " pages");
 
-        if (pages.length > 512)
-            System.out.println("cmdExtendedErase: Sending command with " + pages.length + " pages, brace yourself for strange behaviour.");
+        if (count > 512)
+            info("cmdExtendedErase: Sending command with " + count + " pages, brace yourself for strange behaviour.");
 
         if (!writeCommand(STM32Command.ExtendedErase))
             return false;
 
-        writePagesWithChecksum(pages);
+        write(mFrame.pages16(pages, offset, count));
 
-        return readAck(ACK_TIMEOUT_MASS_ERASE);
+        return endCommand(readAck(STM32TimeoutModel.Operation.ErasePage, getPagesSize(pages, offset, count), ACK_TIMEOUT_MASS_ERASE), 0);
     }
 
     private boolean cmdExtendedErase(ExtendedEraseParam param) throws IOException, TimeoutException {
         if (mDebug)
-            System.out.println("cmdExtendedErase: 0x" + param.extendedEraseParamValue);
+            debug("cmdExtendedErase: 0x" + Integer.toHexString(param.extendedEraseParamValue));
 
         if (!writeCommand(STM32Command.ExtendedErase))
             return false;
 
-        byte b[] = param.getByteValue();
-
-        write(b);
-        write(getChecksum(b));
+        write(mFrame.special16(param.extendedEraseParamValue));
 
-        return readAck(ACK_TIMEOUT_MASS_ERASE);
+        return endCommand(readAck(STM32TimeoutModel.Operation.MassErase, 1, ACK_TIMEOUT_MASS_ERASE), 0);
     }
 
-    private boolean cmdGenericReadWriteProtectUnprotect(STM32Command command, byte[][] pages) throws IOException, TimeoutException {
+    private boolean cmdWriteProtect(int[] sectors, int offset, int count) throws IOException, TimeoutException {
         if (mDebug)
-            System.out.println(command + ": " + pages.length + " pages");
+            debug("cmdWriteProtect: " + count + " sectors");
 
-        if (pages.length > 255)
+        if (!writeCommand(STM32Command.WriteProtect))
             return false;
 
+        write(mFrame.pages8(sectors, offset, count));
+
+        return endCommand(readAck(STM32TimeoutModel.Operation.Protect, 1, ACK_TIMEOUT_DEFAULT), 0);
+    }
+
+    /* commands without parameters: a second ack tells operation is done. */
+    private boolean cmdGenericReadWriteProtectUnprotect(STM32Command command, STM32TimeoutModel.Operation op, int timeout) throws IOException, TimeoutException {
+        if (mDebug)
+            debug(command.toString());
+
         if (!writeCommand(command))
             return false;
 
-        writePagesWithChecksum(pages);
-
-        return readAck(ACK_TIMEOUT_DEFAULT);
+        return endCommand(readAck(op, 1, timeout), 0);
     }
 
     private boolean cmdGo(int address) throws IOException, TimeoutException {
         if (mDebug)
-            System.out.println("cmdGo: 0x" + Integer.toHexString(address));
+            debug("cmdGo: 0x" + Integer.toHexString(address));
 
         if (!writeCommand(STM32Command.Go))
             return false;
 
-        return writeAddress(address);
+        return endCommand(writeAddress(address), 0);
+    }
+
+    /* abort operation in progress before its next command, or while it waits for a
+     * late ack - it throws CancellationException. cancelling while idle aborts next
+     * operation. */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    void clearCancel() {
+        mCancelled = false;
+    }
+
+    /* operations throw TimeoutException once System.nanoTime() passes deadlineNanos,
+     * commands timeouts get shortened to meet it. 0 removes the deadline. */
+    public void setDeadline(long deadlineNanos) {
+        mDeadline = deadlineNanos;
+    }
+
+    private void checkAborted() throws TimeoutException {
+        if (mCancelled) {
+            mCancelled = false;
+            throw new CancellationException("operation cancelled");
+        }
+        if (mDeadline != 0 && System.nanoTime() - mDeadline >= 0)
+            throw new TimeoutException("deadline exceeded");
+    }
+
+    /* timeout shortened to the deadline, if any. */
+    private int getTimeout(int timeout) {
+        long deadline = mDeadline;
+        if (deadline == 0)
+            return timeout;
+        return (int) max(1, min(timeout, (deadline - System.nanoTime()) / 1000000));
     }
 
     private boolean writeInit() throws IOException, TimeoutException {
-        write(INIT);
+        checkAborted();
+        write(mFrame.single(INIT));
         if (!readAck(ACK_TIMEOUT_INIT))
-            System.out.println("writeInit: returned NACK, continue - init might have been already done.");
+            info("writeInit: returned NACK, continue - init might have been already done.");
         return true;
     }
 
     private boolean readAck() throws IOException, TimeoutException {
-        return readAck(ACK_TIMEOUT_DEFAULT);
+        return readAck(STM32TimeoutModel.Operation.Ack, 1, ACK_TIMEOUT_DEFAULT);
+    }
+
+    /* ack of an operation on units, timeout learned from previous ones. */
+    private boolean readAck(STM32TimeoutModel.Operation op, int units, int fallback) throws IOException, TimeoutException {
+        int rate = getBaudRate();
+        long start = System.nanoTime();
+
+        if (!readAck(mTimeoutModel.getTimeout(mId, rate, op, units, fallback)))
+            return false;
+
+        mTimeoutModel.record(mId, rate, op, units, System.nanoTime() - start);
+        return true;
     }
 
     private boolean readAck(int timeout) throws IOException, TimeoutException {
         byte b;
-        switch (b = readWithTimeout(timeout)) {
+        try {
+            b = readWithTimeout(timeout);
+        } catch (TimeoutException e) {
+            recordAck(false);
+            throw e;
+        }
+
+        switch (b) {
             case ACK:
+                recordAck(true);
+                mMetrics.ack();
                 return true;
 
             case NACK:
+                // refused by protocol (protected memory, unsupported command), link is fine.
+                recordAck(true);
+                mMetrics.nack();
                 return false;
 
             default:
-                System.err.println("readAck: err, got unexpected 0x" + Integer.toHexString(b & 0xff));
+                recordAck(false);
+                mGarbage = true;
+                mMetrics.garbage();
+                error("readAck: err, got unexpected 0x" + Integer.toHexString(b & 0xff));
                 return false;
         }
     }
 
     private boolean writeCommand(STM32Command command) throws IOException, TimeoutException {
+        checkAborted();
+        // only between commands, bootloader would not survive a reset in the middle of one.
+        if (mLinkDegraded && isAdaptiveBaudRate() && !backOffBaudRate())
+            return false;
         if (mDebug)
-            System.out.println("writeCommand: " + command + " 0x" + Integer.toHexString(command.getCommandCode() & 0xff));
-        write(new byte[] { command.getCommandCode(), (byte) ~command.getCommandCode()});
-        return readAck();
-    }
-
-    private boolean writeAddress(int address) throws IOException, TimeoutException {
-        byte[] buf = new byte[4];
-        buf[0] = (byte) ((address >> 24) & 0xff);
-        buf[1] = (byte) ((address >> 16) & 0xff);
-        buf[2] = (byte) ((address >> 8) & 0xff);
-        buf[3] = (byte) ((address) & 0xff);
-        write(buf);
-        write(getChecksum(buf));
-
+            debug("writeCommand: " + command + " 0x" + Integer.toHexString(command.getCommandCode() & 0xff));
+        // previous command did not get to its end.
+        endCommand(false, 0);
+        mCommand = command;
+        mCommandStart = System.nanoTime();
+        write(mFrame.command(command.getCommandCode()));
         return readAck();
     }
 
-    private byte getChecksum(byte[] buffer) {
-        byte cs = 0;
-        for (byte b : buffer)
-            cs ^= b;
-        return cs;
+    /* account command in progress as completed with bytes, or failed. */
+    private boolean endCommand(boolean ok, int bytes) {
+        if (mCommand != null) {
+            mMetrics.command(mCommand, ok, bytes, System.nanoTime() - mCommandStart);
+            mCommand = null;
+        }
+        return ok;
     }
 
-    private void write(byte b) throws IOException {
-        mUsartInterface.write(new byte[] {b});
+    private boolean writeAddress(int address) throws IOException, TimeoutException {
+        write(mFrame.address(address));
+        return readAck();
     }
 
-    private void write(byte[] b) throws IOException {
-        mUsartInterface.write(b);
+    private void write(STM32FrameEncoder frame) throws IOException {
+        mUsartInterface.write(frame.getBuffer(), 0, frame.getLength());
     }
 
     private byte read() throws IOException, TimeoutException {
-        return mUsartInterface.read(1, READ_TIMEOUT_DEFAULT)[0];
+        return readWithTimeout(READ_TIMEOUT_DEFAULT);
     }
 
     private byte readWithTimeout(int timeout) throws IOException, TimeoutException {
-        return mUsartInterface.read(1, timeout)[0];
+        long end = System.nanoTime() + getTimeout(timeout) * 1000000L;
+
+        while (true) {
+            int slice = (int) max(1, min(ACK_POLL_INTERVAL, (end - System.nanoTime()) / 1000000));
+            try {
+                mUsartInterface.read(mReplyBuffer, 0, 1, slice);
+                return mReplyBuffer[0];
+            } catch (TimeoutException e) {
+                if (System.nanoTime() - end >= 0) {
+                    mMetrics.timeout();
+                    throw e;
+                }
+                if (mCancelled) {
+                    // bootloader is left in the middle of a command, a new session is needed.
+                    mIsConnected = false;
+                    checkAborted();
+                }
+            }
+        }
     }
 
-    private byte[] read(int len) throws IOException, TimeoutException {
-        return mUsartInterface.read(len, READ_TIMEOUT_DEFAULT);
+    private void read(byte[] b, int offset, int len, STM32TimeoutModel.Operation op) throws IOException, TimeoutException {
+        read(b, offset, len, op, len);
     }
 
-    private byte[] readWithTimeout(int len, int timeout) throws IOException, TimeoutException {
-        return mUsartInterface.read(len, timeout);
+    private void read(byte[] b, int offset, int len, STM32TimeoutModel.Operation op, int units) throws IOException, TimeoutException {
+        int rate = getBaudRate();
+        long start = System.nanoTime();
+
+        try {
+            mUsartInterface.read(b, offset, len, getTimeout(mTimeoutModel.getTimeout(mId, rate, op, units, READ_TIMEOUT_DEFAULT)));
+        } catch (TimeoutException e) {
+            mMetrics.timeout();
+            throw e;
+        }
+        mTimeoutModel.record(mId, rate, op, units, System.nanoTime() - start);
     }
 
     @Override
@@ -790,7 +1786,12 @@ public class STM32Device {
     public void setFlashSize(Integer forcedFlashSize) {
         if (mSTM32DevInfo == null)
             return;
-        mSTM32DevInfo.setFlashSize(forcedFlashSize);
+        mSTM32DevInfo = mSTM32DevInfo.withFlashSize(forcedFlashSize);
+    }
+
+    /* memory layout of connected device, null if unknown. */
+    public STM32DevInfo getDevInfo() {
+        return mSTM32DevInfo;
     }
 
     public int getFlashSize() {
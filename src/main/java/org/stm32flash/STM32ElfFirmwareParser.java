@@ -0,0 +1,117 @@
+package org.stm32flash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/* ELF executable parser - loadable segments are flashed at their load (physical)
+ * address, which is where initialized data lives in flash too. segments are
+ * read from the file on demand, nothing gets copied. */
+public class STM32ElfFirmwareParser extends STM32FirmwareParser {
+    static final byte[] MAGIC = { 0x7f, 'E', 'L', 'F' };
+
+    // segments loaded out of that window (ram, ccm, peripherals) are not for flash.
+    private static final long FLASH_WINDOW_START = 0x08000000L;
+    private static final long FLASH_WINDOW_END = 0x10000000L;
+
+    private static final int ELFCLASS32 = 1;
+    private static final int ELFDATA2LSB = 1;
+    private static final int ELF32_HEADER_SIZE = 52;
+    private static final int ELF32_PHDR_SIZE = 32;
+    private static final int PT_LOAD = 1;
+
+    private int mBaseAddress = -1;
+
+    public STM32ElfFirmwareParser(String path) {
+        super(path);
+    }
+
+    public STM32ElfFirmwareParser(STM32FirmwareSource source) {
+        super(source);
+    }
+
+    @Override
+    public byte[] parse() throws IOException {
+        STM32Firmware fw = new STM32Firmware(parseSegments());
+
+        try {
+            return fw.getBuffer();
+        } catch (IllegalStateException e) {
+            throw new IOException("elf: " + mFirmwarePath + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<STM32FirmwareSegment> parseSegments() throws IOException {
+        STM32FirmwareSource source = getSource();
+
+        if (source.size() < ELF32_HEADER_SIZE)
+            throw new IOException("elf: " + mFirmwarePath + " is too short");
+
+        byte[] h = new byte[ELF32_HEADER_SIZE];
+        source.read(0, h, 0, h.length);
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (h[i] != MAGIC[i])
+                throw new IOException("elf: " + mFirmwarePath + " is not an ELF file");
+        }
+        if (h[4] != ELFCLASS32)
+            throw new IOException("elf: " + mFirmwarePath + " is not a 32bit ELF file");
+        // cortex-m cores of stm32 parts are little endian only.
+        if (h[5] != ELFDATA2LSB)
+            throw new IOException("elf: " + mFirmwarePath + " is not a little endian ELF file");
+
+        ByteBuffer header = ByteBuffer.wrap(h).order(ByteOrder.LITTLE_ENDIAN);
+        long phoff = header.getInt(28) & 0xffffffffL;
+        int phentsize = header.getShort(42) & 0xffff;
+        int phnum = header.getShort(44) & 0xffff;
+
+        if (phnum == 0 || phentsize < ELF32_PHDR_SIZE || phoff + (long) phnum * phentsize > source.size())
+            throw new IOException("elf: " + mFirmwarePath + " has no valid program header table");
+
+        byte[] ph = new byte[phnum * phentsize];
+        source.read(phoff, ph, 0, ph.length);
+        ByteBuffer phdrs = ByteBuffer.wrap(ph).order(ByteOrder.LITTLE_ENDIAN);
+
+        List<STM32FirmwareSegment> segments = new ArrayList<>();
+        for (int i = 0; i < phnum; i++) {
+            int p = i * phentsize;
+            long offset = phdrs.getInt(p + 4) & 0xffffffffL;
+            long paddr = phdrs.getInt(p + 12) & 0xffffffffL;
+            long filesz = phdrs.getInt(p + 16) & 0xffffffffL;
+
+            // segments with no file content (.bss, stack) are only reserved ram.
+            if (phdrs.getInt(p) != PT_LOAD || filesz == 0)
+                continue;
+            if (offset + filesz > source.size())
+                throw new IOException("elf: " + mFirmwarePath + " segment " + i + " lies past end of file");
+
+            long start = Math.max(paddr, FLASH_WINDOW_START);
+            long end = Math.min(paddr + filesz, FLASH_WINDOW_END);
+            if (start >= end)
+                continue;
+
+            segments.add(new STM32FirmwareSegment((int) start, source, offset + (start - paddr), (int) (end - start)));
+        }
+
+        if (segments.isEmpty())
+            throw new IOException("elf: " + mFirmwarePath + " has no loadable segment in flash");
+
+        // validate segments do not overlap, and get them sorted.
+        try {
+            segments = new STM32Firmware(segments).getSegments();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("elf: " + mFirmwarePath + ": " + e.getMessage());
+        }
+
+        mBaseAddress = segments.get(0).getAddress();
+        return segments;
+    }
+
+    @Override
+    public int getBaseAddress() {
+        return mBaseAddress;
+    }
+}
@@ -0,0 +1,70 @@
+package org.stm32flash;
+
+/* erases pages just ahead of a write cursor instead of all of them up front:
+ * writing starts at once, each erase command waits its ack for a short time,
+ * and a session interrupted halfway leaves flash past the cursor untouched.
+ *
+ * pages are erased in batches sized from erase time seen so far, per byte as
+ * page sizes may differ, so that a batch lasts about TARGET_TIME - first one is
+ * only what the first write needs. */
+class STM32EraseScheduler {
+    private static final long TARGET_TIME = 250 * 1000000L;
+    // weight of latest batch in erase time estimate.
+    private static final double WEIGHT = 0.5;
+
+    private final STM32DevInfo mInfo;
+    private final int[] mPages;
+    private final int mCount;
+    private int mNext = 0;
+    private double mByteTime = 0;
+
+    /* pageCount first pages, expected sorted. */
+    STM32EraseScheduler(STM32DevInfo info, int[] pages, int pageCount) {
+        mInfo = info;
+        mPages = pages;
+        mCount = pageCount;
+    }
+
+    int[] getPages() {
+        return mPages;
+    }
+
+    /* index in getPages() of next page to erase. */
+    int getNext() {
+        return mNext;
+    }
+
+    /* pages to erase from getNext() before writing to page, 0 if it is erased already:
+     * all pages up to it, then as many more as fit target time, up to max. */
+    int getBatch(int page, int max) {
+        if (mNext == mCount || mPages[mNext] > page)
+            return 0;
+
+        int count = 0;
+        long time = 0;
+        while (mNext + count < mCount && count < max) {
+            boolean needed = mPages[mNext + count] <= page;
+            if (!needed && (mByteTime == 0 || time + mByteTime * getSize(count) > TARGET_TIME))
+                break;
+
+            time += mByteTime * getSize(count);
+            count++;
+        }
+        return count;
+    }
+
+    /* count pages from getNext() were erased in nanos. */
+    void erased(int count, long nanos) {
+        long bytes = 0;
+        for (int i = 0; i < count; i++)
+            bytes += getSize(i);
+
+        double byteTime = (double) nanos / bytes;
+        mByteTime = mByteTime == 0 ? byteTime : mByteTime + WEIGHT * (byteTime - mByteTime);
+        mNext += count;
+    }
+
+    private int getSize(int i) {
+        return mInfo.getPageSize(mPages[mNext + i]);
+    }
+}
@@ -1,39 +1,262 @@
 package org.stm32flash;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 import static java.security.MessageDigest.getInstance;
 
 public class STM32Firmware {
-    private byte[] mBuffer;
+    // keep writes aligned on a double word, as some families only program flash by 64bit chunks.
+    private static final int WRITE_ALIGNMENT = 8;
+    // refuse to build a contiguous buffer spanning more than that.
+    private static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    /* segments closer than that are written as one, filling the gap as erased: a
+     * new write command costs about as much as sending that many bytes. kept below
+     * the smallest page size (128b), so a gap can not hold a page of its own. */
+    public static final int DEFAULT_MERGE_GAP = 64;
+
+    private List<STM32FirmwareSegment> mSegments;
 
     public STM32Firmware(String path) throws Exception {
-        STM32FirmwareParser mParser;
+        STM32FirmwareParser mParser = STM32FirmwareParser.open(path);
+
+        setSegments(mParser.parseSegments());
+    }
+
+    public STM32Firmware(byte[] buffer) {
+        this(buffer, -1);
+    }
 
-        if (path.endsWith(".hex"))
-            mParser = new STM32HexFirmwareParser(path);
-        else if (path.endsWith(".bin"))
-            mParser = new STM32BinFirmwareParser(path);
+    public STM32Firmware(byte[] buffer, int baseAddress) {
+        if (buffer == null)
+            mSegments = Collections.emptyList();
         else
-            throw new Exception("could not find appropriate parser for " + path);
+            mSegments = Collections.singletonList(new STM32FirmwareSegment(baseAddress, buffer));
+    }
 
-        mBuffer = mParser.parse();
+    /* raw binary image read from source. */
+    public STM32Firmware(STM32FirmwareSource source, int baseAddress) {
+        mSegments = Collections.singletonList(new STM32FirmwareSegment(baseAddress, source, 0, (int) source.size()));
     }
 
-    public STM32Firmware(byte[] buffer) {
-        mBuffer = buffer;
+    public STM32Firmware(STM32FirmwareSource source) {
+        this(source, -1);
+    }
+
+    public STM32Firmware(List<STM32FirmwareSegment> segments) {
+        setSegments(segments);
+    }
+
+    /* combine images to be flashed in one session, eg a bootloader, an application and
+     * its configuration - all of them need to know their address. */
+    public STM32Firmware(STM32Firmware... parts) {
+        List<STM32FirmwareSegment> segments = new ArrayList<>();
+        for (STM32Firmware part : parts)
+            segments.addAll(part.getSegments());
+        setSegments(segments);
+    }
+
+    private void setSegments(List<STM32FirmwareSegment> segments) {
+        List<STM32FirmwareSegment> sorted = new ArrayList<>(segments);
+        sorted.sort(Comparator.comparingLong(s -> s.getAddress() & 0xffffffffL));
+
+        for (int i = 0; i < sorted.size(); i++) {
+            if (sorted.get(i).getAddress() == -1 && sorted.size() > 1)
+                throw new IllegalArgumentException("segment without address can not be combined");
+            if (i > 0 && sorted.get(i).getAddress() < sorted.get(i - 1).getEndAddress())
+                throw new IllegalArgumentException("overlapping segments " + sorted.get(i - 1) + " and " + sorted.get(i));
+        }
+
+        mSegments = Collections.unmodifiableList(sorted);
+    }
+
+    public List<STM32FirmwareSegment> getSegments() {
+        return mSegments;
+    }
+
+    /* segments as they should be written: word aligned, padded as erased flash, and
+     * merged when closer than mergeGap bytes. */
+    public List<STM32FirmwareSegment> getWriteSegments(int mergeGap) {
+        return getWriteSegments(mergeGap, null);
+    }
+
+    /* same, segments being only merged when gap between them does not hold a whole
+     * page of info - partial erase would wipe a page no segment touches, eg one used
+     * for eeprom emulation. without info, mergeGap is trusted to be below a page. */
+    public List<STM32FirmwareSegment> getWriteSegments(int mergeGap, STM32DevInfo info) {
+        List<STM32FirmwareSegment> plan = new ArrayList<>();
+        int i = 0;
+
+        while (i < mSegments.size()) {
+            int start = alignDown(mSegments.get(i).getAddress());
+            int end = alignUp(mSegments.get(i).getEndAddress());
+            int last = i;
+
+            while (last + 1 < mSegments.size()) {
+                int next = alignDown(mSegments.get(last + 1).getAddress());
+                if (next - end > mergeGap || !isGapMergeable(info, end, next))
+                    break;
+                last++;
+                end = alignUp(mSegments.get(last).getEndAddress());
+            }
+
+            STM32FirmwareSegment first = mSegments.get(i);
+            if (last == i && start == first.getAddress() && end == first.getEndAddress())
+                plan.add(first);
+            else
+                plan.add(new STM32FirmwareSegment(start, new MergedSource(mSegments.subList(i, last + 1), start, end), 0, end - start));
+
+            i = last + 1;
+        }
+
+        return plan;
+    }
+
+    /* gap from end to next only lies in pages of segments on both of its sides. */
+    private static boolean isGapMergeable(STM32DevInfo info, int end, int next) {
+        if (info == null || next <= end)
+            return true;
+
+        int before = info.getPage(end - 1);
+        int after = info.getPage(next);
+        return before >= 0 && after >= 0 && after - before <= 1;
+    }
+
+    private static int alignDown(int address) {
+        return address & ~(WRITE_ALIGNMENT - 1);
+    }
+
+    private static int alignUp(int address) {
+        return (address + WRITE_ALIGNMENT - 1) & ~(WRITE_ALIGNMENT - 1);
     }
 
+    private static byte[] flatten(List<STM32FirmwareSegment> segments, int start, int end) {
+        byte[] b = new byte[end - start];
+        try {
+            new MergedSource(segments, start, end).read(0, b, 0, b.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return b;
+    }
+
+    /* segments seen as one source from start to end, holes read as erased flash. */
+    private static class MergedSource implements STM32FirmwareSource {
+        private final List<STM32FirmwareSegment> mParts;
+        private final int mStart;
+        private final int mEnd;
+
+        MergedSource(List<STM32FirmwareSegment> parts, int start, int end) {
+            mParts = parts;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        public long size() {
+            return mEnd - mStart;
+        }
+
+        @Override
+        public boolean isSequential() {
+            for (STM32FirmwareSegment s : mParts) {
+                if (s.getSource().isSequential())
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void read(long position, byte[] b, int off, int len) throws IOException {
+            int address = mStart + (int) position;
+            int end = address + len;
+
+            Arrays.fill(b, off, off + len, (byte) 0xff);
+            for (STM32FirmwareSegment s : mParts) {
+                int from = Math.max(address, s.getAddress());
+                int to = Math.min(end, s.getEndAddress());
+                if (from < to)
+                    s.read(from - s.getAddress(), b, off + (from - address), to - from);
+            }
+        }
+    }
+
+    /* image as a single buffer starting at getBaseAddress(), holes between
+     * segments filled as erased flash. */
     public byte[] getBuffer() {
-        return mBuffer;
+        if (mSegments.isEmpty())
+            return null;
+        if (mSegments.size() == 1)
+            return mSegments.get(0).getData();
+
+        int start = getBaseAddress();
+        int end = mSegments.get(mSegments.size() - 1).getEndAddress();
+        if (end - start > MAX_BUFFER_SIZE)
+            throw new IllegalStateException("segments span 0x" + Integer.toHexString(start) + ":0x" + Integer.toHexString(end) + ", too large for a single buffer");
+
+        return flatten(mSegments, start, end);
+    }
+
+    /* address image is to be written at, -1 if unknown (start of flash). */
+    public int getBaseAddress() {
+        if (mSegments.isEmpty())
+            return -1;
+        return mSegments.get(0).getAddress();
+    }
+
+    /* drop trailing erased (0xff) bytes of each segment - keep size aligned on a
+     * double word, as some families only program flash by 64bit chunks. */
+    public void trim() {
+        List<STM32FirmwareSegment> trimmed = new ArrayList<>();
+        byte[] b = new byte[4096];
+
+        for (STM32FirmwareSegment s : mSegments) {
+            // scanning from the end would get sequential sources out of their window.
+            if (s.getSource().isSequential()) {
+                trimmed.add(s);
+                continue;
+            }
+
+            int len = s.getSize();
+            try {
+                while (len > 0) {
+                    int l = Math.min(len, b.length);
+                    s.read(len - l, b, 0, l);
+
+                    int i = l;
+                    while (i > 0 && b[i - 1] == (byte) 0xff)
+                        i--;
+
+                    len -= l - i;
+                    if (i > 0)
+                        break;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            len = Math.min(alignUp(len), s.getSize());
+            if (len == 0)
+                continue;
+
+            trimmed.add(len != s.getSize() ? s.slice(0, len) : s);
+        }
+
+        mSegments = Collections.unmodifiableList(trimmed);
     }
 
     public byte[] getChecksum() {
         MessageDigest mda;
 
-        if (mBuffer == null)
+        if (mSegments.isEmpty())
             return null;
         try {
             mda = getInstance("MD5");
@@ -41,19 +264,46 @@ public class STM32Firmware {
             return null;
         }
 
-        return mda.digest(mBuffer);
+        // plain binary images keep the digest of their content alone.
+        byte[] b = new byte[4096];
+        for (STM32FirmwareSegment s : mSegments) {
+            if (s.getAddress() != -1) {
+                int a = s.getAddress();
+                mda.update(new byte[] { (byte) (a >> 24), (byte) (a >> 16), (byte) (a >> 8), (byte) a });
+            }
+
+            try {
+                for (int offset = 0; offset < s.getSize(); offset += b.length) {
+                    int len = Math.min(s.getSize() - offset, b.length);
+                    s.read(offset, b, 0, len);
+                    mda.update(b, 0, len);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return mda.digest();
     }
 
     @Override
     public String toString() {
+        if (mSegments.size() > 1)
+            return "STM32Firmware{ Size=" + getSize() + "b, BaseAddress=0x" + Integer.toHexString(getBaseAddress()) + ", Segments=" + mSegments + " }";
+        if (getBaseAddress() != -1)
+            return "STM32Firmware{ Size=" + getSize() + "b, BaseAddress=0x" + Integer.toHexString(getBaseAddress()) + " }";
         return "STM32Firmware{ Size=" + getSize() + "b }";
     }
 
+    /* number of bytes held by segments, holes excluded. */
     public int getSize() {
-        if (mBuffer == null)
+        if (mSegments.isEmpty())
             return -1;
-        else
-            return mBuffer.length;
+
+        int size = 0;
+        for (STM32FirmwareSegment s : mSegments)
+            size += s.getSize();
+        return size;
     }
 
     @Override
@@ -61,11 +311,11 @@ public class STM32Firmware {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         STM32Firmware that = (STM32Firmware) o;
-        return Arrays.equals(mBuffer, that.mBuffer);
+        return mSegments.equals(that.mSegments);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(mBuffer);
+        return mSegments.hashCode();
     }
 }
@@ -1,23 +1,82 @@
 package org.stm32flash;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 public abstract class STM32FirmwareParser {
     String mFirmwarePath;
+    private STM32FirmwareSource mSource;
 
     public STM32FirmwareParser(String path) {
         this.mFirmwarePath = path;
     }
 
+    public STM32FirmwareParser(STM32FirmwareSource source) {
+        this.mFirmwarePath = source.toString();
+        this.mSource = source;
+    }
+
+    /* parser for file: a .bin extension is trusted, as raw data may look like
+     * anything. others are told by their content - ELF magic, Intel HEX or S-record
+     * text, or else a Cortex-M vector table: 8 bytes aligned initial stack pointer in
+     * ram, then a thumb reset handler. */
+    public static STM32FirmwareParser open(String path) throws IOException {
+        STM32FirmwareSource source = new STM32MappedFirmwareSource(path);
+        if (path.endsWith(".bin"))
+            return new STM32BinFirmwareParser(source);
+
+        byte[] b = new byte[(int) Math.min(source.size(), 64)];
+        source.read(0, b, 0, b.length);
+
+        if (b.length >= 4 && b[0] == STM32ElfFirmwareParser.MAGIC[0] && b[1] == STM32ElfFirmwareParser.MAGIC[1]
+                && b[2] == STM32ElfFirmwareParser.MAGIC[2] && b[3] == STM32ElfFirmwareParser.MAGIC[3])
+            return new STM32ElfFirmwareParser(source);
+
+        int i = 0;
+        while (i < b.length && (b[i] == ' ' || b[i] == '\t' || b[i] == '\r' || b[i] == '\n'))
+            i++;
+
+        if (i < b.length && b[i] == ':')
+            return new STM32HexFirmwareParser(source);
+        if (i + 1 < b.length && b[i] == 'S' && b[i + 1] >= '0' && b[i + 1] <= '9')
+            return new STM32SrecFirmwareParser(source);
+        if (isVectorTable(b))
+            return new STM32BinFirmwareParser(source);
+
+        throw new IOException("could not find appropriate parser for " + path);
+    }
+
+    private static boolean isVectorTable(byte[] b) {
+        if (b.length < 8)
+            return false;
+
+        int sp = (b[0] & 0xff) | (b[1] & 0xff) << 8 | (b[2] & 0xff) << 16 | (b[3] & 0xff) << 24;
+        int reset = (b[4] & 0xff) | (b[5] & 0xff) << 8 | (b[6] & 0xff) << 16 | (b[7] & 0xff) << 24;
+        // sram, or ccm ram of f3/f4 parts.
+        boolean inRam = (sp & 0xe0000000) == 0x20000000 || (sp & 0xf0000000) == 0x10000000;
+        return inRam && (sp & 0x7) == 0 && (reset & 0x1) == 1;
+    }
+
     public abstract byte[] parse() throws IOException;
-    protected byte[] loadFile(String path) throws IOException {
-        File file = new File(path);
-        FileInputStream fis = new FileInputStream(file);
-        byte buffer[] = new byte[(int) file.length()];
-        fis.read(buffer);
-        fis.close();
-        return buffer;
+
+    /* address parsed image is meant to be loaded at, or -1 if the format does not
+     * tell, in which case it goes to start of flash. valid once parsed. */
+    public int getBaseAddress() {
+        return -1;
+    }
+
+    /* parsed image as addressed segments - formats without holes return
+     * their whole content as a single segment at getBaseAddress(). */
+    public List<STM32FirmwareSegment> parseSegments() throws IOException {
+        byte[] b = parse();
+        return Collections.singletonList(new STM32FirmwareSegment(getBaseAddress(), b));
+    }
+
+    /* source to be parsed - file gets mapped unless parser was given one. */
+    protected STM32FirmwareSource getSource() throws IOException {
+        if (mSource == null)
+            mSource = new STM32MappedFirmwareSource(mFirmwarePath);
+        return mSource;
     }
 }
@@ -0,0 +1,56 @@
+package org.stm32flash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/* contiguous data decoded from consecutive records of text formats. */
+class STM32FirmwareRun {
+    long mAddress;
+    byte[] mData = new byte[64];
+    int mLength;
+
+    STM32FirmwareRun(long address) {
+        mAddress = address;
+    }
+
+    void append(byte[] b, int off, int len) {
+        if (mLength + len > mData.length)
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mLength + len));
+        System.arraycopy(b, off, mData, mLength, len);
+        mLength += len;
+    }
+
+    STM32FirmwareSegment toSegment() {
+        return new STM32FirmwareSegment((int) mAddress, mLength == mData.length ? mData : Arrays.copyOf(mData, mLength));
+    }
+
+    /* sort runs and join the contiguous ones - records get split at arbitrary
+     * boundaries. what names the image in errors. */
+    static List<STM32FirmwareSegment> toSegments(List<STM32FirmwareRun> runs, String what) throws IOException {
+        if (runs.isEmpty())
+            throw new IOException(what + " does not contain any data");
+
+        runs.sort(Comparator.comparingLong(r -> r.mAddress));
+
+        List<STM32FirmwareSegment> segments = new ArrayList<>();
+        STM32FirmwareRun current = runs.get(0);
+        for (int i = 1; i < runs.size(); i++) {
+            STM32FirmwareRun r = runs.get(i);
+            if (r.mAddress < current.mAddress + current.mLength)
+                throw new IOException(what + " has overlapping data at 0x" + Long.toHexString(r.mAddress));
+
+            if (r.mAddress == current.mAddress + current.mLength) {
+                current.append(r.mData, 0, r.mLength);
+            } else {
+                segments.add(current.toSegment());
+                current = r;
+            }
+        }
+        segments.add(current.toSegment());
+
+        return segments;
+    }
+}
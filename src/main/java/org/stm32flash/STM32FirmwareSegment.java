@@ -0,0 +1,105 @@
+package org.stm32flash;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/* contiguous part of a firmware image, loaded at a given address - its content
+ * is read from a slice of a STM32FirmwareSource. */
+public class STM32FirmwareSegment {
+    private final int mAddress;
+    private final STM32FirmwareSource mSource;
+    private final long mSourceOffset;
+    private final int mSize;
+
+    public STM32FirmwareSegment(int address, byte[] data) {
+        this(address, new STM32ArrayFirmwareSource(data), 0, data.length);
+    }
+
+    public STM32FirmwareSegment(int address, STM32FirmwareSource source, long sourceOffset, int size) {
+        mAddress = address;
+        mSource = source;
+        mSourceOffset = sourceOffset;
+        mSize = size;
+    }
+
+    public int getAddress() {
+        return mAddress;
+    }
+
+    public int getEndAddress() {
+        return mAddress + mSize;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public STM32FirmwareSource getSource() {
+        return mSource;
+    }
+
+    /* read len bytes of segment starting at offset into b. */
+    public void read(int offset, byte[] b, int off, int len) throws IOException {
+        mSource.read(mSourceOffset + offset, b, off, len);
+    }
+
+    /* segment content - only array backed segments do not need a copy. */
+    public byte[] getData() {
+        if (mSource instanceof STM32ArrayFirmwareSource && mSourceOffset == 0 && mSize == mSource.size())
+            return ((STM32ArrayFirmwareSource) mSource).getBuffer();
+
+        byte[] b = new byte[mSize];
+        try {
+            read(0, b, 0, mSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return b;
+    }
+
+    /* part of this segment, sharing its source. */
+    public STM32FirmwareSegment slice(int offset, int size) {
+        return new STM32FirmwareSegment(mAddress + offset, mSource, mSourceOffset + offset, size);
+    }
+
+    /* same content, to be loaded at address. */
+    public STM32FirmwareSegment relocate(int address) {
+        return new STM32FirmwareSegment(address, mSource, mSourceOffset, mSize);
+    }
+
+    @Override
+    public String toString() {
+        return "STM32FirmwareSegment{ Address=0x" + Integer.toHexString(mAddress) + ", Size=" + getSize() + "b }";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        STM32FirmwareSegment that = (STM32FirmwareSegment) o;
+        if (mAddress != that.mAddress || mSize != that.mSize)
+            return false;
+
+        byte[] a = new byte[4096];
+        byte[] b = new byte[4096];
+        try {
+            for (int offset = 0; offset < mSize; offset += a.length) {
+                int len = Math.min(mSize - offset, a.length);
+                read(offset, a, 0, len);
+                that.read(offset, b, 0, len);
+                for (int i = 0; i < len; i++) {
+                    if (a[i] != b[i])
+                        return false;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mAddress + mSize;
+    }
+}
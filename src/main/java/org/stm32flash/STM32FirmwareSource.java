@@ -0,0 +1,23 @@
+package org.stm32flash;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/* where firmware bytes are read from, so that images do not need to sit on heap. */
+public interface STM32FirmwareSource extends Closeable {
+    /* number of bytes held by source. */
+    long size();
+
+    /* read exactly len bytes at position into b starting at off. */
+    void read(long position, byte[] b, int off, int len) throws IOException;
+
+    /* sequential sources can only go back to data still in their look-ahead window,
+     * callers needing to scan them out of order should not. */
+    default boolean isSequential() {
+        return false;
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -1,11 +1,24 @@
 package org.stm32flash;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 public class STM32Flasher {
     private boolean mDebug = false;
     private STM32Device mSTM32Device;
+    private boolean mSkipBlank = false;
+    private int mMergeGap = STM32Firmware.DEFAULT_MERGE_GAP;
+    private STM32Journal mJournal = null;
+    private STM32Logger mLogger = STM32Logger.CONSOLE;
 
     public STM32Flasher(STM32UsartInterface iface, boolean debug) {
         mSTM32Device = new STM32Device(iface, debug);
@@ -16,6 +29,27 @@ public class STM32Flasher {
         mSTM32Device = new STM32Device(iface, mDebug);
     }
 
+    /* do not write blocks that are left erased (all 0xff), and drop trailing erased
+     * bytes from STM32Firmware images so that partial erase covers less pages. */
+    public void setSkipBlank(boolean skip) {
+        mSkipBlank = skip;
+        mSTM32Device.setSkipBlankBlocks(skip);
+    }
+
+    /* segments of an image closer than that many bytes are written as one, as long as
+     * no page between them gets written. */
+    public void setMergeGap(int bytes) {
+        mMergeGap = bytes;
+    }
+
+    /* record Partial and Full erase flashing sessions in journal, and resume the one
+     * it holds if it was interrupted - null to disable. Differential erase compares
+     * flash content anyway, it does not need one to resume. images read from a
+     * sequential source are flashed without journal. */
+    public void setJournal(STM32Journal journal) {
+        mJournal = journal;
+    }
+
     public STM32Device getDevice() {
         return mSTM32Device;
     }
@@ -28,9 +62,23 @@ public class STM32Flasher {
         mSTM32Device.unregisterProgressListener(l);
     }
 
+    public void registerProgressListener(STM32ProgressListener l) {
+        mSTM32Device.registerProgressListener(l);
+    }
+
+    public void unregisterProgressListener(STM32ProgressListener l) {
+        mSTM32Device.unregisterProgressListener(l);
+    }
+
+    /* messages of flasher and its device. */
+    public void setLogger(STM32Logger logger) {
+        mLogger = logger;
+        mSTM32Device.setLogger(logger);
+    }
+
     public boolean connect() throws IOException, TimeoutException {
         if (!mSTM32Device.connect()) {
-            System.err.println("Could not connect to STM32 device.");
+            mLogger.log(STM32Logger.Level.Error, "Could not connect to STM32 device.");
             return false;
         }
         return true;
@@ -78,17 +126,86 @@ public class STM32Flasher {
     public enum EraseMode {
         Partial,
         Full,
+        Differential,
+        Interleaved,
     }
 
     public boolean flashFirmware(byte fw[], EraseMode erase, boolean verify) throws IOException, TimeoutException {
+        return flashFirmware(-1, fw, erase, verify);
+    }
+
+    /* write fw at address, or at start of flash if address is -1. */
+    public boolean flashFirmware(int address, byte fw[], EraseMode erase, boolean verify) throws IOException, TimeoutException {
         if (!mSTM32Device.isConnected()) {
             if (!mSTM32Device.connect())
                 return false;
         }
 
+        if (address == -1)
+            address = mSTM32Device.getFlashStart();
+
+        return flashSegments(Collections.singletonList(new STM32FirmwareSegment(address, fw)), erase, verify);
+    }
+
+    public boolean flashFirmware(STM32Firmware fw, EraseMode erase, boolean verify) throws IOException, TimeoutException {
+        if (!mSTM32Device.isConnected()) {
+            if (!mSTM32Device.connect())
+                return false;
+        }
+
+        // trim a copy, caller may still verify or reuse its image.
+        if (mSkipBlank) {
+            fw = new STM32Firmware(fw.getSegments());
+            fw.trim();
+        }
+
+        // images without address are a single segment, relocate it without loading it.
+        if (fw.getBaseAddress() == -1)
+            fw = new STM32Firmware(Collections.singletonList(fw.getSegments().get(0).relocate(mSTM32Device.getFlashStart())));
+
+        return flashSegments(fw.getWriteSegments(mMergeGap, mSTM32Device.getDevInfo()), erase, verify);
+    }
+
+    private boolean flashSegments(List<STM32FirmwareSegment> segments, EraseMode erase, boolean verify) throws IOException, TimeoutException {
+        if (mJournal == null || erase == EraseMode.Differential)
+            return writeSegments(segments, erase, verify);
+
+        // its digest would have to be read before writing, streams can not go back.
+        for (STM32FirmwareSegment s : segments) {
+            if (s.getSource().isSequential()) {
+                mLogger.log(STM32Logger.Level.Error, "flashFirmware: image read from a sequential source can not be " +
+                        "journaled, flashing without journal - an interrupted session will not resume.");
+                return writeSegments(segments, erase, verify);
+            }
+        }
+
+        byte[] image = new STM32Firmware(segments).getChecksum();
+        if (image == null)
+            return writeSegments(segments, erase, verify);
+
+        boolean resume = mJournal.begin(image, mSTM32Device.getId(), mSTM32Device.getDevInfo(), mSTM32Device.getUid(), erase);
+
+        mSTM32Device.setJournal(mJournal);
+        try {
+            if (resume) {
+                mLogger.log(STM32Logger.Level.Info, "flashFirmware: resuming interrupted session from " + mJournal.getFile());
+                mSTM32Device.checkJournal(segments);
+            }
+            if (!writeSegments(segments, erase, verify))
+                return false;
+            mJournal.done();
+            return true;
+        } finally {
+            mSTM32Device.setJournal(null);
+            mJournal.close();
+        }
+    }
+
+    private boolean writeSegments(List<STM32FirmwareSegment> segments, EraseMode erase, boolean verify) throws IOException, TimeoutException {
         switch (erase) {
             case Partial:
-                if (!mSTM32Device.eraseFlash(fw.length))
+                // only pages holding some of the segments get erased.
+                if (!mSTM32Device.eraseFlash(segments))
                     return false;
                 break;
 
@@ -96,9 +213,17 @@ public class STM32Flasher {
                 if (!mSTM32Device.eraseAllFlash())
                     return false;
                 break;
+
+            case Differential:
+                // only pages whose content differs from segments get erased and rewritten.
+                return mSTM32Device.writeFlashDifferential(segments, verify);
+
+            case Interleaved:
+                // pages holding some of the segments get erased as writes reach them.
+                return mSTM32Device.writeFlashInterleaved(segments, verify);
         }
 
-        return mSTM32Device.writeFlash(fw, verify);
+        return mSTM32Device.writeFlash(segments, verify);
     }
 
     public boolean flashFirmware(byte fw[]) throws IOException, TimeoutException {
@@ -111,11 +236,11 @@ public class STM32Flasher {
         try {
             fw = new STM32Firmware(path);
         } catch (Exception e) {
-            e.printStackTrace();
+            mLogger.log(STM32Logger.Level.Error, "flashFirmware: could not load " + path + ": " + e);
             return false;
         }
 
-        return flashFirmware(fw.getBuffer(), EraseMode.Full, true);
+        return flashFirmware(fw, EraseMode.Full, true);
     }
 
     public byte[] dumpFirmware() throws IOException, TimeoutException {
@@ -136,6 +261,61 @@ public class STM32Flasher {
         return fw;
     }
 
+    /* check flash against image without writing, stopping at its first difference.
+     * bootloader checksum command is used if available. */
+    public STM32VerifyResult verifyFirmware(STM32Firmware fw) throws IOException, TimeoutException {
+        return verifyFirmware(fw, null);
+    }
+
+    /* same, flash being read back through digest (eg MessageDigest.getInstance("SHA-256")),
+     * which result holds if flash matches. digest is reset first. */
+    public STM32VerifyResult verifyFirmware(STM32Firmware fw, MessageDigest digest) throws IOException, TimeoutException {
+        if (!mSTM32Device.isConnected()) {
+            if (!mSTM32Device.connect())
+                return null;
+        }
+
+        // images without address are a single segment, relocate it without loading it.
+        if (fw.getBaseAddress() == -1)
+            fw = new STM32Firmware(Collections.singletonList(fw.getSegments().get(0).relocate(mSTM32Device.getFlashStart())));
+
+        if (digest != null)
+            digest.reset();
+
+        int mismatch = mSTM32Device.compareFlash(fw.getSegments(), digest);
+        return new STM32VerifyResult(mismatch, mismatch == -1 && digest != null ? digest.digest() : null);
+    }
+
+    /* whole flash, streamed to out. */
+    public boolean dumpFirmware(OutputStream out) throws IOException, TimeoutException {
+        if (!mSTM32Device.isConnected()) {
+            if (!mSTM32Device.connect())
+                return false;
+        }
+        return mSTM32Device.dumpMemory(mSTM32Device.getFlashStart(), mSTM32Device.getFlashSize(), Channels.newChannel(out));
+    }
+
+    /* stream length bytes at address to out, left open - any readable region, see
+     * STM32Device.getDevInfo() for where system memory, option bytes and ram are. */
+    public boolean dumpMemory(int address, int length, WritableByteChannel out) throws IOException, TimeoutException {
+        if (!mSTM32Device.isConnected()) {
+            if (!mSTM32Device.connect())
+                return false;
+        }
+        return mSTM32Device.dumpMemory(address, length, out);
+    }
+
+    public boolean dumpMemory(int address, int length, OutputStream out) throws IOException, TimeoutException {
+        return dumpMemory(address, length, Channels.newChannel(out));
+    }
+
+    public boolean dumpMemory(int address, int length, File file) throws IOException, TimeoutException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            return dumpMemory(address, length, channel);
+        }
+    }
+
     public boolean eraseFirmware() throws IOException, TimeoutException {
         if (!mSTM32Device.isConnected()) {
             if (!mSTM32Device.connect())
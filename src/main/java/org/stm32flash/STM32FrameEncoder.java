@@ -0,0 +1,124 @@
+package org.stm32flash;
+
+/* Builds AN3155 frames into a single preallocated buffer, computing the xor
+ * checksum while bytes are added, so that each protocol phase can be sent
+ * with one write on the interface. Frames are only valid until next call. */
+class STM32FrameEncoder {
+    private final byte[] mBuffer;
+    private int mLength;
+    private byte mChecksum;
+
+    STM32FrameEncoder(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    int getLength() {
+        return mLength;
+    }
+
+    /* single byte, as used by init sequence. */
+    STM32FrameEncoder single(byte b) {
+        reset();
+        put(b);
+        return this;
+    }
+
+    /* command code followed by its complement. */
+    STM32FrameEncoder command(byte code) {
+        return complemented(code);
+    }
+
+    /* 32bit big endian address and checksum. */
+    STM32FrameEncoder address(int address) {
+        return word(address);
+    }
+
+    /* 32bit big endian value and checksum, as used for sizes. */
+    STM32FrameEncoder word(int value) {
+        reset();
+        put((byte) (value >> 24));
+        put((byte) (value >> 16));
+        put((byte) (value >> 8));
+        put((byte) value);
+        putChecksum();
+        return this;
+    }
+
+    /* number of bytes to read (N - 1) followed by its complement. */
+    STM32FrameEncoder readLength(int len) {
+        return complemented((byte) (len - 1));
+    }
+
+    /* number of bytes (N - 1), data and checksum of both. */
+    STM32FrameEncoder data(byte[] b, int off, int len) {
+        reset();
+        put((byte) (len - 1));
+        for (int i = off; i < off + len; i++)
+            put(b[i]);
+        putChecksum();
+        return this;
+    }
+
+    /* 8bit page count (N - 1), 8bit page numbers and checksum, for legacy erase and
+     * write protect (sectors). */
+    STM32FrameEncoder pages8(int[] pages, int off, int count) {
+        reset();
+        put((byte) (count - 1));
+        for (int i = off; i < off + count; i++)
+            put((byte) pages[i]);
+        putChecksum();
+        return this;
+    }
+
+    /* 16bit page count (N - 1), 16bit page numbers and checksum, for extended erase. */
+    STM32FrameEncoder pages16(int[] pages, int off, int count) {
+        reset();
+        put((byte) ((count - 1) >> 8));
+        put((byte) (count - 1));
+        for (int i = off; i < off + count; i++) {
+            put((byte) (pages[i] >> 8));
+            put((byte) pages[i]);
+        }
+        putChecksum();
+        return this;
+    }
+
+    /* 8bit special erase code followed by its complement. */
+    STM32FrameEncoder special8(byte code) {
+        return complemented(code);
+    }
+
+    /* 16bit special erase code and checksum. */
+    STM32FrameEncoder special16(int code) {
+        reset();
+        put((byte) (code >> 8));
+        put((byte) code);
+        putChecksum();
+        return this;
+    }
+
+    private STM32FrameEncoder complemented(byte b) {
+        reset();
+        put(b);
+        put((byte) ~b);
+        return this;
+    }
+
+    private void reset() {
+        mLength = 0;
+        mChecksum = 0;
+    }
+
+    private void put(byte b) {
+        mBuffer[mLength++] = b;
+        mChecksum ^= b;
+    }
+
+    private void putChecksum() {
+        mBuffer[mLength++] = mChecksum;
+    }
+}
@@ -0,0 +1,270 @@
+package org.stm32flash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* flash one image on many ports at once - each port gets its own session on a
+ * bounded pool of threads, and a failing port does not stop the others. the image
+ * is shared read only, so its source has to support concurrent reads. */
+public class STM32GangFlasher {
+    private final List<STM32UsartInterface> mInterfaces;
+    private final int mParallelism;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private boolean mDebug = false;
+    private STM32Flasher.EraseMode mEraseMode = STM32Flasher.EraseMode.Full;
+    private boolean mVerify = true;
+    private boolean mSkipBlank = false;
+    private int mMergeGap = STM32Firmware.DEFAULT_MERGE_GAP;
+
+    public interface Listener {
+        /* progress of writes is called from progress delivery thread, shared by
+         * all ports, at most once per reporting interval and port. completed is
+         * called from the thread flashing port, and may come before last progress. */
+        void progress(int port, long current, long total);
+        void completed(PortResult result);
+    }
+
+    public static class PortResult {
+        private final int mPort;
+        private final STM32UsartInterface mInterface;
+        private final boolean mSuccess;
+        private final Throwable mError;
+        private final int mDeviceId;
+        private final int mBytes;
+        private final long mDurationMillis;
+
+        PortResult(int port, STM32UsartInterface iface, boolean success, Throwable error, int deviceId, int bytes, long durationMillis) {
+            mPort = port;
+            mInterface = iface;
+            mSuccess = success;
+            mError = error;
+            mDeviceId = deviceId;
+            mBytes = bytes;
+            mDurationMillis = durationMillis;
+        }
+
+        public int getPort() {
+            return mPort;
+        }
+
+        public STM32UsartInterface getInterface() {
+            return mInterface;
+        }
+
+        public boolean isSuccess() {
+            return mSuccess;
+        }
+
+        /* exception that made port fail, null if it failed on a NACK or a compare. */
+        public Throwable getError() {
+            return mError;
+        }
+
+        /* -1 if device could not be identified. */
+        public int getDeviceId() {
+            return mDeviceId;
+        }
+
+        public int getBytes() {
+            return mBytes;
+        }
+
+        public long getDurationMillis() {
+            return mDurationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "PortResult{ Port=" + mPort +
+                    ", Id=0x" + Integer.toHexString(mDeviceId) +
+                    ", Success=" + mSuccess +
+                    (mError != null ? ", Error=" + mError : "") +
+                    ", Duration=" + mDurationMillis + "ms }";
+        }
+    }
+
+    public static class Result {
+        private final List<PortResult> mPorts;
+        private final long mDurationMillis;
+
+        Result(List<PortResult> ports, long durationMillis) {
+            mPorts = Collections.unmodifiableList(ports);
+            mDurationMillis = durationMillis;
+        }
+
+        /* one result per port, in the order interfaces were given. */
+        public List<PortResult> getPorts() {
+            return mPorts;
+        }
+
+        public int getSuccessCount() {
+            int count = 0;
+            for (PortResult r : mPorts) {
+                if (r.isSuccess())
+                    count++;
+            }
+            return count;
+        }
+
+        public int getFailureCount() {
+            return mPorts.size() - getSuccessCount();
+        }
+
+        public boolean isSuccess() {
+            return getFailureCount() == 0;
+        }
+
+        /* bytes flashed on all successful ports. */
+        public long getBytes() {
+            long bytes = 0;
+            for (PortResult r : mPorts) {
+                if (r.isSuccess())
+                    bytes += r.getBytes();
+            }
+            return bytes;
+        }
+
+        public long getDurationMillis() {
+            return mDurationMillis;
+        }
+
+        /* aggregate throughput, in bytes per second. */
+        public long getThroughput() {
+            return mDurationMillis > 0 ? getBytes() * 1000 / mDurationMillis : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{ Ports=" + mPorts.size() +
+                    ", Failed=" + getFailureCount() +
+                    ", Duration=" + mDurationMillis + "ms" +
+                    ", Throughput=" + getThroughput() / 1024 + "kB/s }";
+        }
+    }
+
+    /* flash all interfaces at once. */
+    public STM32GangFlasher(List<STM32UsartInterface> ifaces) {
+        this(ifaces, ifaces.size());
+    }
+
+    /* flash at most parallelism interfaces at once. */
+    public STM32GangFlasher(List<STM32UsartInterface> ifaces, int parallelism) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be positive");
+        mInterfaces = new ArrayList<>(ifaces);
+        mParallelism = parallelism;
+    }
+
+    public void setDebug(boolean debug) {
+        mDebug = debug;
+    }
+
+    public void setEraseMode(STM32Flasher.EraseMode erase) {
+        mEraseMode = erase;
+    }
+
+    public void setVerify(boolean verify) {
+        mVerify = verify;
+    }
+
+    /* see STM32Flasher.setSkipBlank - image gets trimmed once for all ports. */
+    public void setSkipBlank(boolean skip) {
+        mSkipBlank = skip;
+    }
+
+    public void setMergeGap(int bytes) {
+        mMergeGap = bytes;
+    }
+
+    public void registerListener(Listener l) {
+        mListeners.add(l);
+    }
+
+    public void unregisterListener(Listener l) {
+        mListeners.remove(l);
+    }
+
+    /* flash fw on every port and wait for all of them to be done. */
+    public Result flash(STM32Firmware fw) throws InterruptedException {
+        for (STM32FirmwareSegment s : fw.getSegments()) {
+            if (s.getSource().isSequential())
+                throw new IllegalArgumentException("sequential source " + s.getSource() + " can not be shared between ports");
+        }
+
+        // trim a copy once, sessions then only read it.
+        final STM32Firmware image = new STM32Firmware(fw.getSegments());
+        if (mSkipBlank)
+            image.trim();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(mParallelism, mInterfaces.size())), r -> {
+            Thread t = new Thread(r, "stm32-gang-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+
+        long start = System.currentTimeMillis();
+        List<PortResult> results = new ArrayList<>();
+
+        try {
+            List<Future<PortResult>> futures = new ArrayList<>();
+            for (int i = 0; i < mInterfaces.size(); i++) {
+                final int port = i;
+                futures.add(executor.submit(() -> flashPort(port, image)));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(new PortResult(i, mInterfaces.get(i), false, e.getCause(), -1, image.getSize(), 0));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return new Result(results, System.currentTimeMillis() - start);
+    }
+
+    private PortResult flashPort(final int port, STM32Firmware image) {
+        STM32UsartInterface iface = mInterfaces.get(port);
+        STM32Flasher flasher = new STM32Flasher(iface, mDebug);
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        Throwable error = null;
+        int id;
+
+        flasher.setMergeGap(mMergeGap);
+        flasher.getDevice().setSkipBlankBlocks(mSkipBlank);
+        flasher.registerProgressListener(event -> {
+            if (event.getPhase() != STM32ProgressEvent.Phase.Write)
+                return;
+            for (Listener l : mListeners)
+                l.progress(port, event.getDone(), event.getTotal());
+        });
+
+        try {
+            success = flasher.connect() && flasher.flashFirmware(image, mEraseMode, mVerify);
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            id = flasher.getDevice().getId();
+            flasher.disconnect();
+        }
+
+        PortResult result = new PortResult(port, iface, success, error, id, image.getSize(),
+                System.currentTimeMillis() - start);
+        for (Listener l : mListeners)
+            l.completed(result);
+        return result;
+    }
+}
@@ -1,18 +1,366 @@
 package org.stm32flash;
 
-//import sun.reflect.generics.reflectiveObjects.NotImplementedException;
-
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
+/* Intel HEX parser - small files and sequential sources are decoded front to
+ * back, larger ones get decoded in chunks across cores. Chunks do not know the
+ * extended address in effect when they start, so data preceding their first
+ * extended address record is kept unresolved until merged with the chunk
+ * before it. Nor do they know their first line number: lines before a chunk
+ * are only counted when a record in it is found bad. */
 public class STM32HexFirmwareParser extends STM32FirmwareParser {
+    // files this large get decoded in parallel chunks.
+    private static final long PARALLEL_THRESHOLD = 1024 * 1024;
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    private static final int RECORD_DATA = 0x00;
+    private static final int RECORD_EOF = 0x01;
+    private static final int RECORD_EXTENDED_SEGMENT_ADDRESS = 0x02;
+    private static final int RECORD_START_SEGMENT_ADDRESS = 0x03;
+    private static final int RECORD_EXTENDED_LINEAR_ADDRESS = 0x04;
+    private static final int RECORD_START_LINEAR_ADDRESS = 0x05;
+
+    private int mBaseAddress = -1;
+
     public STM32HexFirmwareParser(String path) {
         super(path);
-        //throw new NotImplementedException();
+    }
+
+    public STM32HexFirmwareParser(STM32FirmwareSource source) {
+        super(source);
     }
 
     @Override
     public byte[] parse() throws IOException {
-        return null;
+        STM32Firmware fw = new STM32Firmware(parseSegments());
+
+        try {
+            mBaseAddress = fw.getBaseAddress();
+            return fw.getBuffer();
+        } catch (IllegalStateException e) {
+            throw new IOException("hex: " + mFirmwarePath + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<STM32FirmwareSegment> parseSegments() throws IOException {
+        STM32FirmwareSource source = getSource();
+        Chunk chunk;
+
+        try {
+            if (!source.isSequential() && source.size() >= PARALLEL_THRESHOLD) {
+                try {
+                    chunk = ForkJoinPool.commonPool().invoke(new DecodeTask(source, 0, source.size()));
+                } catch (UncheckedIOException e) {
+                    // fork-join may rethrow a copy of the exception, wrapping the original one.
+                    Throwable t = e;
+                    while (t != null && !(t instanceof IOException))
+                        t = t.getCause();
+                    throw t != null ? (IOException) t : e.getCause();
+                }
+            } else {
+                chunk = decode(source, 0, source.size());
+            }
+        } catch (RecordException e) {
+            // only parallel chunks start past beginning of file, and those sources can go back.
+            long line = e.mLine + (e.mChunkStart > 0 ? countLines(source, e.mChunkStart) : 0);
+            throw new IOException("hex: " + e.getMessage() + " at line " + line + ", offset " + e.mOffset);
+        }
+
+        return getSegments(chunk);
+    }
+
+    @Override
+    public int getBaseAddress() {
+        return mBaseAddress;
+    }
+
+    private static Chunk decode(STM32FirmwareSource source, long start, long end) throws IOException {
+        Decoder decoder = new Decoder(start);
+        byte[] b = new byte[8192];
+
+        for (long position = start; position < end && !decoder.mChunk.mEof; position += b.length) {
+            int len = (int) Math.min(end - position, b.length);
+            source.read(position, b, 0, len);
+            for (int i = 0; i < len && !decoder.mChunk.mEof; i++)
+                decoder.feed(b[i]);
+        }
+        decoder.end();
+
+        return decoder.mChunk;
+    }
+
+    /* line breaks in the first end bytes of source. */
+    private static long countLines(STM32FirmwareSource source, long end) throws IOException {
+        byte[] b = new byte[8192];
+        long lines = 0;
+
+        for (long position = 0; position < end; position += b.length) {
+            int len = (int) Math.min(end - position, b.length);
+            source.read(position, b, 0, len);
+            for (int i = 0; i < len; i++) {
+                if (b[i] == '\n')
+                    lines++;
+            }
+        }
+        return lines;
+    }
+
+    private List<STM32FirmwareSegment> getSegments(Chunk chunk) throws IOException {
+        chunk.resolve(0);
+
+        List<STM32FirmwareSegment> segments = STM32FirmwareRun.toSegments(chunk.mResolved, "hex: " + mFirmwarePath);
+        mBaseAddress = segments.get(0).getAddress();
+        return segments;
+    }
+
+    /* decoded part of a file: runs found before the first extended address
+     * record are relative to the base address in effect at chunk start. */
+    private static class Chunk {
+        List<STM32FirmwareRun> mUnresolved = new ArrayList<>();
+        List<STM32FirmwareRun> mResolved = new ArrayList<>();
+        boolean mHasBase = false;
+        long mBase;
+        boolean mEof = false;
+
+        void resolve(long base) {
+            for (STM32FirmwareRun r : mUnresolved) {
+                r.mAddress += base;
+                mResolved.add(r);
+            }
+            mUnresolved.clear();
+        }
+
+        /* append chunk following this one in file. */
+        Chunk merge(Chunk next) {
+            if (mEof)
+                return this;
+
+            if (mHasBase) {
+                next.resolve(mBase);
+            } else {
+                mUnresolved.addAll(next.mUnresolved);
+                next.mUnresolved.clear();
+            }
+
+            mResolved.addAll(next.mResolved);
+            if (next.mHasBase) {
+                mHasBase = true;
+                mBase = next.mBase;
+            }
+            mEof = next.mEof;
+            return this;
+        }
+    }
+
+    /* record by record decoder, fed one byte at a time. */
+    private static class Decoder {
+        private final Chunk mChunk = new Chunk();
+        // count, address, type, up to 255 data bytes, checksum
+        private final byte[] mRecord = new byte[5 + 255];
+        private final long mStart;
+        private long mOffset;
+        private long mRecordOffset;
+        // counted from chunk start.
+        private long mLine = 1;
+        private long mRecordLine;
+        private int mDigits = -1;
+        private int mNibble;
+        private STM32FirmwareRun mRun;
+
+        Decoder(long offset) {
+            mStart = offset;
+            mOffset = offset;
+        }
+
+        void feed(byte c) throws IOException {
+            mOffset++;
+
+            if (c == ':') {
+                if (mDigits >= 0)
+                    throw error("record not terminated");
+                mRecordOffset = mOffset - 1;
+                mRecordLine = mLine;
+                mDigits = 0;
+                return;
+            }
+
+            if (c == '\r' || c == '\n') {
+                if (mDigits >= 0)
+                    record();
+                mDigits = -1;
+                if (c == '\n')
+                    mLine++;
+                return;
+            }
+
+            if (mDigits < 0) {
+                if (c == ' ' || c == '\t')
+                    return;
+                mRecordOffset = mOffset - 1;
+                mRecordLine = mLine;
+                throw error("unexpected character outside of a record");
+            }
+
+            int v = Character.digit(c, 16);
+            if (v < 0)
+                throw error("invalid hex digit");
+
+            if ((mDigits & 1) == 0) {
+                mNibble = v;
+            } else {
+                int index = mDigits >> 1;
+                if (index >= mRecord.length)
+                    throw error("record too long");
+                mRecord[index] = (byte) ((mNibble << 4) | v);
+            }
+            mDigits++;
+        }
+
+        void end() throws IOException {
+            if (mDigits >= 0)
+                record();
+            mDigits = -1;
+        }
+
+        private void record() throws IOException {
+            if ((mDigits & 1) != 0 || mDigits < 10)
+                throw error("truncated record");
+
+            int count = mRecord[0] & 0xff;
+            int len = mDigits >> 1;
+            if (len != count + 5)
+                throw error("record length does not match byte count");
+
+            byte sum = 0;
+            for (int i = 0; i < len; i++)
+                sum += mRecord[i];
+            if (sum != 0)
+                throw error("bad record checksum");
+
+            int offset = ((mRecord[1] & 0xff) << 8) | (mRecord[2] & 0xff);
+            switch (mRecord[3] & 0xff) {
+                case RECORD_DATA:
+                    data(offset, count);
+                    break;
+
+                case RECORD_EOF:
+                    mChunk.mEof = true;
+                    break;
+
+                case RECORD_EXTENDED_SEGMENT_ADDRESS:
+                    base((long) ((((mRecord[4] & 0xff) << 8) | (mRecord[5] & 0xff)) << 4), count);
+                    break;
+
+                case RECORD_EXTENDED_LINEAR_ADDRESS:
+                    base((long) (((mRecord[4] & 0xff) << 8) | (mRecord[5] & 0xff)) << 16, count);
+                    break;
+
+                case RECORD_START_SEGMENT_ADDRESS:
+                case RECORD_START_LINEAR_ADDRESS:
+                    // entry point, not relevant for flashing.
+                    break;
+
+                default:
+                    throw error("unknown record type " + (mRecord[3] & 0xff));
+            }
+        }
+
+        private void base(long base, int count) throws IOException {
+            if (count != 2)
+                throw error("bad extended address record");
+            mChunk.mHasBase = true;
+            mChunk.mBase = base;
+            mRun = null;
+        }
+
+        private void data(int offset, int count) {
+            long address = mChunk.mHasBase ? mChunk.mBase + offset : offset;
+
+            if (mRun == null || mRun.mAddress + mRun.mLength != address) {
+                mRun = new STM32FirmwareRun(address);
+                if (mChunk.mHasBase)
+                    mChunk.mResolved.add(mRun);
+                else
+                    mChunk.mUnresolved.add(mRun);
+            }
+            mRun.append(mRecord, 4, count);
+        }
+
+        private IOException error(String msg) {
+            return new RecordException(msg, mRecordOffset, mStart, mRecordLine);
+        }
+    }
+
+    /* bad record, told apart from i/o errors until its line in file is known. */
+    private static class RecordException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long mOffset;
+        private final long mChunkStart;
+        private final long mLine;
+
+        RecordException(String msg, long offset, long chunkStart, long line) {
+            super(msg);
+            mOffset = offset;
+            mChunkStart = chunkStart;
+            mLine = line;
+        }
     }
 
+    private static class DecodeTask extends RecursiveTask<Chunk> {
+        private static final long serialVersionUID = 1L;
+
+        private final STM32FirmwareSource mSource;
+        private final long mStart;
+        private final long mEnd;
+
+        DecodeTask(STM32FirmwareSource source, long start, long end) {
+            mSource = source;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected Chunk compute() {
+            try {
+                if (mEnd - mStart > CHUNK_SIZE) {
+                    // split on a record start, so that each half only sees whole records.
+                    long split = findRecordStart(mStart + (mEnd - mStart) / 2);
+
+                    if (split < mEnd) {
+                        DecodeTask first = new DecodeTask(mSource, mStart, split);
+                        DecodeTask second = new DecodeTask(mSource, split, mEnd);
+                        second.fork();
+                        Chunk chunk = first.compute();
+                        return chunk.merge(second.join());
+                    }
+                }
+
+                return decode(mSource, mStart, mEnd);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private long findRecordStart(long position) throws IOException {
+            byte[] b = new byte[256];
+
+            while (position < mEnd) {
+                int len = (int) Math.min(mEnd - position, b.length);
+                mSource.read(position, b, 0, len);
+                for (int i = 0; i < len; i++) {
+                    if (b[i] == ':')
+                        return position + i;
+                }
+                position += len;
+            }
+            return mEnd;
+        }
+    }
 }
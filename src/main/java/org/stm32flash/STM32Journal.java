@@ -0,0 +1,297 @@
+package org.stm32flash;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/* on disk record of a flashing session, so that one interrupted by a crash or an
+ * unplugged board gets resumed by next STM32Flasher.flashFirmware of the same
+ * image on the same device, instead of starting over.
+ *
+ * one text record per line, appended as steps complete and synced to disk in
+ * batches: a record lost in a crash only costs doing its step again. a lost write
+ * record could also hide a page that was programmed after its erase was synced, so
+ * on resume, erased pages are only trusted as long as all the writes they hold were
+ * journaled - see distrust. an erase wipes records of writes that came before it.
+ *
+ *   session <image md5> <device id> <device uid, - if unknown> <erase mode>
+ *   erase-all
+ *   erase <page> [<page>...]
+ *   write <address> <length>
+ *   verify <address> <length>
+ *   done
+ */
+public class STM32Journal implements Closeable {
+    private static final String HEADER = "# stm32flash journal";
+    // records kept in memory at most before being synced, whatever their age.
+    private static final int SYNC_RECORDS = 64;
+    private static final long SYNC_INTERVAL = 1000;
+
+    private final File mFile;
+    private STM32DevInfo mDevInfo;
+    private FileChannel mChannel = null;
+    private final StringBuilder mPending = new StringBuilder();
+    private int mPendingRecords = 0;
+    private long mLastSync = 0;
+    // length of journal up to its last record that could be replayed.
+    private long mValidLength = 0;
+
+    private boolean mAllErased = false;
+    private final Set<Integer> mErasedPages = new HashSet<>();
+    // journaled erased, but maybe written since.
+    private final Set<Integer> mDistrustedPages = new HashSet<>();
+    private final Map<Integer, Integer> mWritten = new HashMap<>();
+    private final Map<Integer, Integer> mVerified = new HashMap<>();
+
+    public STM32Journal(File file) {
+        mFile = file;
+    }
+
+    public STM32Journal(String path) {
+        this(new File(path));
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /* start a session for image on device, info giving its pages: resumes journaled
+     * one if it is for the same image, device and erase mode and was not done, else
+     * starts over - returns true when resuming. */
+    boolean begin(byte[] image, int deviceId, STM32DevInfo info, byte[] uid, STM32Flasher.EraseMode erase) throws IOException {
+        close();
+        clearState();
+        mDevInfo = info;
+
+        String session = "session " + toHex(image) + " " + Integer.toHexString(deviceId) + " " +
+                (uid != null ? toHex(uid) : "-") + " " + erase;
+        boolean resume = mFile.exists() && load(session);
+
+        if (!resume) {
+            clearState();
+            mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            append(HEADER);
+            append(session);
+            sync();
+        } else {
+            // drop what a crash left after last good record, new ones go after it.
+            mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.WRITE);
+            mChannel.truncate(mValidLength);
+            mChannel.position(mValidLength);
+        }
+
+        return resume;
+    }
+
+    /* replay journaled records of session, false if file holds another one or a
+     * finished one. a record cut by a crash can only be the last one, and lacks its
+     * end of line: it is dropped. */
+    private boolean load(String session) throws IOException {
+        String content = new String(Files.readAllBytes(mFile.toPath()), StandardCharsets.US_ASCII);
+        boolean found = false;
+        int end;
+
+        mValidLength = 0;
+        for (int start = 0; (end = content.indexOf('\n', start)) >= 0; start = end + 1) {
+            String line = content.substring(start, end);
+            if (line.isEmpty() || line.startsWith("#")) {
+                mValidLength = end + 1;
+                continue;
+            }
+
+            if (!found) {
+                if (!line.equals(session))
+                    return false;
+                found = true;
+                mValidLength = end + 1;
+                continue;
+            }
+
+            String[] f = line.split(" ");
+            try {
+                switch (f[0]) {
+                    case "erase-all":
+                        eraseAll();
+                        break;
+                    case "erase":
+                        for (int i = 1; i < f.length; i++)
+                            erase(Integer.parseInt(f[i]));
+                        break;
+                    case "write":
+                        mWritten.put(Integer.parseUnsignedInt(f[1], 16), Integer.parseInt(f[2]));
+                        break;
+                    case "verify":
+                        mVerified.put(Integer.parseUnsignedInt(f[1], 16), Integer.parseInt(f[2]));
+                        break;
+                    case "done":
+                        return false;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                // garbage left by a crash, nothing after it can be trusted.
+                break;
+            }
+            mValidLength = end + 1;
+        }
+
+        return found;
+    }
+
+    private void clearState() {
+        mAllErased = false;
+        mErasedPages.clear();
+        mDistrustedPages.clear();
+        mWritten.clear();
+        mVerified.clear();
+        mPending.setLength(0);
+        mPendingRecords = 0;
+    }
+
+    boolean isAllErased() {
+        return mAllErased;
+    }
+
+    boolean isErased(int page) {
+        return (mAllErased || mErasedPages.contains(page)) && !mDistrustedPages.contains(page);
+    }
+
+    /* page journaled erased may have been written by a write whose record was lost:
+     * it is not erased anymore, and writes journaled in it will have to be done
+     * again once it is. */
+    void distrust(int page) {
+        mDistrustedPages.add(page);
+        forget(page);
+    }
+
+    /* pages to be erased again, after whole flash was. */
+    int[] getDistrustedPages() {
+        int[] pages = new int[mDistrustedPages.size()];
+        int i = 0;
+        for (int page : mDistrustedPages)
+            pages[i++] = page;
+        Arrays.sort(pages);
+        return pages;
+    }
+
+    boolean isWritten(int address, int len) {
+        Integer l = mWritten.get(address);
+        return l != null && l == len;
+    }
+
+    boolean isVerified(int address, int len) {
+        Integer l = mVerified.get(address);
+        return l != null && l == len;
+    }
+
+    void erasedAll() throws IOException {
+        eraseAll();
+        append("erase-all");
+        sync();
+    }
+
+    void erased(int[] pages, int offset, int count) throws IOException {
+        StringBuilder sb = new StringBuilder("erase");
+        for (int i = offset; i < offset + count; i++) {
+            erase(pages[i]);
+            sb.append(' ').append(pages[i]);
+        }
+        append(sb.toString());
+    }
+
+    void written(int address, int len) throws IOException {
+        mWritten.put(address, len);
+        append("write " + Integer.toHexString(address) + " " + len);
+    }
+
+    // a verified region is where resume starts from, worth a sync.
+    void verified(int address, int len) throws IOException {
+        mVerified.put(address, len);
+        append("verify " + Integer.toHexString(address) + " " + len);
+        sync();
+    }
+
+    /* session went through: journal is not resumed anymore. */
+    void done() throws IOException {
+        append("done");
+        sync();
+    }
+
+    private void eraseAll() {
+        mAllErased = true;
+        mDistrustedPages.clear();
+        mWritten.clear();
+        mVerified.clear();
+    }
+
+    private void erase(int page) {
+        mErasedPages.add(page);
+        mDistrustedPages.remove(page);
+        forget(page);
+    }
+
+    /* drop written and verified regions lying in page. */
+    private void forget(int page) {
+        mWritten.entrySet().removeIf(e -> overlaps(e.getKey(), e.getValue(), page));
+        mVerified.entrySet().removeIf(e -> overlaps(e.getKey(), e.getValue(), page));
+    }
+
+    private boolean overlaps(int address, int len, int page) {
+        return mDevInfo.getPage(address) <= page && mDevInfo.getPage(address + len - 1) >= page;
+    }
+
+    private void append(String record) throws IOException {
+        if (mChannel == null)
+            throw new IOException("journal " + mFile + " has no session");
+
+        mPending.append(record).append('\n');
+        mPendingRecords++;
+
+        if (mPendingRecords >= SYNC_RECORDS || System.currentTimeMillis() - mLastSync >= SYNC_INTERVAL)
+            sync();
+    }
+
+    /* write pending records and wait for them to reach the disk. */
+    public void sync() throws IOException {
+        if (mChannel == null || mPendingRecords == 0)
+            return;
+
+        ByteBuffer b = ByteBuffer.wrap(mPending.toString().getBytes(StandardCharsets.US_ASCII));
+        while (b.hasRemaining())
+            mChannel.write(b);
+        mChannel.force(false);
+
+        mPending.setLength(0);
+        mPendingRecords = 0;
+        mLastSync = System.currentTimeMillis();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mChannel == null)
+            return;
+
+        try {
+            sync();
+        } finally {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    private static String toHex(byte[] b) {
+        StringBuilder sb = new StringBuilder();
+        for (byte x : b)
+            sb.append(String.format("%02x", x & 0xff));
+        return sb.toString();
+    }
+}
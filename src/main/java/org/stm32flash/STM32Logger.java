@@ -0,0 +1,18 @@
+package org.stm32flash;
+
+/* where STM32Device and STM32Flasher messages go, CONSOLE unless told otherwise.
+ * Debug messages are only built when debug is on. */
+public interface STM32Logger {
+    enum Level {
+        Debug,
+        Info,
+        Error
+    }
+
+    /* errors to System.err, anything else to System.out. */
+    STM32Logger CONSOLE = (level, message) -> (level == Level.Error ? System.err : System.out).println(message);
+
+    STM32Logger NONE = (level, message) -> { };
+
+    void log(Level level, String message);
+}
@@ -0,0 +1,43 @@
+package org.stm32flash;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/* file mapped read only - a single instance can be shared by concurrent sessions. */
+public class STM32MappedFirmwareSource implements STM32FirmwareSource {
+    private final String mPath;
+    private final MappedByteBuffer mBuffer;
+
+    public STM32MappedFirmwareSource(String path) throws IOException {
+        mPath = path;
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r");
+             FileChannel channel = raf.getChannel()) {
+            // mapping stays valid once channel is closed.
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public long size() {
+        return mBuffer.limit();
+    }
+
+    @Override
+    public void read(long position, byte[] b, int off, int len) throws IOException {
+        if (position < 0 || position + len > mBuffer.limit())
+            throw new IOException(mPath + ": read " + len + "b @ " + position + " out of file bounds");
+
+        // duplicates do not share position, so concurrent reads do not step on each other.
+        ByteBuffer view = mBuffer.duplicate();
+        view.position((int) position);
+        view.get(b, off, len);
+    }
+
+    @Override
+    public String toString() {
+        return mPath;
+    }
+}
@@ -0,0 +1,241 @@
+package org.stm32flash;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/* counters and latency histograms of bootloader commands, with link errors.
+ * recording only bumps preallocated adders: no allocation and no lock on the
+ * hot path, and devices flashed from several threads do not contend.
+ *
+ * each device keeps metrics of its session, reset on connect, which also feed
+ * the process wide aggregate. both can be pulled, or registered as MXBeans. */
+public final class STM32Metrics implements STM32MetricsMXBean {
+    // bucket i counts latencies up to 2^i us, last one anything above.
+    private static final int BUCKETS = 32;
+    private static final STM32Device.STM32Command[] COMMANDS = STM32Device.STM32Command.values();
+
+    private static final STM32Metrics mAggregate = new STM32Metrics(null);
+
+    private final STM32Metrics mParent;
+
+    private final LongAdder[] mErrors = adders(COMMANDS.length);
+    private final LongAdder[] mBytes = adders(COMMANDS.length);
+    private final LongAdder[] mTime = adders(COMMANDS.length);
+    private final LongAdder[] mLatency = adders(COMMANDS.length * BUCKETS);
+    private final LongAccumulator[] mMaxLatency = new LongAccumulator[COMMANDS.length];
+
+    private final LongAdder mAcks = new LongAdder();
+    private final LongAdder mNacks = new LongAdder();
+    private final LongAdder mGarbage = new LongAdder();
+    private final LongAdder mTimeouts = new LongAdder();
+    private final LongAdder mRetries = new LongAdder();
+
+    /* metrics also recorded into parent, if any. */
+    public STM32Metrics(STM32Metrics parent) {
+        mParent = parent;
+        for (int i = 0; i < mMaxLatency.length; i++)
+            mMaxLatency[i] = new LongAccumulator(Math::max, 0);
+    }
+
+    /* all devices of the process. */
+    public static STM32Metrics getAggregate() {
+        return mAggregate;
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    /* command completed in nanos, carrying bytes - or failed, and then its time
+     * is not accounted. */
+    void command(STM32Device.STM32Command command, boolean ok, int bytes, long nanos) {
+        int c = command.ordinal();
+
+        if (ok) {
+            long micros = nanos / 1000;
+            mBytes[c].add(bytes);
+            mTime[c].add(micros);
+            mLatency[c * BUCKETS + getBucket(micros)].increment();
+            mMaxLatency[c].accumulate(micros);
+        } else {
+            mErrors[c].increment();
+        }
+
+        if (mParent != null)
+            mParent.command(command, ok, bytes, nanos);
+    }
+
+    void ack() {
+        mAcks.increment();
+        if (mParent != null)
+            mParent.ack();
+    }
+
+    void nack() {
+        mNacks.increment();
+        if (mParent != null)
+            mParent.nack();
+    }
+
+    void garbage() {
+        mGarbage.increment();
+        if (mParent != null)
+            mParent.garbage();
+    }
+
+    void timeout() {
+        mTimeouts.increment();
+        if (mParent != null)
+            mParent.timeout();
+    }
+
+    void retry() {
+        mRetries.increment();
+        if (mParent != null)
+            mParent.retry();
+    }
+
+    private static int getBucket(long micros) {
+        if (micros <= 1)
+            return 0;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+    }
+
+    @Override
+    public long getAcks() {
+        return mAcks.sum();
+    }
+
+    @Override
+    public long getNacks() {
+        return mNacks.sum();
+    }
+
+    @Override
+    public long getGarbage() {
+        return mGarbage.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return mTimeouts.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return mRetries.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return mBytes[STM32Device.STM32Command.WriteMemory.ordinal()].sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return mBytes[STM32Device.STM32Command.ReadMemory.ordinal()].sum();
+    }
+
+    @Override
+    public double getWriteThroughput() {
+        return getCommandMetrics(STM32Device.STM32Command.WriteMemory).getThroughput();
+    }
+
+    @Override
+    public double getReadThroughput() {
+        return getCommandMetrics(STM32Device.STM32Command.ReadMemory).getThroughput();
+    }
+
+    @Override
+    public List<STM32CommandMetrics> getCommands() {
+        List<STM32CommandMetrics> commands = new ArrayList<>();
+        for (STM32Device.STM32Command command : COMMANDS) {
+            STM32CommandMetrics m = getCommandMetrics(command);
+            if (m.getCount() > 0 || m.getErrors() > 0)
+                commands.add(m);
+        }
+        return commands;
+    }
+
+    /* counters being updated meanwhile may or may not be part of snapshot. */
+    private STM32CommandMetrics getCommandMetrics(STM32Device.STM32Command command) {
+        int c = command.ordinal();
+        long[] latency = new long[BUCKETS];
+        long count = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            latency[i] = mLatency[c * BUCKETS + i].sum();
+            count += latency[i];
+        }
+
+        long max = mMaxLatency[c].get();
+        return new STM32CommandMetrics(command.name(), count, mErrors[c].sum(), mBytes[c].sum(), mTime[c].sum(),
+                getPercentile(latency, count, 0.5, max), getPercentile(latency, count, 0.99, max), max);
+    }
+
+    private static long getPercentile(long[] latency, long count, double percentile, long max) {
+        long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += latency[i];
+            if (seen >= rank && seen > 0)
+                return Math.min(1L << i, max);
+        }
+        return max;
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder[] adders : new LongAdder[][] { mErrors, mBytes, mTime, mLatency }) {
+            for (LongAdder a : adders)
+                a.reset();
+        }
+        for (LongAccumulator a : mMaxLatency)
+            a.reset();
+        mAcks.reset();
+        mNacks.reset();
+        mGarbage.reset();
+        mTimeouts.reset();
+        mRetries.reset();
+    }
+
+    /* register in platform MBean server, as org.stm32flash:type=STM32Metrics,name=<name>. */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = getObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public void unregister(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName(name));
+    }
+
+    private static ObjectName getObjectName(String name) throws JMException {
+        return new ObjectName("org.stm32flash:type=STM32Metrics,name=" + ObjectName.quote(name));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("STM32Metrics {" +
+                "Acks=" + getAcks() +
+                ", Nacks=" + getNacks() +
+                ", Garbage=" + getGarbage() +
+                ", Timeouts=" + getTimeouts() +
+                ", Retries=" + getRetries());
+        for (STM32CommandMetrics m : getCommands())
+            sb.append(", ").append(m);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,31 @@
+package org.stm32flash;
+
+import java.util.List;
+
+/* STM32Metrics as seen through JMX, see STM32Metrics.register(). times in us,
+ * throughputs in bytes/s. */
+public interface STM32MetricsMXBean {
+    long getAcks();
+
+    long getNacks();
+
+    /* bytes received where an ack was expected. */
+    long getGarbage();
+
+    long getTimeouts();
+
+    long getRetries();
+
+    long getBytesWritten();
+
+    long getBytesRead();
+
+    double getWriteThroughput();
+
+    double getReadThroughput();
+
+    /* commands issued at least once. */
+    List<STM32CommandMetrics> getCommands();
+
+    void reset();
+}
@@ -0,0 +1,90 @@
+package org.stm32flash;
+
+/* where a device operation stands: first event of a phase has nothing done,
+ * last one is completed. amounts are in bytes - erased ones for Erase, Connect
+ * has none. */
+public final class STM32ProgressEvent {
+    public enum Phase {
+        Connect,
+        Erase,
+        Write,
+        Verify,
+        Read
+    }
+
+    private final Phase mPhase;
+    private final int mAddress;
+    private final long mDone;
+    private final long mTotal;
+    private final long mElapsed;
+    private final double mThroughput;
+    private final long mEta;
+    private final boolean mCompleted;
+    private final boolean mSuccess;
+
+    STM32ProgressEvent(Phase phase, int address, long done, long total, long elapsed, double throughput, long eta, boolean completed, boolean success) {
+        mPhase = phase;
+        mAddress = address;
+        mDone = done;
+        mTotal = total;
+        mElapsed = elapsed;
+        mThroughput = throughput;
+        mEta = eta;
+        mCompleted = completed;
+        mSuccess = success;
+    }
+
+    public Phase getPhase() {
+        return mPhase;
+    }
+
+    /* address phase got to, -1 if it did not touch memory yet. */
+    public int getAddress() {
+        return mAddress;
+    }
+
+    public long getDone() {
+        return mDone;
+    }
+
+    public long getTotal() {
+        return mTotal;
+    }
+
+    /* since phase started, in ms. */
+    public long getElapsed() {
+        return mElapsed;
+    }
+
+    /* bytes/s since previous event of phase. */
+    public double getThroughput() {
+        return mThroughput;
+    }
+
+    /* time left in ms, from smoothed throughput - -1 while unknown. */
+    public long getEta() {
+        return mEta;
+    }
+
+    public boolean isCompleted() {
+        return mCompleted;
+    }
+
+    /* for completed phases. */
+    public boolean isSuccess() {
+        return mSuccess;
+    }
+
+    @Override
+    public String toString() {
+        return "STM32ProgressEvent {" +
+                "Phase=" + mPhase +
+                ", Address=0x" + Integer.toHexString(mAddress) +
+                ", Done=" + mDone + "/" + mTotal +
+                ", Elapsed=" + mElapsed + "ms" +
+                ", Throughput=" + (long) mThroughput + "B/s" +
+                ", Eta=" + mEta + "ms" +
+                (mCompleted ? ", " + (mSuccess ? "Completed" : "Failed") : "") +
+                '}';
+    }
+}
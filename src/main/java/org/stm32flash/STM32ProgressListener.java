@@ -0,0 +1,7 @@
+package org.stm32flash;
+
+/* called from progress delivery thread, never from the one talking to device:
+ * a slow listener delays next events, not flashing. */
+public interface STM32ProgressListener {
+    void progress(STM32ProgressEvent event);
+}
@@ -0,0 +1,136 @@
+package org.stm32flash;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/* turns device progress into events: besides first and last ones, at most one
+ * per interval for each phase. updates only touch primitive fields until an event
+ * is due, and events are delivered to listeners on an executor, in order as long
+ * as it runs them one at a time - default one is a single thread shared by all
+ * devices. phases nest: an erase inside a write is part of it.
+ *
+ * STM32OperationProgressListeners get what they always got: progress of writes,
+ * and their completion, on the thread talking to device as it happens. */
+class STM32ProgressReporter {
+    private static final int DEFAULT_INTERVAL = 100;
+    // weight of latest throughput in the one ETA is derived from.
+    private static final double RATE_WEIGHT = 0.3;
+
+    private static final ExecutorService mDefaultExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "stm32-progress");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final List<STM32ProgressListener> mListeners = new CopyOnWriteArrayList<>();
+    private final List<STM32OperationProgressListener> mOperationListeners = new CopyOnWriteArrayList<>();
+    private volatile Executor mExecutor = mDefaultExecutor;
+    private volatile long mInterval = DEFAULT_INTERVAL * 1000000L;
+
+    // phase in progress, only touched by thread talking to device.
+    private STM32ProgressEvent.Phase mPhase = null;
+    private int mDepth = 0;
+    private long mTotal;
+    private long mStart;
+    private long mLastTime;
+    private long mLastDone;
+    private int mLastAddress;
+    private double mRate;
+
+    void addListener(STM32ProgressListener l) {
+        mListeners.add(l);
+    }
+
+    void removeListener(STM32ProgressListener l) {
+        mListeners.remove(l);
+    }
+
+    void addListener(STM32OperationProgressListener l) {
+        mOperationListeners.add(l);
+    }
+
+    void removeListener(STM32OperationProgressListener l) {
+        mOperationListeners.remove(l);
+    }
+
+    void setExecutor(Executor executor) {
+        mExecutor = executor != null ? executor : mDefaultExecutor;
+    }
+
+    /* 0 for an event on each update. */
+    void setInterval(int millis) {
+        mInterval = millis * 1000000L;
+    }
+
+    void begin(STM32ProgressEvent.Phase phase, long total) {
+        if (mDepth++ > 0)
+            return;
+
+        mPhase = phase;
+        mTotal = total;
+        mStart = mLastTime = System.nanoTime();
+        mLastDone = 0;
+        mLastAddress = -1;
+        mRate = 0;
+        if (!mListeners.isEmpty())
+            publish(new STM32ProgressEvent(phase, -1, 0, total, 0, 0, -1, false, false));
+    }
+
+    /* done bytes of phase, up to address. updates of nested phases are dropped. */
+    void update(STM32ProgressEvent.Phase phase, int address, long done) {
+        if (phase != mPhase)
+            return;
+
+        if (phase == STM32ProgressEvent.Phase.Write) {
+            for (STM32OperationProgressListener l : mOperationListeners)
+                l.progress(done, mTotal);
+        }
+        if (mListeners.isEmpty())
+            return;
+
+        long now = System.nanoTime();
+        long elapsed = now - mLastTime;
+        if (elapsed < mInterval)
+            return;
+
+        double rate = elapsed > 0 ? (done - mLastDone) * 1e9 / elapsed : 0;
+        mRate = mRate == 0 ? rate : mRate + RATE_WEIGHT * (rate - mRate);
+        long eta = mRate > 0 ? (long) ((mTotal - done) * 1000 / mRate) : -1;
+
+        mLastTime = now;
+        mLastDone = done;
+        mLastAddress = address;
+        publish(new STM32ProgressEvent(phase, address, done, mTotal, (now - mStart) / 1000000, rate, eta, false, false));
+    }
+
+    void end(boolean success) {
+        if (mDepth == 0 || --mDepth > 0)
+            return;
+
+        STM32ProgressEvent.Phase phase = mPhase;
+        mPhase = null;
+
+        if (phase == STM32ProgressEvent.Phase.Write) {
+            for (STM32OperationProgressListener l : mOperationListeners)
+                l.completed(success);
+        }
+        if (mListeners.isEmpty())
+            return;
+
+        // last event reports mean throughput of whole phase.
+        long done = success ? mTotal : mLastDone;
+        long elapsed = System.nanoTime() - mStart;
+        double rate = elapsed > 0 ? done * 1e9 / elapsed : 0;
+        publish(new STM32ProgressEvent(phase, mLastAddress, done, mTotal, elapsed / 1000000, rate, success ? 0 : -1, true, success));
+    }
+
+    private void publish(STM32ProgressEvent event) {
+        mExecutor.execute(() -> {
+            for (STM32ProgressListener l : mListeners)
+                l.progress(event);
+        });
+    }
+}
@@ -0,0 +1,32 @@
+package org.stm32flash;
+
+/* how hard a session tries to get a block through a noisy link: a block read,
+ * written or checksummed again after a NACK, garbage or a timeout, at most
+ * blockRetries times, and at most sessionBudget times over a whole connection. */
+public class STM32RetryPolicy {
+    public static final STM32RetryPolicy NONE = new STM32RetryPolicy(0, 0);
+    public static final STM32RetryPolicy DEFAULT = new STM32RetryPolicy(3, 32);
+
+    private final int mBlockRetries;
+    private final int mSessionBudget;
+
+    public STM32RetryPolicy(int blockRetries, int sessionBudget) {
+        if (blockRetries < 0 || sessionBudget < 0)
+            throw new IllegalArgumentException("retries can not be negative");
+        mBlockRetries = blockRetries;
+        mSessionBudget = sessionBudget;
+    }
+
+    public int getBlockRetries() {
+        return mBlockRetries;
+    }
+
+    public int getSessionBudget() {
+        return mSessionBudget;
+    }
+
+    @Override
+    public String toString() {
+        return "STM32RetryPolicy{ BlockRetries=" + mBlockRetries + ", SessionBudget=" + mSessionBudget + " }";
+    }
+}
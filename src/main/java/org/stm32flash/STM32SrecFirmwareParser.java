@@ -0,0 +1,184 @@
+package org.stm32flash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Motorola S-record parser - S1/S2/S3 data records with 16, 24 or 32bit
+ * addresses, decoded while read front to back. */
+public class STM32SrecFirmwareParser extends STM32FirmwareParser {
+    private int mBaseAddress = -1;
+
+    public STM32SrecFirmwareParser(String path) {
+        super(path);
+    }
+
+    public STM32SrecFirmwareParser(STM32FirmwareSource source) {
+        super(source);
+    }
+
+    @Override
+    public byte[] parse() throws IOException {
+        STM32Firmware fw = new STM32Firmware(parseSegments());
+
+        try {
+            return fw.getBuffer();
+        } catch (IllegalStateException e) {
+            throw new IOException("srec: " + mFirmwarePath + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<STM32FirmwareSegment> parseSegments() throws IOException {
+        STM32FirmwareSource source = getSource();
+        Decoder decoder = new Decoder();
+        byte[] b = new byte[8192];
+
+        for (long position = 0; position < source.size() && !decoder.mEnd; position += b.length) {
+            int len = (int) Math.min(source.size() - position, b.length);
+            source.read(position, b, 0, len);
+            for (int i = 0; i < len && !decoder.mEnd; i++)
+                decoder.feed(b[i]);
+        }
+        decoder.end();
+
+        List<STM32FirmwareSegment> segments = STM32FirmwareRun.toSegments(decoder.mRuns, "srec: " + mFirmwarePath);
+        mBaseAddress = segments.get(0).getAddress();
+        return segments;
+    }
+
+    @Override
+    public int getBaseAddress() {
+        return mBaseAddress;
+    }
+
+    /* record by record decoder, fed one byte at a time. */
+    private static class Decoder {
+        private final List<STM32FirmwareRun> mRuns = new ArrayList<>();
+        // count, address, up to 251 data bytes, checksum
+        private final byte[] mRecord = new byte[1 + 255];
+        private boolean mEnd = false;
+        private long mOffset;
+        private long mRecordOffset;
+        private int mType;
+        // -2 outside of a record, -1 expecting record type
+        private int mDigits = -2;
+        private int mNibble;
+        private STM32FirmwareRun mRun;
+
+        void feed(byte c) throws IOException {
+            mOffset++;
+
+            if (c == 'S') {
+                if (mDigits != -2)
+                    throw error("record not terminated");
+                mRecordOffset = mOffset - 1;
+                mDigits = -1;
+                return;
+            }
+
+            if (c == '\r' || c == '\n') {
+                if (mDigits != -2)
+                    record();
+                mDigits = -2;
+                return;
+            }
+
+            if (mDigits == -2) {
+                if (c == ' ' || c == '\t')
+                    return;
+                throw error("unexpected character outside of a record");
+            }
+
+            int v = Character.digit(c, 16);
+            if (mDigits == -1) {
+                if (v < 0 || v > 9)
+                    throw error("invalid record type");
+                mType = v;
+                mDigits = 0;
+                return;
+            }
+
+            if (v < 0)
+                throw error("invalid hex digit");
+
+            if ((mDigits & 1) == 0) {
+                mNibble = v;
+            } else {
+                int index = mDigits >> 1;
+                if (index >= mRecord.length)
+                    throw error("record too long");
+                mRecord[index] = (byte) ((mNibble << 4) | v);
+            }
+            mDigits++;
+        }
+
+        void end() throws IOException {
+            if (mDigits != -2)
+                record();
+            mDigits = -2;
+        }
+
+        private void record() throws IOException {
+            if (mDigits < 0 || (mDigits & 1) != 0 || mDigits < 4)
+                throw error("truncated record");
+
+            int count = mRecord[0] & 0xff;
+            int len = mDigits >> 1;
+            if (len != count + 1)
+                throw error("record length does not match byte count");
+
+            int sum = 0;
+            for (int i = 0; i < len; i++)
+                sum += mRecord[i] & 0xff;
+            if ((sum & 0xff) != 0xff)
+                throw error("bad record checksum");
+
+            switch (mType) {
+                case 0:
+                case 5:
+                case 6:
+                    // header and record counts, not relevant for flashing.
+                    break;
+
+                case 1:
+                case 2:
+                case 3:
+                    data(mType + 1, count);
+                    break;
+
+                case 7:
+                case 8:
+                case 9:
+                    // entry point, ends data.
+                    mEnd = true;
+                    break;
+
+                default:
+                    throw error("unknown record type S" + mType);
+            }
+        }
+
+        private void data(int addressSize, int count) throws IOException {
+            if (count < addressSize + 1)
+                throw error("truncated record");
+
+            long address = 0;
+            for (int i = 1; i <= addressSize; i++)
+                address = (address << 8) | (mRecord[i] & 0xff);
+
+            if (count == addressSize + 1)
+                return;
+
+            if (mRun == null || mRun.mAddress + mRun.mLength != address) {
+                mRun = new STM32FirmwareRun(address);
+                mRuns.add(mRun);
+            }
+            mRun.append(mRecord, 1 + addressSize, count - addressSize - 1);
+        }
+
+        private IOException error(String msg) {
+            return new IOException("srec: " + msg + " at offset " + mRecordOffset);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.stm32flash;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/* source reading a stream of known size front to back, keeping only a bounded
+ * window of it: positions may go back as long as they are still in the window.
+ * not meant to be shared between sessions. */
+public class STM32StreamFirmwareSource implements STM32FirmwareSource {
+    // large enough for verify regions and the largest flash sectors.
+    public static final int DEFAULT_WINDOW_SIZE = 256 * 1024;
+
+    private final ReadableByteChannel mChannel;
+    private final long mSize;
+    private final ByteBuffer mWindow;
+    // stream position of first byte held by window.
+    private long mWindowStart = 0;
+
+    public STM32StreamFirmwareSource(ReadableByteChannel channel, long size, int windowSize) {
+        mChannel = channel;
+        mSize = size;
+        mWindow = ByteBuffer.allocate(windowSize);
+    }
+
+    public STM32StreamFirmwareSource(ReadableByteChannel channel, long size) {
+        this(channel, size, DEFAULT_WINDOW_SIZE);
+    }
+
+    public STM32StreamFirmwareSource(InputStream is, long size, int windowSize) {
+        this(Channels.newChannel(is), size, windowSize);
+    }
+
+    public STM32StreamFirmwareSource(InputStream is, long size) {
+        this(is, size, DEFAULT_WINDOW_SIZE);
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean isSequential() {
+        return true;
+    }
+
+    @Override
+    public synchronized void read(long position, byte[] b, int off, int len) throws IOException {
+        if (position + len > mSize)
+            throw new IOException("read " + len + "b @ " + position + " past end of stream");
+        if (position < mWindowStart)
+            throw new IOException("read @ " + position + " no longer in look-ahead window");
+        if (len > mWindow.capacity())
+            throw new IOException("read of " + len + "b larger than look-ahead window");
+
+        long end = position + len;
+        while (mWindowStart + mWindow.position() < end) {
+            if (!mWindow.hasRemaining()) {
+                // keep as much history as possible, only drop what does not fit anymore.
+                long drop = Math.min(end - (mWindowStart + mWindow.capacity()), mWindow.position());
+                mWindow.flip();
+                mWindow.position((int) drop);
+                mWindow.compact();
+                mWindowStart += drop;
+            }
+
+            if (mChannel.read(mWindow) < 0)
+                throw new EOFException("unexpected end of stream @ " + (mWindowStart + mWindow.position()));
+        }
+
+        System.arraycopy(mWindow.array(), (int) (position - mWindowStart), b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,171 @@
+package org.stm32flash;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* learns how long bootloader takes to complete operations, per device id, and
+ * derives ack timeouts from it: a high percentile of recent latencies, scaled to
+ * operation size, plus a margin. fixed timeouts are used until enough samples
+ * were seen, and are never exceeded.
+ *
+ * percentiles are kept up to date as samples are recorded, so getting a timeout
+ * is a few array reads - no allocation, and no lock shared by the devices of a
+ * gang, each series having its own. */
+public class STM32TimeoutModel {
+    /* unit an operation latency is counted in is given next to it. */
+    public enum Operation {
+        Ack(true),            // command or address ack, unit: 1
+        ReadBlock(true),      // data read back, unit: byte
+        WriteBlock(false),    // block programmed, unit: byte
+        Checksum(false),      // crc computed, unit: byte
+        ErasePage(false),     // pages erased, unit: byte, as page sizes may differ
+        MassErase(false),     // whole flash erased, unit: 1
+        Protect(false);       // protection changed, unit: 1
+
+        // time spent on the line dominates, so rate is part of what is learned.
+        private final boolean mLinkBound;
+
+        Operation(boolean linkBound) {
+            mLinkBound = linkBound;
+        }
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    // device ids are the 12 bits DEV_ID of DBGMCU_IDCODE.
+    private static final int DEVICE_IDS = 0x1000;
+
+    private static final int SAMPLES = 64;
+    private static final int MIN_SAMPLES = 8;
+    private static final double PERCENTILE = 0.99;
+    private static final double FACTOR = 1.5;
+    // covers usb serial adapters latency timer and scheduling jitter.
+    private static final int MARGIN = 200;
+
+    private static final STM32TimeoutModel mDefault = new STM32TimeoutModel();
+
+    private final AtomicReferenceArray<Device> mDevices = new AtomicReferenceArray<>(DEVICE_IDS);
+
+    /* model shared by devices unless told otherwise. */
+    public static STM32TimeoutModel getDefault() {
+        return mDefault;
+    }
+
+    /* time it took device to complete op on units, in ns. unknown devices (id < 0)
+     * are ignored. */
+    public void record(int deviceId, int baudRate, Operation op, int units, long nanos) {
+        if (deviceId < 0 || deviceId >= DEVICE_IDS || units <= 0)
+            return;
+
+        Device d = mDevices.get(deviceId);
+        if (d == null) {
+            mDevices.compareAndSet(deviceId, null, new Device());
+            d = mDevices.get(deviceId);
+        }
+        d.getSamples(op.mLinkBound ? baudRate : 0, true)[op.ordinal()].add((double) nanos / units);
+    }
+
+    /* timeout in ms for op on units, fallback until enough samples were recorded. */
+    public int getTimeout(int deviceId, int baudRate, Operation op, int units, int fallback) {
+        if (deviceId < 0 || deviceId >= DEVICE_IDS)
+            return fallback;
+
+        Device d = mDevices.get(deviceId);
+        if (d == null)
+            return fallback;
+
+        Samples[] samples = d.getSamples(op.mLinkBound ? baudRate : 0, false);
+        if (samples == null)
+            return fallback;
+
+        double percentile = samples[op.ordinal()].mPercentile;
+        if (percentile < 0)
+            return fallback;
+
+        double nanos = percentile * Math.max(units, 1) * FACTOR;
+        return (int) Math.min(fallback, (long) (nanos / 1000000) + MARGIN);
+    }
+
+    public void clear() {
+        for (int i = 0; i < DEVICE_IDS; i++)
+            mDevices.set(i, null);
+    }
+
+    /* series of one device id, per baud rate - 0 for operations not bound to link. */
+    private static final class Device {
+        private volatile int[] mRates = new int[0];
+        private volatile Samples[][] mSamples = new Samples[0][];
+
+        Samples[] getSamples(int baudRate, boolean create) {
+            Samples[][] samples = mSamples;
+            int[] rates = mRates;
+            // rates are published before their samples, so a rate seen here has them.
+            for (int i = 0; i < samples.length; i++) {
+                if (rates[i] == baudRate)
+                    return samples[i];
+            }
+            return create ? add(baudRate) : null;
+        }
+
+        private synchronized Samples[] add(int baudRate) {
+            int[] rates = mRates;
+            for (int i = 0; i < rates.length; i++) {
+                if (rates[i] == baudRate)
+                    return mSamples[i];
+            }
+
+            Samples[] added = new Samples[OPERATIONS.length];
+            for (int i = 0; i < added.length; i++)
+                added[i] = new Samples();
+
+            int n = rates.length;
+            int[] newRates = Arrays.copyOf(rates, n + 1);
+            newRates[n] = baudRate;
+            Samples[][] newSamples = Arrays.copyOf(mSamples, n + 1);
+            newSamples[n] = added;
+
+            mRates = newRates;
+            mSamples = newSamples;
+            return added;
+        }
+    }
+
+    /* last SAMPLES latencies per unit, in ns, in arrival order and sorted - sorted
+     * copy is updated in place as samples come and go. */
+    private static final class Samples {
+        private final double[] mValues = new double[SAMPLES];
+        private final double[] mSorted = new double[SAMPLES];
+        private int mCount = 0;
+        private int mNext = 0;
+        // PERCENTILE of samples, -1 until MIN_SAMPLES were seen.
+        private volatile double mPercentile = -1;
+
+        synchronized void add(double value) {
+            if (mCount == SAMPLES)
+                remove(mValues[mNext]);
+            else
+                mCount++;
+
+            mValues[mNext] = value;
+            mNext = (mNext + 1) % SAMPLES;
+            insert(value, mCount - 1);
+
+            if (mCount >= MIN_SAMPLES)
+                mPercentile = mSorted[Math.max(0, (int) Math.ceil(PERCENTILE * mCount) - 1)];
+        }
+
+        /* drop value from mSorted, holding mCount values. */
+        private void remove(double value) {
+            int i = Arrays.binarySearch(mSorted, 0, mCount, value);
+            System.arraycopy(mSorted, i + 1, mSorted, i, mCount - i - 1);
+        }
+
+        /* add value to mSorted, holding count values. */
+        private void insert(double value, int count) {
+            int i = Arrays.binarySearch(mSorted, 0, count, value);
+            if (i < 0)
+                i = -i - 1;
+            System.arraycopy(mSorted, i, mSorted, i + 1, count - i);
+            mSorted[i] = value;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package org.stm32flash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.Date;
+
+/* summary of a trace written by STM32TraceRecorder: latency of each bootloader
+ * command, as STM32Metrics would have measured it, and where the time went -
+ * host busy between transfers, writing, waiting for device replies, or waiting in
+ * vain until reads timed out.
+ *
+ * commands are told apart from their frames by the protocol: a command starts
+ * with its code and complement, or 0x7f for init, and lasts until next one. the
+ * first single byte read after each write is taken as its ack or NACK, and a
+ * command failed when it got a NACK or a read timed out with nothing received
+ * before its next write - reads polling for a late reply are time spent waiting.
+ *
+ *   java -cp stm32flash-lib.jar org.stm32flash.STM32TraceAnalyzer <trace>... */
+public final class STM32TraceAnalyzer {
+    private static final byte ACK = 0x79;
+    private static final byte NACK = 0x1f;
+    private static final byte INIT = 0x7f;
+
+    private static final STM32Device.STM32Command[] COMMANDS = STM32Device.STM32Command.values();
+    // groups of transfers: one per command, then init, then what belongs to none.
+    private static final int GROUP_INIT = COMMANDS.length;
+    private static final int GROUP_OTHER = COMMANDS.length + 1;
+
+    private static final int TIME_HOST = 0;
+    private static final int TIME_WRITING = 1;
+    private static final int TIME_WAITING = 2;
+    private static final int TIME_TIMEOUT = 3;
+    private static final String[] TIME_NAMES = { "Host", "Writing", "Waiting", "Timeouts" };
+
+    private final File mFile;
+    private final STM32Metrics mMetrics = new STM32Metrics(null);
+    private final long[][] mTime = new long[GROUP_OTHER + 1][TIME_NAMES.length];
+    private final int[] mCount = new int[GROUP_OTHER + 1];
+    private long mWallClock;
+    private long mDuration = 0;
+    private int mRecords = 0;
+    private int mResets = 0;
+    private int mBaudRateChanges = 0;
+
+    // group in progress.
+    private int mGroup = GROUP_OTHER;
+    private long mGroupStart;
+    private long mGroupEnd;
+    private int mGroupWrites;
+    private int mGroupBytes;
+    private boolean mGroupFailed;
+    private boolean mGroupTimedOut;
+    private boolean mAckExpected;
+    // reads timed out since last write, waiting for the device if one succeeds next.
+    private long mSilence;
+
+    private STM32TraceAnalyzer(File file) {
+        mFile = file;
+    }
+
+    public static STM32TraceAnalyzer analyze(File file) throws IOException {
+        STM32TraceAnalyzer analyzer = new STM32TraceAnalyzer(file);
+        try (STM32TraceReader reader = new STM32TraceReader(file)) {
+            analyzer.analyze(reader);
+        }
+        return analyzer;
+    }
+
+    private void analyze(STM32TraceReader reader) throws IOException {
+        mWallClock = reader.getWallClock();
+
+        while (reader.next()) {
+            int type = reader.getType();
+            int group = getCommandGroup(reader);
+
+            if (type != STM32TraceReader.READ && type != STM32TraceReader.TIMEOUT)
+                endSilence(TIME_TIMEOUT);
+
+            if (group >= 0) {
+                endGroup();
+                beginGroup(group, reader.getStart());
+            } else if (type == STM32TraceReader.BAUD || type == STM32TraceReader.RESET) {
+                endGroup();
+                if (type == STM32TraceReader.BAUD)
+                    mBaudRateChanges++;
+                else
+                    mResets++;
+            }
+
+            // host was busy since last transfer, preparing this one.
+            mTime[mGroup][TIME_HOST] += Math.max(0, reader.getStart() - mDuration);
+            mDuration = Math.max(mDuration, reader.getEnd());
+            mRecords++;
+
+            switch (type) {
+                case STM32TraceReader.WRITE:
+                    mTime[mGroup][TIME_WRITING] += reader.getDuration();
+                    write(reader);
+                    break;
+                case STM32TraceReader.READ:
+                    endSilence(TIME_WAITING);
+                    mTime[mGroup][TIME_WAITING] += reader.getDuration();
+                    read(reader);
+                    break;
+                case STM32TraceReader.TIMEOUT:
+                    mSilence += reader.getDuration();
+                    break;
+                default:
+                    mTime[mGroup][TIME_WRITING] += reader.getDuration();
+                    break;
+            }
+
+            mGroupEnd = reader.getEnd();
+        }
+        endSilence(TIME_TIMEOUT);
+        endGroup();
+    }
+
+    /* account reads timed out since last write. */
+    private void endSilence(int kind) {
+        if (mSilence == 0)
+            return;
+
+        mTime[mGroup][kind] += mSilence;
+        mSilence = 0;
+        // link drained outside of commands is expected to go quiet.
+        if (kind == TIME_TIMEOUT && mGroup != GROUP_OTHER) {
+            mMetrics.timeout();
+            mGroupTimedOut = true;
+        }
+    }
+
+    /* group started by write record - a command, or resync probes which are not
+     * part of any - or -1 if it belongs to the current group. */
+    private int getCommandGroup(STM32TraceReader reader) {
+        if (reader.getType() != STM32TraceReader.WRITE)
+            return -1;
+
+        byte[] b = reader.getData();
+        if (reader.getLength() == 1)
+            return b[0] == INIT ? GROUP_INIT : GROUP_OTHER;
+        // length frame of a read looks like a command.
+        if (reader.getLength() != 2 || b[1] != (byte) ~b[0] ||
+                (mGroup == STM32Device.STM32Command.ReadMemory.ordinal() && mGroupWrites == 2 && !mGroupFailed))
+            return -1;
+
+        for (STM32Device.STM32Command command : COMMANDS) {
+            if (command.getCommandCode() == b[0])
+                return command.ordinal();
+        }
+        return GROUP_OTHER;
+    }
+
+    private void beginGroup(int group, long start) {
+        mGroup = group;
+        mGroupStart = start;
+        mGroupWrites = 0;
+        mGroupBytes = 0;
+        mGroupFailed = false;
+        mGroupTimedOut = false;
+    }
+
+    private void endGroup() {
+        if (mGroup == GROUP_OTHER)
+            return;
+
+        mCount[mGroup]++;
+        if (mGroup < COMMANDS.length) {
+            boolean ok = !mGroupFailed && !mGroupTimedOut;
+            mMetrics.command(COMMANDS[mGroup], ok, ok ? mGroupBytes : 0, mGroupEnd - mGroupStart);
+        }
+        mGroup = GROUP_OTHER;
+    }
+
+    private void write(STM32TraceReader reader) {
+        mGroupWrites++;
+        mAckExpected = true;
+
+        // third frame of these carries data, or the length of data to checksum.
+        if (mGroupWrites != 3)
+            return;
+
+        byte[] b = reader.getData();
+        if (mGroup == STM32Device.STM32Command.WriteMemory.ordinal() && reader.getLength() > 2) {
+            mGroupBytes += reader.getLength() - 2;
+        } else if (mGroup == STM32Device.STM32Command.GetChecksum.ordinal() && reader.getLength() == 5) {
+            mGroupBytes += 4 * (((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff));
+        }
+    }
+
+    private void read(STM32TraceReader reader) {
+        if (mAckExpected && reader.getLength() == 1) {
+            mAckExpected = false;
+            byte b = reader.getData()[0];
+            // resync probes are answered with NACKs on purpose.
+            if (mGroup == GROUP_OTHER)
+                return;
+
+            if (b == ACK) {
+                mMetrics.ack();
+            } else if (b == NACK) {
+                mMetrics.nack();
+                mGroupFailed = true;
+            } else {
+                mMetrics.garbage();
+            }
+            return;
+        }
+
+        mAckExpected = false;
+        if (mGroup == STM32Device.STM32Command.ReadMemory.ordinal() && mGroupWrites == 3)
+            mGroupBytes += reader.getLength();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /* wall clock when trace was recorded, in ms. */
+    public long getRecordingTime() {
+        return mWallClock;
+    }
+
+    /* from recording start to end of last transfer, in us. */
+    public long getDuration() {
+        return mDuration / 1000;
+    }
+
+    /* commands found in trace, with their latencies, acks, NACKs and timeouts. */
+    public STM32Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    public long getHostTime() {
+        return getTotalTime(TIME_HOST);
+    }
+
+    /* writes, baud rate changes and resets. */
+    public long getWritingTime() {
+        return getTotalTime(TIME_WRITING);
+    }
+
+    /* reads that got their bytes, or timed out before some did. */
+    public long getWaitingTime() {
+        return getTotalTime(TIME_WAITING);
+    }
+
+    /* reads that timed out for good. */
+    public long getTimeoutTime() {
+        return getTotalTime(TIME_TIMEOUT);
+    }
+
+    public int getResets() {
+        return mResets;
+    }
+
+    public int getBaudRateChanges() {
+        return mBaudRateChanges;
+    }
+
+    /* in us. */
+    private long getTotalTime(int kind) {
+        long total = 0;
+        for (long[] time : mTime)
+            total += time[kind];
+        return total / 1000;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mFile).append(": recorded ").append(new Date(mWallClock))
+                .append(", ").append(mRecords).append(" transfers in ").append(formatTime(mDuration))
+                .append(", ").append(mResets).append(" resets, ").append(mBaudRateChanges).append(" baud rate changes\n");
+
+        long[] totals = new long[TIME_NAMES.length];
+        for (long[] time : mTime) {
+            for (int i = 0; i < totals.length; i++)
+                totals[i] += time[i];
+        }
+        sb.append("  time: ");
+        appendTimes(sb, totals);
+        sb.append('\n');
+
+        if (mCount[GROUP_INIT] > 0)
+            appendGroup(sb, "Init {Count=" + mCount[GROUP_INIT] + "}", GROUP_INIT);
+        for (STM32CommandMetrics m : mMetrics.getCommands())
+            appendGroup(sb, m.toString(), STM32Device.STM32Command.valueOf(m.getCommand()).ordinal());
+        appendGroup(sb, "Other", GROUP_OTHER);
+
+        sb.append("  ").append(mMetrics.getAcks()).append(" acks, ").append(mMetrics.getNacks()).append(" NACKs, ")
+                .append(mMetrics.getGarbage()).append(" garbage, ").append(mMetrics.getTimeouts()).append(" timeouts\n");
+        return sb.toString();
+    }
+
+    private void appendGroup(StringBuilder sb, String name, int group) {
+        sb.append("  ").append(name).append("\n    ");
+        appendTimes(sb, mTime[group]);
+        sb.append('\n');
+    }
+
+    private void appendTimes(StringBuilder sb, long[] time) {
+        for (int i = 0; i < TIME_NAMES.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(TIME_NAMES[i]).append('=').append(formatTime(time[i]));
+            if (mDuration > 0)
+                sb.append(String.format(" (%.1f%%)", time[i] * 100.0 / mDuration));
+        }
+    }
+
+    private static String formatTime(long nanos) {
+        return String.format("%.3fms", nanos / 1e6);
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("usage: STM32TraceAnalyzer <trace>...");
+            System.exit(1);
+        }
+
+        for (String arg : args) {
+            try {
+                System.out.println(analyze(new File(arg)));
+            } catch (NoSuchFileException e) {
+                System.err.println(arg + ": no such file");
+            } catch (IOException e) {
+                System.err.println(arg + ": " + e.getMessage());
+            }
+        }
+    }
+}
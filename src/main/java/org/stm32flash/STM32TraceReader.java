@@ -0,0 +1,238 @@
+package org.stm32flash;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/* sequential reader of traces written by STM32TraceRecorder.
+ *
+ * header:
+ *   "STM32TRC", version (1 byte), wall clock at start (8 bytes, ms)
+ *   flags (1 byte) - FLAG_BAUD_RATE_CONTROL set when link could change rate, then
+ *   supported rates count and rates, current rate (varints)
+ *
+ * then records, all numbers as unsigned LEB128 varints, times in ns:
+ *   type (1 byte), start since previous record start, duration
+ *   WRITE   length, bytes
+ *   READ    timeout (ms), length, bytes
+ *   TIMEOUT timeout (ms), length requested
+ *   BAUD    rate
+ *   RESET
+ *
+ * a trace cut by a crash ends at its last complete record. */
+final class STM32TraceReader implements Closeable {
+    static final byte[] MAGIC = "STM32TRC".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int FLAG_BAUD_RATE_CONTROL = 0x01;
+
+    static final int WRITE = 1;
+    static final int READ = 2;
+    static final int TIMEOUT = 3;
+    static final int BAUD = 4;
+    static final int RESET = 5;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(64 * 1024);
+    private boolean mEof = false;
+
+    private final long mWallClock;
+    private final int[] mSupportedBaudRates;
+    private final int mBaudRate;
+
+    private int mIndex = -1;
+    private int mType;
+    private long mStart = 0;
+    private long mDuration;
+    private long mValue;
+    private int mLength;
+    private byte[] mData = new byte[256];
+
+    STM32TraceReader(File file) throws IOException {
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        mBuffer.limit(0);
+
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            fill(magic.length + 10);
+            mBuffer.get(magic);
+            for (int i = 0; i < magic.length; i++) {
+                if (magic[i] != MAGIC[i])
+                    throw new IOException(file + " is not a trace");
+            }
+
+            int version = mBuffer.get() & 0xff;
+            if (version != VERSION)
+                throw new IOException(file + ": unsupported trace version " + version);
+
+            mWallClock = mBuffer.getLong();
+            if ((mBuffer.get() & FLAG_BAUD_RATE_CONTROL) != 0) {
+                mSupportedBaudRates = new int[(int) readVarint()];
+                for (int i = 0; i < mSupportedBaudRates.length; i++)
+                    mSupportedBaudRates[i] = (int) readVarint();
+                mBaudRate = (int) readVarint();
+            } else {
+                mSupportedBaudRates = null;
+                mBaudRate = -1;
+            }
+        } catch (IOException e) {
+            mChannel.close();
+            throw e instanceof EOFException ? new IOException(file + ": truncated trace header") : e;
+        }
+    }
+
+    /* wall clock when recording started, in ms. */
+    long getWallClock() {
+        return mWallClock;
+    }
+
+    /* null if recorded link had no STM32BaudRateControl. */
+    int[] getSupportedBaudRates() {
+        return mSupportedBaudRates;
+    }
+
+    int getBaudRate() {
+        return mBaudRate;
+    }
+
+    /* move to next record, false at end of trace. */
+    boolean next() throws IOException {
+        try {
+            fill(1);
+            int type = mBuffer.get() & 0xff;
+            long start = mStart + readVarint();
+            long duration = readVarint();
+            long value = 0;
+            int length = 0;
+
+            switch (type) {
+                case WRITE:
+                    length = (int) readVarint();
+                    break;
+                case READ:
+                case TIMEOUT:
+                    value = readVarint();
+                    length = (int) readVarint();
+                    break;
+                case BAUD:
+                    value = readVarint();
+                    break;
+                case RESET:
+                    break;
+                default:
+                    throw new IOException("trace record " + (mIndex + 1) + " has unknown type " + type);
+            }
+
+            if (type != TIMEOUT) {
+                if (length > mData.length)
+                    mData = new byte[Math.max(length, mData.length * 2)];
+                readFully(mData, length);
+            }
+
+            mIndex++;
+            mType = type;
+            mStart = start;
+            mDuration = duration;
+            mValue = value;
+            mLength = length;
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /* index of current record, from 0. */
+    int getIndex() {
+        return mIndex;
+    }
+
+    int getType() {
+        return mType;
+    }
+
+    /* ns since recording started. */
+    long getStart() {
+        return mStart;
+    }
+
+    long getDuration() {
+        return mDuration;
+    }
+
+    long getEnd() {
+        return mStart + mDuration;
+    }
+
+    /* timeout of READ and TIMEOUT records, rate of BAUD ones. */
+    long getValue() {
+        return mValue;
+    }
+
+    /* bytes of WRITE and READ records, bytes requested by TIMEOUT ones. */
+    int getLength() {
+        return mLength;
+    }
+
+    /* valid up to getLength(), until next record is read. */
+    byte[] getData() {
+        return mData;
+    }
+
+    static String getTypeName(int type) {
+        switch (type) {
+            case WRITE: return "write";
+            case READ: return "read";
+            case TIMEOUT: return "timeout";
+            case BAUD: return "baud";
+            case RESET: return "reset";
+            default: return "unknown";
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            fill(1);
+            int b = mBuffer.get() & 0xff;
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("trace record " + (mIndex + 1) + " has malformed number");
+    }
+
+    private void readFully(byte[] b, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            fill(1);
+            int n = Math.min(len - off, mBuffer.remaining());
+            mBuffer.get(b, off, n);
+            off += n;
+        }
+    }
+
+    /* make at least len bytes available, len up to buffer capacity. */
+    private void fill(int len) throws IOException {
+        if (mBuffer.remaining() >= len)
+            return;
+
+        mBuffer.compact();
+        while (mBuffer.position() < len && !mEof) {
+            if (mChannel.read(mBuffer) < 0)
+                mEof = true;
+        }
+        mBuffer.flip();
+
+        if (mBuffer.remaining() < len)
+            throw new EOFException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,285 @@
+package org.stm32flash;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeoutException;
+
+/* STM32UsartInterface decorator recording every transfer of wrapped link - bytes,
+ * direction, start time and duration in ns - to a binary trace, see STM32TraceReader
+ * for its format. traces are replayed by STM32TraceReplayer and summarized by
+ * STM32TraceAnalyzer.
+ *
+ * records are encoded in a buffer written to the file when full, so a transfer
+ * costs two clock reads and a copy. a failure to write the trace stops recording
+ * and is reported by close(), the link keeps working. used by one thread at a
+ * time, as STM32Device does. */
+public class STM32TraceRecorder extends STM32UsartInterface implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // longest record header: type and four varints.
+    private static final int RECORD_HEADER_MAX = 1 + 4 * 10;
+
+    private final STM32UsartInterface mInterface;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final long mOrigin = System.nanoTime();
+    private long mLastStart = 0;
+    private IOException mError = null;
+    private boolean mClosed = false;
+
+    /* record iface to file, replacing it - link is also recorded as able to change
+     * baud rate when iface implements STM32BaudRateControl. */
+    public static STM32TraceRecorder open(STM32UsartInterface iface, File file) throws IOException {
+        if (iface instanceof STM32BaudRateControl)
+            return new BaudRateControlRecorder(iface, file);
+        return new STM32TraceRecorder(iface, file);
+    }
+
+    private STM32TraceRecorder(STM32UsartInterface iface, File file) throws IOException {
+        mInterface = iface;
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        mBuffer.put(STM32TraceReader.MAGIC);
+        mBuffer.put((byte) STM32TraceReader.VERSION);
+        mBuffer.putLong(System.currentTimeMillis());
+        if (iface instanceof STM32BaudRateControl) {
+            STM32BaudRateControl control = (STM32BaudRateControl) iface;
+            int[] rates = control.getSupportedBaudRates();
+            mBuffer.put((byte) STM32TraceReader.FLAG_BAUD_RATE_CONTROL);
+            putVarint(rates.length);
+            for (int rate : rates)
+                putVarint(rate);
+            putVarint(control.getBaudRate());
+        } else {
+            mBuffer.put((byte) 0);
+        }
+    }
+
+    public STM32UsartInterface getInterface() {
+        return mInterface;
+    }
+
+    @Override
+    public byte[] read(int len, int timeout) throws IOException, TimeoutException {
+        long start = System.nanoTime();
+        byte[] b;
+        try {
+            b = mInterface.read(len, timeout);
+        } catch (TimeoutException e) {
+            recordTimeout(start, timeout, len);
+            throw e;
+        }
+        recordRead(start, timeout, b, 0, len);
+        return b;
+    }
+
+    @Override
+    public void read(byte[] b, int off, int len, int timeout) throws IOException, TimeoutException {
+        long start = System.nanoTime();
+        try {
+            mInterface.read(b, off, len, timeout);
+        } catch (TimeoutException e) {
+            recordTimeout(start, timeout, len);
+            throw e;
+        }
+        recordRead(start, timeout, b, off, len);
+    }
+
+    @Override
+    public void read(ByteBuffer dst, int timeout) throws IOException, TimeoutException {
+        int position = dst.position();
+        int len = dst.remaining();
+        long start = System.nanoTime();
+        try {
+            mInterface.read(dst, timeout);
+        } catch (TimeoutException e) {
+            recordTimeout(start, timeout, len);
+            throw e;
+        }
+
+        long end = System.nanoTime();
+        if (begin(STM32TraceReader.READ, start, end, len)) {
+            putVarint(timeout);
+            putVarint(len);
+            ByteBuffer src = dst.duplicate();
+            src.position(position);
+            put(src);
+        }
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        mInterface.write(b, off, len);
+        long end = System.nanoTime();
+
+        if (begin(STM32TraceReader.WRITE, start, end, len)) {
+            putVarint(len);
+            put(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer... srcs) throws IOException {
+        ByteBuffer[] copies = new ByteBuffer[srcs.length];
+        int len = 0;
+        for (int i = 0; i < srcs.length; i++) {
+            copies[i] = srcs[i].duplicate();
+            len += srcs[i].remaining();
+        }
+
+        long start = System.nanoTime();
+        mInterface.write(srcs);
+        long end = System.nanoTime();
+
+        if (begin(STM32TraceReader.WRITE, start, end, len)) {
+            putVarint(len);
+            for (ByteBuffer src : copies)
+                put(src);
+        }
+    }
+
+    private void recordRead(long start, int timeout, byte[] b, int off, int len) {
+        long end = System.nanoTime();
+        if (begin(STM32TraceReader.READ, start, end, len)) {
+            putVarint(timeout);
+            putVarint(len);
+            put(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    private void recordTimeout(long start, int timeout, int len) {
+        if (begin(STM32TraceReader.TIMEOUT, start, System.nanoTime(), 0)) {
+            putVarint(timeout);
+            putVarint(len);
+        }
+    }
+
+    void recordBaudRate(long start, int baudRate) {
+        if (begin(STM32TraceReader.BAUD, start, System.nanoTime(), 0))
+            putVarint(baudRate);
+    }
+
+    void recordReset(long start) {
+        begin(STM32TraceReader.RESET, start, System.nanoTime(), 0);
+    }
+
+    /* start a record, false when not recording. */
+    private boolean begin(int type, long start, long end, int dataLength) {
+        if (mError != null || mClosed)
+            return false;
+
+        if (mBuffer.remaining() < RECORD_HEADER_MAX + dataLength && !flushBuffer())
+            return false;
+
+        long t = start - mOrigin;
+        mBuffer.put((byte) type);
+        putVarint(t - mLastStart);
+        putVarint(end - start);
+        mLastStart = t;
+        return true;
+    }
+
+    private void putVarint(long v) {
+        while ((v & ~0x7fL) != 0) {
+            mBuffer.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        mBuffer.put((byte) v);
+    }
+
+    /* data longer than buffer goes straight to file. */
+    private void put(ByteBuffer src) {
+        if (src.remaining() <= mBuffer.remaining()) {
+            mBuffer.put(src);
+            return;
+        }
+
+        if (flushBuffer()) {
+            try {
+                while (src.hasRemaining())
+                    mChannel.write(src);
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+    }
+
+    private boolean flushBuffer() {
+        if (mError != null)
+            return false;
+
+        mBuffer.flip();
+        try {
+            while (mBuffer.hasRemaining())
+                mChannel.write(mBuffer);
+        } catch (IOException e) {
+            mError = e;
+        }
+        mBuffer.clear();
+        return mError == null;
+    }
+
+    /* write recorded transfers to file. */
+    public void flush() throws IOException {
+        flushBuffer();
+        if (mError != null)
+            throw mError;
+    }
+
+    /* flush trace and close its file, wrapped link is left open. */
+    @Override
+    public void close() throws IOException {
+        if (mClosed)
+            return;
+
+        try {
+            flush();
+        } finally {
+            mClosed = true;
+            mChannel.close();
+        }
+    }
+
+    private static class BaudRateControlRecorder extends STM32TraceRecorder implements STM32BaudRateControl {
+        private final STM32BaudRateControl mControl;
+
+        BaudRateControlRecorder(STM32UsartInterface iface, File file) throws IOException {
+            super(iface, file);
+            mControl = (STM32BaudRateControl) iface;
+        }
+
+        @Override
+        public int[] getSupportedBaudRates() {
+            return mControl.getSupportedBaudRates();
+        }
+
+        @Override
+        public int getBaudRate() {
+            return mControl.getBaudRate();
+        }
+
+        @Override
+        public void setBaudRate(int baudRate) throws IOException {
+            long start = System.nanoTime();
+            mControl.setBaudRate(baudRate);
+            recordBaudRate(start, baudRate);
+        }
+
+        @Override
+        public void resetBootloader() throws IOException {
+            long start = System.nanoTime();
+            mControl.resetBootloader();
+            recordReset(start);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.stm32flash;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/* STM32UsartInterface playing the device side of a trace written by
+ * STM32TraceRecorder, so that an STM32Device session recorded in the field can be
+ * run again, and profiled, without the board.
+ *
+ * what host writes is checked against the trace, and an IOException tells where
+ * both diverged. bytes received in the trace are handed to host reads - right away,
+ * or when timed, as long after host write as they came after it in the trace, with
+ * writes, baud rate changes and resets lasting as long as they did. when trace has
+ * nothing more to read before next write, reads time out once their timeout is
+ * elapsed, in both modes. bytes host left unread are dropped on its next write. */
+public class STM32TraceReplayer extends STM32UsartInterface implements Closeable {
+    private final STM32TraceReader mReader;
+    private final boolean mTimed;
+    private boolean mHasRecord = false;
+
+    private byte[] mPending = new byte[256];
+    private int mPendingOff = 0;
+    private int mPendingLen = 0;
+
+    // replay clock minus trace clock at end of last host operation.
+    private long mOffset;
+
+    /* replayer of trace in file, also implementing STM32BaudRateControl when
+     * recorded link did. */
+    public static STM32TraceReplayer open(File file, boolean timed) throws IOException {
+        STM32TraceReader reader = new STM32TraceReader(file);
+        if (reader.getSupportedBaudRates() != null)
+            return new BaudRateControlReplayer(reader, timed);
+        return new STM32TraceReplayer(reader, timed);
+    }
+
+    private STM32TraceReplayer(STM32TraceReader reader, boolean timed) {
+        mReader = reader;
+        mTimed = timed;
+        mOffset = System.nanoTime();
+    }
+
+    public boolean isTimed() {
+        return mTimed;
+    }
+
+    /* wall clock when trace was recorded, in ms. */
+    public long getRecordingTime() {
+        return mReader.getWallClock();
+    }
+
+    @Override
+    public byte[] read(int len, int timeout) throws IOException, TimeoutException {
+        byte[] b = new byte[len];
+        read(b, 0, len, timeout);
+        return b;
+    }
+
+    @Override
+    public void read(byte[] b, int off, int len, int timeout) throws IOException, TimeoutException {
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        int done = 0;
+
+        while (done < len) {
+            if (mPendingLen == 0 && !nextRead(deadline)) {
+                waitUntil(deadline);
+                throw new TimeoutException("trace: " + done + " of " + len + " bytes received in " + timeout + "ms");
+            }
+
+            int n = Math.min(len - done, mPendingLen);
+            System.arraycopy(mPending, mPendingOff, b, off + done, n);
+            mPendingOff += n;
+            mPendingLen -= n;
+            done += n;
+        }
+    }
+
+    /* load bytes of next read record, if any before next host operation and, when
+     * timed, if they come before deadline. */
+    private boolean nextRead(long deadline) throws IOException {
+        while (peek() && mReader.getType() == STM32TraceReader.TIMEOUT)
+            mHasRecord = false;
+
+        if (!mHasRecord || mReader.getType() != STM32TraceReader.READ)
+            return false;
+
+        if (mTimed) {
+            long arrival = mReader.getEnd() + mOffset;
+            if (arrival - deadline > 0)
+                return false;
+            waitUntil(arrival);
+        }
+
+        int len = mReader.getLength();
+        if (len > mPending.length)
+            mPending = new byte[len];
+        System.arraycopy(mReader.getData(), 0, mPending, 0, len);
+        mPendingOff = 0;
+        mPendingLen = len;
+        mHasRecord = false;
+        return true;
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (!seek(STM32TraceReader.WRITE))
+            throw diverged("write " + toHex(b, off, len));
+
+        byte[] data = mReader.getData();
+        int n = Math.min(len, mReader.getLength());
+        for (int i = 0; i < n; i++) {
+            if (data[i] != b[off + i])
+                throw diverged("write of " + len + " bytes, byte " + i + " " + String.format("%02x", b[off + i]));
+        }
+        if (len != mReader.getLength())
+            throw diverged("write of " + len + " bytes");
+
+        complete();
+    }
+
+    /* move to next host operation of trace, true if it is of type. */
+    private boolean seek(int type) throws IOException {
+        mPendingLen = 0;
+        while (peek() && (mReader.getType() == STM32TraceReader.READ || mReader.getType() == STM32TraceReader.TIMEOUT))
+            mHasRecord = false;
+        return mHasRecord && mReader.getType() == type;
+    }
+
+    /* host operation matched current record. */
+    private void complete() {
+        if (mTimed)
+            waitUntil(System.nanoTime() + mReader.getDuration());
+        mOffset = System.nanoTime() - mReader.getEnd();
+        mHasRecord = false;
+    }
+
+    void replayBaudRate(int baudRate) throws IOException {
+        if (!seek(STM32TraceReader.BAUD) || mReader.getValue() != baudRate)
+            throw diverged("baud " + baudRate);
+        complete();
+    }
+
+    void replayReset() throws IOException {
+        if (!seek(STM32TraceReader.RESET))
+            throw diverged("reset");
+        complete();
+    }
+
+    private IOException diverged(String operation) {
+        if (!mHasRecord)
+            return new IOException("trace: ended before host did " + operation);
+
+        String recorded = STM32TraceReader.getTypeName(mReader.getType());
+        if (mReader.getType() == STM32TraceReader.WRITE)
+            recorded += " " + toHex(mReader.getData(), 0, mReader.getLength()) + " (" + mReader.getLength() + " bytes)";
+        else if (mReader.getType() == STM32TraceReader.BAUD)
+            recorded += " " + mReader.getValue();
+
+        return new IOException("trace: diverged at record " + mReader.getIndex() + ", host did " + operation +
+                " where trace has " + recorded);
+    }
+
+    private boolean peek() throws IOException {
+        if (!mHasRecord)
+            mHasRecord = mReader.next();
+        return mHasRecord;
+    }
+
+    private static void waitUntil(long deadline) {
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted())
+            LockSupport.parkNanos(left);
+    }
+
+    private static String toHex(byte[] b, int off, int len) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Math.min(len, 16); i++)
+            sb.append(String.format("%02x", b[off + i]));
+        if (len > 16)
+            sb.append("...");
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    private static class BaudRateControlReplayer extends STM32TraceReplayer implements STM32BaudRateControl {
+        private final int[] mSupportedBaudRates;
+        private int mBaudRate;
+
+        BaudRateControlReplayer(STM32TraceReader reader, boolean timed) {
+            super(reader, timed);
+            mSupportedBaudRates = reader.getSupportedBaudRates();
+            mBaudRate = reader.getBaudRate();
+        }
+
+        @Override
+        public int[] getSupportedBaudRates() {
+            return mSupportedBaudRates.clone();
+        }
+
+        @Override
+        public int getBaudRate() {
+            return mBaudRate;
+        }
+
+        @Override
+        public void setBaudRate(int baudRate) throws IOException {
+            replayBaudRate(baudRate);
+            mBaudRate = baudRate;
+        }
+
+        @Override
+        public void resetBootloader() throws IOException {
+            replayReset();
+        }
+    }
+}
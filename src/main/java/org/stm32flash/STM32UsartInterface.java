@@ -1,9 +1,63 @@
 package org.stm32flash;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.TimeoutException;
 
 public abstract class STM32UsartInterface {
     public abstract byte[] read(int len, int timeout) throws IOException, TimeoutException;
     public abstract void write(byte[] b) throws IOException;
+
+    /* read exactly len bytes into b starting at off - implementations able to
+     * read into caller buffer without allocating should override this. */
+    public void read(byte[] b, int off, int len, int timeout) throws IOException, TimeoutException {
+        byte[] r = read(len, timeout);
+        System.arraycopy(r, 0, b, off, len);
+    }
+
+    /* fill remaining bytes of dst. */
+    public void read(ByteBuffer dst, int timeout) throws IOException, TimeoutException {
+        int len = dst.remaining();
+
+        if (dst.hasArray()) {
+            read(dst.array(), dst.arrayOffset() + dst.position(), len, timeout);
+            dst.position(dst.position() + len);
+        } else {
+            dst.put(read(len, timeout));
+        }
+    }
+
+    /* write len bytes of b starting at off - implementations able to send
+     * a slice without copying should override this. */
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off == 0 && len == b.length)
+            write(b);
+        else
+            write(Arrays.copyOfRange(b, off, off + len));
+    }
+
+    /* write remaining bytes of all srcs as a single transfer - default gathers
+     * them in one array, implementations with vectored io should override this. */
+    public void write(ByteBuffer... srcs) throws IOException {
+        if (srcs.length == 1 && srcs[0].hasArray()) {
+            ByteBuffer src = srcs[0];
+            write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+            return;
+        }
+
+        int len = 0;
+        for (ByteBuffer src : srcs)
+            len += src.remaining();
+
+        byte[] b = new byte[len];
+        int off = 0;
+        for (ByteBuffer src : srcs) {
+            int l = src.remaining();
+            src.get(b, off, l);
+            off += l;
+        }
+        write(b);
+    }
 }
@@ -0,0 +1,43 @@
+package org.stm32flash;
+
+/* outcome of STM32Flasher.verifyFirmware: where flash first differs from image,
+ * or, when it matches and a digest was asked for, digest of flash content. */
+public final class STM32VerifyResult {
+    private final int mMismatchAddress;
+    private final byte[] mDigest;
+
+    STM32VerifyResult(int mismatchAddress, byte[] digest) {
+        mMismatchAddress = mismatchAddress;
+        mDigest = digest;
+    }
+
+    public boolean isMatch() {
+        return mMismatchAddress == -1;
+    }
+
+    /* first address found not to match, -1 if flash matches. */
+    public int getMismatchAddress() {
+        return mMismatchAddress;
+    }
+
+    /* null if flash does not match, or no digest was asked for. */
+    public byte[] getDigest() {
+        return mDigest;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("STM32VerifyResult {");
+        if (isMatch()) {
+            sb.append("Match");
+        } else {
+            sb.append("MismatchAddress=0x").append(Integer.toHexString(mMismatchAddress));
+        }
+        if (mDigest != null) {
+            sb.append(", Digest=");
+            for (byte b : mDigest)
+                sb.append(String.format("%02x", b));
+        }
+        return sb.append('}').toString();
+    }
+}
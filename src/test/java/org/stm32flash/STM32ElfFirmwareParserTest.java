@@ -0,0 +1,108 @@
+package org.stm32flash;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class STM32ElfFirmwareParserTest {
+    private static final int PT_LOAD = 1;
+    private static final int PT_NOTE = 4;
+    private static final int HEADER_SIZE = 52;
+    private static final int PHDR_SIZE = 32;
+    // segment contents start there, each one 16 bytes of its index.
+    private static final int DATA_OFFSET = 0x100;
+
+    /* ELF32 image with one program header per { type, paddr, filesz } entry. */
+    private static byte[] elf(boolean littleEndian, int[]... phdrs) {
+        ByteBuffer b = ByteBuffer.allocate(DATA_OFFSET + 16 * phdrs.length)
+                .order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        b.put(STM32ElfFirmwareParser.MAGIC).put((byte) 1).put((byte) (littleEndian ? 1 : 2)).put((byte) 1);
+        b.putShort(16, (short) 2);           // ET_EXEC
+        b.putShort(18, (short) 40);          // EM_ARM
+        b.putInt(28, HEADER_SIZE);           // e_phoff
+        b.putShort(40, (short) HEADER_SIZE);
+        b.putShort(42, (short) PHDR_SIZE);
+        b.putShort(44, (short) phdrs.length);
+
+        for (int i = 0; i < phdrs.length; i++) {
+            int p = HEADER_SIZE + i * PHDR_SIZE;
+            b.putInt(p, phdrs[i][0]);
+            b.putInt(p + 4, DATA_OFFSET + 16 * i);
+            b.putInt(p + 8, phdrs[i][1]);    // vaddr, same as paddr here
+            b.putInt(p + 12, phdrs[i][1]);
+            b.putInt(p + 16, phdrs[i][2]);
+            b.putInt(p + 20, phdrs[i][2]);
+            for (int j = 0; j < 16; j++)
+                b.put(DATA_OFFSET + 16 * i + j, (byte) i);
+        }
+        return b.array();
+    }
+
+    private static STM32ElfFirmwareParser parser(byte[] image) {
+        return new STM32ElfFirmwareParser(new STM32ArrayFirmwareSource(image));
+    }
+
+    private static void assertRejected(byte[] image, String reason) {
+        try {
+            parser(image).parseSegments();
+            fail("parsed despite " + reason);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(reason));
+        }
+    }
+
+    @Test
+    public void loadSegmentsAreKept() throws IOException {
+        STM32ElfFirmwareParser parser = parser(elf(true,
+                new int[] { PT_LOAD, 0x08000100, 16 },
+                new int[] { PT_LOAD, 0x08000000, 8 }));
+        List<STM32FirmwareSegment> segments = parser.parseSegments();
+
+        assertEquals(2, segments.size());
+        assertEquals(0x08000000, parser.getBaseAddress());
+        assertEquals(0x08000000, segments.get(0).getAddress());
+        assertArrayEquals(new byte[] { 1, 1, 1, 1, 1, 1, 1, 1 }, segments.get(0).getData());
+        assertEquals(0x08000100, segments.get(1).getAddress());
+        assertEquals(16, segments.get(1).getSize());
+    }
+
+    @Test
+    public void otherSegmentsAreSkipped() throws IOException {
+        List<STM32FirmwareSegment> segments = parser(elf(true,
+                new int[] { PT_NOTE, 0x08000000, 16 },
+                new int[] { PT_LOAD, 0x08000400, 0 },
+                new int[] { PT_LOAD, 0x20000000, 16 },
+                new int[] { PT_LOAD, 0x08000800, 16 })).parseSegments();
+
+        assertEquals(1, segments.size());
+        assertEquals(0x08000800, segments.get(0).getAddress());
+        assertEquals(3, segments.get(0).getData()[0]);
+    }
+
+    @Test
+    public void bigEndianIsRejected() {
+        assertRejected(elf(false, new int[] { PT_LOAD, 0x08000000, 16 }), "not a little endian ELF file");
+    }
+
+    @Test
+    public void elf64IsRejected() {
+        byte[] image = elf(true, new int[] { PT_LOAD, 0x08000000, 16 });
+        image[4] = 2;
+        assertRejected(image, "not a 32bit ELF file");
+    }
+
+    @Test
+    public void nothingInFlashIsRejected() {
+        assertRejected(elf(true,
+                new int[] { PT_LOAD, 0x20000000, 16 },
+                new int[] { PT_NOTE, 0x08000000, 16 }), "no loadable segment in flash");
+    }
+}
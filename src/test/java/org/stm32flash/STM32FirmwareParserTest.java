@@ -0,0 +1,73 @@
+package org.stm32flash;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class STM32FirmwareParserTest {
+    // stack pointer at top of 20kB sram, reset handler in thumb mode.
+    private static final byte[] VECTORS = { 0x00, 0x50, 0x00, 0x20, 0x41, 0x01, 0x00, 0x08 };
+
+    private static String file(String suffix, byte[] content) throws IOException {
+        File f = File.createTempFile("firmware", suffix);
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(content);
+        }
+        return f.getPath();
+    }
+
+    private static Class<?> open(String suffix, byte[] content) throws IOException {
+        return STM32FirmwareParser.open(file(suffix, content)).getClass();
+    }
+
+    private static byte[] text(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void binExtensionIsTrusted() throws IOException {
+        assertEquals(STM32BinFirmwareParser.class, open(".bin", text(":00000001FF\n")));
+    }
+
+    @Test
+    public void elfByMagic() throws IOException {
+        assertEquals(STM32ElfFirmwareParser.class, open(".out", new byte[] { 0x7f, 'E', 'L', 'F', 1, 1, 1, 0 }));
+    }
+
+    @Test
+    public void hexByColon() throws IOException {
+        assertEquals(STM32HexFirmwareParser.class, open(".fw", text("\r\n:00000001FF\r\n")));
+    }
+
+    @Test
+    public void srecByRecordType() throws IOException {
+        assertEquals(STM32SrecFirmwareParser.class, open(".fw", text("S9030000FC\n")));
+    }
+
+    @Test
+    public void binByVectorTable() throws IOException {
+        assertEquals(STM32BinFirmwareParser.class, open(".fw", VECTORS));
+    }
+
+    @Test
+    public void unknownContentIsRejected() throws IOException {
+        byte[] b = VECTORS.clone();
+        // arm mode reset handler, not something a cortex-m boots.
+        b[4] = 0x40;
+        String path = file(".fw", b);
+        try {
+            STM32FirmwareParser.open(path);
+            fail("opened " + path);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("could not find appropriate parser"));
+        }
+    }
+}
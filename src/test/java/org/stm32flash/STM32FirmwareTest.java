@@ -0,0 +1,42 @@
+package org.stm32flash;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class STM32FirmwareTest {
+    // STM32F10xxx medium density: 1kB pages.
+    private static final STM32DevInfo INFO = STM32DevInfoDatabase.get(0x410);
+
+    private static STM32Firmware image(int... addresses) {
+        STM32FirmwareSegment[] segments = new STM32FirmwareSegment[addresses.length];
+        for (int i = 0; i < addresses.length; i++)
+            segments[i] = new STM32FirmwareSegment(addresses[i], new byte[100]);
+        return new STM32Firmware(Arrays.asList(segments));
+    }
+
+    @Test
+    public void closeSegmentsAreMerged() {
+        List<STM32FirmwareSegment> plan = image(0x08000000, 0x08000080).getWriteSegments(64, INFO);
+        assertEquals(1, plan.size());
+        assertEquals(0x08000000, plan.get(0).getAddress());
+        assertEquals(0x80 + 100 + 4, plan.get(0).getSize());
+    }
+
+    @Test
+    public void gapOnlyMergedInTouchedPages() {
+        // first two segments share pages 0 and 1, page 2 lies between second and third.
+        List<STM32FirmwareSegment> plan = image(0x08000000, 0x08000500, 0x08000d00).getWriteSegments(4096, INFO);
+        assertEquals(2, plan.size());
+        assertEquals(0x08000000, plan.get(0).getAddress());
+        assertEquals(0x08000d00, plan.get(1).getAddress());
+    }
+
+    @Test
+    public void farSegmentsAreKept() {
+        assertEquals(3, image(0x08000000, 0x08000500, 0x08000d00).getWriteSegments(64, INFO).size());
+    }
+}
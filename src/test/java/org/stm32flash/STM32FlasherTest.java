@@ -0,0 +1,158 @@
+package org.stm32flash;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/* flashing sessions against an emulated bootloader, without faults. */
+public class STM32FlasherTest {
+    // STM32F10xxx medium density: legacy erase, 1kB pages.
+    private static final int DEVICE_ID = 0x410;
+
+    private STM32BootloaderEmulator mEmulator;
+    private STM32Flasher mFlasher;
+    private byte[] mImage;
+
+    @Before
+    public void setUp() {
+        mEmulator = new STM32BootloaderEmulator(DEVICE_ID);
+        mEmulator.setRealTime(false);
+        mEmulator.setExtendedErase(false);
+
+        mFlasher = new STM32Flasher(mEmulator);
+        mFlasher.setLogger(STM32Logger.NONE);
+        mFlasher.getDevice().setAdaptiveBaudRate(false);
+        // emulated device time is not host time, keep what is learned to this test.
+        mFlasher.getDevice().setTimeoutModel(new STM32TimeoutModel());
+
+        mImage = new byte[20 * 1024 + 100];
+        new Random(1).nextBytes(mImage);
+    }
+
+    private byte[] getFlash(int len) {
+        return Arrays.copyOf(mEmulator.getFlash(), len);
+    }
+
+    @Test
+    public void flashPartialAndVerify() throws Exception {
+        assertTrue(mFlasher.connect());
+        assertTrue(mFlasher.flashFirmware(new STM32Firmware(mImage), STM32Flasher.EraseMode.Partial, true));
+        assertArrayEquals(mImage, getFlash(mImage.length));
+
+        STM32VerifyResult result = mFlasher.verifyFirmware(new STM32Firmware(mImage));
+        assertTrue(result.isMatch());
+    }
+
+    @Test
+    public void flashAllEraseModes() throws Exception {
+        for (STM32Flasher.EraseMode mode : STM32Flasher.EraseMode.values()) {
+            Arrays.fill(mEmulator.getFlash(), (byte) 0);
+            new Random(mode.ordinal()).nextBytes(mImage);
+
+            assertTrue(mode.toString(), mFlasher.flashFirmware(new STM32Firmware(mImage), mode, true));
+            assertArrayEquals(mode.toString(), mImage, getFlash(mImage.length));
+        }
+    }
+
+    @Test
+    public void partialEraseKeepsOtherPages() throws Exception {
+        Arrays.fill(mEmulator.getFlash(), (byte) 0);
+        assertTrue(mFlasher.flashFirmware(new STM32Firmware(mImage), STM32Flasher.EraseMode.Partial, false));
+
+        // page following the image is left as it was.
+        int pageSize = mEmulator.getDevInfo().getPageSize(0);
+        int next = (mImage.length + pageSize - 1) / pageSize * pageSize;
+        assertEquals(0, mEmulator.getFlash()[next]);
+        assertEquals(0, mEmulator.getFlash()[next + pageSize - 1]);
+    }
+
+    @Test
+    public void verifyReportsFirstDifference() throws Exception {
+        assertTrue(mFlasher.flashFirmware(new STM32Firmware(mImage), STM32Flasher.EraseMode.Partial, true));
+
+        mEmulator.getFlash()[12345] ^= 1;
+        STM32VerifyResult result = mFlasher.verifyFirmware(new STM32Firmware(mImage));
+        assertFalse(result.isMatch());
+        assertEquals(mEmulator.getDevInfo().getFlashStart() + 12345, result.getMismatchAddress());
+    }
+
+    @Test
+    public void verifyUsingChecksum() throws Exception {
+        mEmulator.setGetChecksum(true);
+        assertTrue(mFlasher.flashFirmware(new STM32Firmware(mImage), STM32Flasher.EraseMode.Partial, true));
+        assertTrue(mFlasher.verifyFirmware(new STM32Firmware(mImage)).isMatch());
+
+        mEmulator.getFlash()[mImage.length - 1] ^= 1;
+        STM32VerifyResult result = mFlasher.verifyFirmware(new STM32Firmware(mImage));
+        assertEquals(mEmulator.getDevInfo().getFlashStart() + mImage.length - 1, result.getMismatchAddress());
+    }
+
+    @Test
+    public void eraseAndDump() throws Exception {
+        assertTrue(mFlasher.flashFirmware(new STM32Firmware(mImage), STM32Flasher.EraseMode.Partial, false));
+        assertArrayEquals(mImage, mFlasher.dumpFirmware(mImage.length));
+
+        int start = mEmulator.getDevInfo().getFlashStart();
+        assertTrue(mFlasher.erase(start + 4096, 2048));
+        byte[] dump = mFlasher.dumpFirmware(mImage.length);
+        for (int i = 4096; i < 4096 + 2048; i++)
+            assertEquals(-1, dump[i]);
+        assertArrayEquals(Arrays.copyOf(mImage, 4096), Arrays.copyOf(dump, 4096));
+    }
+
+    @Test
+    public void skipBlankDoesNotChangeCallerImage() throws Exception {
+        byte[] padded = Arrays.copyOf(mImage, mImage.length + 4096);
+        Arrays.fill(padded, mImage.length, padded.length, (byte) 0xff);
+        STM32Firmware fw = new STM32Firmware(padded);
+
+        mFlasher.setSkipBlank(true);
+        assertTrue(mFlasher.flashFirmware(fw, STM32Flasher.EraseMode.Partial, true));
+        assertEquals(padded.length, fw.getSize());
+    }
+
+    @Test
+    public void gangProgressOnDeliveryThread() throws Exception {
+        STM32BootloaderEmulator second = new STM32BootloaderEmulator(DEVICE_ID);
+        second.setRealTime(false);
+        second.setExtendedErase(false);
+
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+        final CountDownLatch written = new CountDownLatch(2);
+        STM32GangFlasher gang = new STM32GangFlasher(Arrays.<STM32UsartInterface>asList(mEmulator, second));
+        gang.setEraseMode(STM32Flasher.EraseMode.Partial);
+        gang.registerListener(new STM32GangFlasher.Listener() {
+            @Override
+            public void progress(int port, long current, long total) {
+                threads.add(Thread.currentThread().getName());
+                if (current == total)
+                    written.countDown();
+            }
+
+            @Override
+            public void completed(STM32GangFlasher.PortResult result) {
+            }
+        });
+
+        STM32GangFlasher.Result result = gang.flash(new STM32Firmware(mImage));
+        assertTrue(result.toString(), result.isSuccess());
+        assertArrayEquals(mImage, getFlash(mImage.length));
+        assertArrayEquals(mImage, Arrays.copyOf(second.getFlash(), mImage.length));
+
+        // last progress may come after port completed.
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singleton("stm32-progress"), threads);
+    }
+}
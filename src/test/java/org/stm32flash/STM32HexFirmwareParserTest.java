@@ -0,0 +1,125 @@
+package org.stm32flash;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class STM32HexFirmwareParserTest {
+    // ranges of 64kB written as 4 bytes records are ~340kB of text, more than a
+    // chunk: some chunks start inside one, and get their base from the one before.
+    private static final int RANGE = 0x10000;
+
+    private static String record(int type, int offset, byte[] data, int off, int len) {
+        StringBuilder sb = new StringBuilder(":");
+        int sum = len + (offset >> 8) + offset + type;
+        sb.append(String.format("%02X%04X%02X", len, offset & 0xffff, type));
+        for (int i = 0; i < len; i++) {
+            sb.append(String.format("%02X", data[off + i] & 0xff));
+            sum += data[off + i];
+        }
+        return sb.append(String.format("%02X", -sum & 0xff)).append("\r\n").toString();
+    }
+
+    private static String base(int type, int value) {
+        return record(type, 0, new byte[] { (byte) (value >> 8), (byte) value }, 0, 2);
+    }
+
+    /* one range of data, in records of len bytes. */
+    private static void range(StringBuilder sb, byte[] data, int len) {
+        for (int i = 0; i < data.length; i += len)
+            sb.append(record(0, i, data, i, len));
+    }
+
+    private static byte[] data(int seed) {
+        byte[] b = new byte[RANGE];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) (i * 31 + seed);
+        return b;
+    }
+
+    /* ranges at 0x08000000 and 0x08020000 by extended linear address records,
+     * at 0x10000 by an extended segment address record, and 0x08010000 in 16
+     * bytes records. */
+    private static String image() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(base(4, 0x0800));
+        range(sb, data(0), 4);
+        sb.append(base(2, 0x1000));
+        range(sb, data(1), 4);
+        sb.append(base(4, 0x0801));
+        range(sb, data(2), 16);
+        sb.append(base(4, 0x0802));
+        range(sb, data(3), 4);
+        sb.append(":00000001FF\r\n");
+        return sb.toString();
+    }
+
+    private static List<STM32FirmwareSegment> parallel(byte[] text) throws IOException {
+        return new STM32HexFirmwareParser(new STM32ArrayFirmwareSource(text)).parseSegments();
+    }
+
+    /* stream sources are decoded front to back, as a single chunk. */
+    private static List<STM32FirmwareSegment> sequential(byte[] text) throws IOException {
+        return new STM32HexFirmwareParser(new STM32StreamFirmwareSource(
+                new ByteArrayInputStream(text), text.length)).parseSegments();
+    }
+
+    @Test
+    public void parallelMatchesSequential() throws IOException {
+        byte[] text = image().getBytes(StandardCharsets.US_ASCII);
+        assertTrue(text.length > 1024 * 1024);
+        // first split falls inside a record, and within the extended segment range.
+        assertTrue(text[text.length / 2] != ':');
+
+        List<STM32FirmwareSegment> parallel = parallel(text);
+        assertEquals(sequential(text), parallel);
+
+        assertEquals(2, parallel.size());
+        assertEquals(0x10000, parallel.get(0).getAddress());
+        assertArrayEquals(data(1), parallel.get(0).getData());
+        assertEquals(0x08000000, parallel.get(1).getAddress());
+        assertEquals(3 * RANGE, parallel.get(1).getSize());
+
+        byte[] flash = parallel.get(1).getData();
+        for (int i = 0; i < 3; i++) {
+            byte[] range = new byte[RANGE];
+            System.arraycopy(flash, i * RANGE, range, 0, RANGE);
+            assertArrayEquals("range " + i, data(i == 0 ? 0 : i + 1), range);
+        }
+    }
+
+    @Test
+    public void badChecksumTellsLine() throws IOException {
+        String image = image();
+        // a record well past the first split, so found by a chunk not starting the file.
+        int line = 3 * image.split("\n").length / 4;
+        int start = 0;
+        for (int i = 1; i < line; i++)
+            start = image.indexOf('\n', start) + 1;
+        int end = image.indexOf('\r', start);
+        String bad = image.substring(start, end - 2) + (image.charAt(end - 2) == '0' ? '1' : '0')
+                + image.substring(end - 1, end);
+        byte[] text = (image.substring(0, start) + bad + image.substring(end)).getBytes(StandardCharsets.US_ASCII);
+
+        String expected = "bad record checksum at line " + line + ", offset " + start;
+        for (int i = 0; i < 2; i++) {
+            try {
+                if (i == 0)
+                    parallel(text);
+                else
+                    sequential(text);
+                fail("parsed despite bad checksum");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().endsWith(expected));
+            }
+        }
+    }
+}
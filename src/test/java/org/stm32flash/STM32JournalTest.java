@@ -0,0 +1,89 @@
+package org.stm32flash;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/* flashing sessions resumed from a journal, as left by a crash. */
+public class STM32JournalTest {
+    // STM32F10xxx medium density: legacy erase, 1kB pages.
+    private static final int DEVICE_ID = 0x410;
+    private static final int BLOCK_SIZE = 256;
+
+    private STM32BootloaderEmulator mEmulator;
+    private STM32Flasher mFlasher;
+    private File mFile;
+    private byte[] mImage;
+
+    @Before
+    public void setUp() throws IOException {
+        mEmulator = new STM32BootloaderEmulator(DEVICE_ID);
+        mEmulator.setRealTime(false);
+        mEmulator.setExtendedErase(false);
+
+        mFlasher = new STM32Flasher(mEmulator);
+        mFlasher.setLogger(STM32Logger.NONE);
+        mFlasher.getDevice().setAdaptiveBaudRate(false);
+        mFlasher.getDevice().setTimeoutModel(new STM32TimeoutModel());
+
+        mFile = File.createTempFile("journal", ".txt");
+        mFile.deleteOnExit();
+        mFlasher.setJournal(new STM32Journal(mFile));
+
+        mImage = new byte[20 * 1024 + 100];
+        new Random(1).nextBytes(mImage);
+    }
+
+    /* journal of a session that went through, cut before its write record of block
+     * as if that one and all later ones were lost in a crash - block itself being
+     * left half programmed. */
+    private void crash(int block) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int writes = 0;
+        for (String line : new String(Files.readAllBytes(mFile.toPath()), StandardCharsets.US_ASCII).split("\n")) {
+            if (line.equals("done") || (line.startsWith("write ") && writes++ == block))
+                break;
+            sb.append(line).append('\n');
+        }
+        Files.write(mFile.toPath(), sb.toString().getBytes(StandardCharsets.US_ASCII));
+
+        Arrays.fill(mEmulator.getFlash(), block * BLOCK_SIZE, block * BLOCK_SIZE + BLOCK_SIZE / 2, (byte) 0);
+    }
+
+    private void resume(STM32Flasher.EraseMode erase, int block) throws Exception {
+        assertTrue(mFlasher.flashFirmware(new STM32Firmware(mImage), erase, true));
+        crash(block);
+
+        assertTrue(erase.toString(), mFlasher.flashFirmware(new STM32Firmware(mImage), erase, true));
+        assertArrayEquals(erase.toString(), mImage, Arrays.copyOf(mEmulator.getFlash(), mImage.length));
+    }
+
+    @Test
+    public void partialEraseRedoneWhereWritesWereLost() throws Exception {
+        resume(STM32Flasher.EraseMode.Partial, 5);
+    }
+
+    @Test
+    public void fullEraseRedoneWhereWritesWereLost() throws Exception {
+        resume(STM32Flasher.EraseMode.Full, 5);
+    }
+
+    @Test
+    public void interleavedEraseRedoneWhereWritesWereLost() throws Exception {
+        resume(STM32Flasher.EraseMode.Interleaved, 5);
+    }
+
+    @Test
+    public void nothingJournaledAfterErase() throws Exception {
+        resume(STM32Flasher.EraseMode.Partial, 0);
+    }
+}
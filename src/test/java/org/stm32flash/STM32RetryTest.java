@@ -0,0 +1,115 @@
+package org.stm32flash;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/* flashing sessions against an emulated bootloader injecting NACKs, lost bytes
+ * and resets: blocks get retried after a resync, as STM32RetryPolicy allows. */
+public class STM32RetryTest {
+    // STM32G47xxx/48xxx: extended erase, 2kB pages.
+    private static final int DEVICE_ID = 0x469;
+
+    private STM32BootloaderEmulator mEmulator;
+    private STM32Flasher mFlasher;
+    private STM32Device mDevice;
+    private byte[] mImage;
+
+    @Before
+    public void setUp() throws Exception {
+        mEmulator = new STM32BootloaderEmulator(DEVICE_ID);
+        mEmulator.setRealTime(false);
+        mEmulator.setSeed(7);
+
+        mFlasher = new STM32Flasher(mEmulator);
+        mFlasher.setLogger(STM32Logger.NONE);
+        mDevice = mFlasher.getDevice();
+        mDevice.setAdaptiveBaudRate(false);
+        mDevice.setTimeoutModel(new STM32TimeoutModel());
+        assertTrue(mFlasher.connect());
+
+        mImage = new byte[32 * 1024];
+        new Random(2).nextBytes(mImage);
+    }
+
+    private boolean flash() throws Exception {
+        return mFlasher.flashFirmware(new STM32Firmware(mImage), STM32Flasher.EraseMode.Partial, true);
+    }
+
+    private byte[] getFlash() {
+        return Arrays.copyOf(mEmulator.getFlash(), mImage.length);
+    }
+
+    @Test
+    public void nacksAreRetried() throws Exception {
+        mDevice.setRetryPolicy(STM32RetryPolicy.DEFAULT);
+        mEmulator.setNackRate(0.01);
+
+        assertTrue(flash());
+        assertTrue(mEmulator.getFaultCount() > 0);
+        assertTrue(mDevice.getRetryCount() > 0);
+        assertArrayEquals(mImage, getFlash());
+    }
+
+    @Test
+    public void nackFailsWithoutRetries() throws Exception {
+        mEmulator.setNackRate(0.05);
+
+        assertFalse(flash());
+        assertTrue(mDevice.getRetryCount() == 0);
+    }
+
+    @Test
+    public void lostBytesAreRetried() throws Exception {
+        mDevice.setRetryPolicy(STM32RetryPolicy.DEFAULT);
+        mEmulator.setDropRate(0.00005);
+
+        assertTrue(flash());
+        assertTrue(mEmulator.getFaultCount() > 0);
+        assertTrue(mDevice.getRetryCount() > 0);
+        assertArrayEquals(mImage, getFlash());
+        assertTrue(mDevice.getMetrics().getTimeouts() > 0);
+    }
+
+    @Test
+    public void checksumVerifyWithNacks() throws Exception {
+        mEmulator.setGetChecksum(true);
+        mFlasher.disconnect();
+        assertTrue(mFlasher.connect());
+
+        mDevice.setRetryPolicy(STM32RetryPolicy.DEFAULT);
+        mEmulator.setNackRate(0.01);
+
+        assertTrue(flash());
+        assertTrue(mFlasher.verifyFirmware(new STM32Firmware(mImage)).isMatch());
+        assertArrayEquals(mImage, getFlash());
+    }
+
+    @Test
+    public void resetEndsSessionUntilReconnect() throws Exception {
+        mDevice.setRetryPolicy(STM32RetryPolicy.DEFAULT);
+        mEmulator.setResetRate(0.05);
+
+        boolean flashed;
+        try {
+            flashed = flash();
+        } catch (TimeoutException e) {
+            flashed = false;
+        }
+        assertFalse(flashed);
+        assertFalse(mDevice.isConnected());
+        assertTrue(mEmulator.getFaultCount() > 0);
+
+        // flashFirmware connects again, and session starts over.
+        mEmulator.setResetRate(0);
+        assertTrue(flash());
+        assertArrayEquals(mImage, getFlash());
+    }
+}
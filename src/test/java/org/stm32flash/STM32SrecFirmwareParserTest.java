@@ -0,0 +1,115 @@
+package org.stm32flash;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class STM32SrecFirmwareParserTest {
+    /* S<type> record of address, address size given by type, with a valid count and checksum. */
+    private static String record(int type, long address, int... data) {
+        int addressSize = type == 0 || type == 1 || type == 9 ? 2 : type == 2 || type == 8 ? 3 : 4;
+        int[] bytes = new int[1 + addressSize + data.length];
+        bytes[0] = addressSize + data.length + 1;
+        for (int i = 0; i < addressSize; i++)
+            bytes[1 + i] = (int) (address >> (8 * (addressSize - 1 - i))) & 0xff;
+        System.arraycopy(data, 0, bytes, 1 + addressSize, data.length);
+
+        StringBuilder sb = new StringBuilder("S").append(type);
+        int sum = 0;
+        for (int b : bytes) {
+            sb.append(String.format("%02X", b));
+            sum += b;
+        }
+        return sb.append(String.format("%02X", ~sum & 0xff)).append("\r\n").toString();
+    }
+
+    private static STM32SrecFirmwareParser parser(String text) {
+        return new STM32SrecFirmwareParser(new STM32ArrayFirmwareSource(text.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static void assertRejected(String text, String reason) {
+        try {
+            parser(text).parseSegments();
+            fail("parsed despite " + reason);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(reason));
+        }
+    }
+
+    @Test
+    public void s1Records() throws IOException {
+        STM32SrecFirmwareParser parser = parser(record(0, 0, 'h', 'd', 'r')
+                + record(1, 0x1000, 1, 2, 3, 4)
+                + record(1, 0x1004, 5, 6)
+                + record(9, 0x1000));
+        List<STM32FirmwareSegment> segments = parser.parseSegments();
+
+        assertEquals(1, segments.size());
+        assertEquals(0x1000, parser.getBaseAddress());
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 }, segments.get(0).getData());
+    }
+
+    @Test
+    public void s2Records() throws IOException {
+        List<STM32FirmwareSegment> segments = parser(record(2, 0x012000, 0xaa, 0xbb)
+                + record(8, 0x012000)).parseSegments();
+
+        assertEquals(1, segments.size());
+        assertEquals(0x012000, segments.get(0).getAddress());
+        assertArrayEquals(new byte[] { (byte) 0xaa, (byte) 0xbb }, segments.get(0).getData());
+    }
+
+    @Test
+    public void s3RecordsWithHole() throws IOException {
+        STM32SrecFirmwareParser parser = parser(record(3, 0x08000000L, 1, 2)
+                + record(3, 0x08000100L, 3)
+                + record(7, 0x08000000L));
+        List<STM32FirmwareSegment> segments = parser.parseSegments();
+
+        assertEquals(2, segments.size());
+        assertEquals(0x08000000, segments.get(0).getAddress());
+        assertEquals(0x08000100, segments.get(1).getAddress());
+        assertArrayEquals(new byte[] { 3 }, segments.get(1).getData());
+        assertEquals(0x101, parser.parse().length);
+    }
+
+    @Test
+    public void recordsAfterEntryPointAreIgnored() throws IOException {
+        List<STM32FirmwareSegment> segments = parser(record(1, 0x1000, 1)
+                + record(9, 0x1000)
+                + record(1, 0x2000, 2)).parseSegments();
+
+        assertEquals(1, segments.size());
+    }
+
+    @Test
+    public void badChecksumIsRejected() {
+        String good = record(1, 0x1000, 1, 2, 3, 4);
+        // last data byte changed, checksum left as is.
+        String bad = good.substring(0, 14) + "05" + good.substring(16);
+        assertRejected(bad, "bad record checksum");
+    }
+
+    @Test
+    public void badCountIsRejected() {
+        String good = record(1, 0x1000, 1, 2, 3, 4);
+        // one byte dropped, count and checksum left as is.
+        String bad = good.substring(0, 14) + good.substring(16);
+        assertRejected(bad, "record length does not match byte count");
+    }
+
+    @Test
+    public void errorTellsRecordOffset() {
+        String first = record(1, 0x1000, 1);
+        String good = record(1, 0x1001, 2);
+        String bad = good.substring(0, good.length() - 4) + "00\r\n";
+        assertRejected(first + bad, "at offset " + first.length());
+    }
+}